@@ -0,0 +1,189 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.util.Arrays;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Remembers the output values last written for every key, so rows whose coalesced values didn't change since
+ * the last row of their key can be dropped.
+ *
+ * The keys are kept in an open-addressing table keyed by their hash in an int array. Every key also keeps a
+ * 64 bit hash of its last output values next to the values, so a row of an unchanged key is recognized by
+ * comparing one long and then confirming the values, and a changed row mostly by the long alone. The values
+ * are the ones of the written row, no copies are made.
+ */
+class CoalesceChangeFilter {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * the slots hold entry + 1 of their key and its hash, 0 marks an empty slot
+	 */
+	private int[] slotEntries = new int[INITIAL_CAPACITY * 2];
+	private int[] slotHashes = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * per key its values and their metas, and the hash and the values of its last written row
+	 */
+	private Object[][] keys = new Object[INITIAL_CAPACITY][];
+	private ValueMetaInterface[][] keyMetas = new ValueMetaInterface[INITIAL_CAPACITY][];
+	private long[] valuesHashes = new long[INITIAL_CAPACITY];
+	private Object[][] values = new Object[INITIAL_CAPACITY][];
+	private int count;
+
+	private long suppressed;
+
+	/**
+	 * Checks the output values of a row against the last ones of its key and remembers them if they differ.
+	 *
+	 * @param r              the input row
+	 * @param keyIndexes     the positions of the keys in the input row
+	 * @param rowKeyMetas    the metas of the keys
+	 * @param outputRow      the output row
+	 * @param outputIndexes  the positions of the compared values in the output row
+	 * @param outputMetas    the metas of the compared values
+	 * @return true if the row is the first of its key or its values changed
+	 */
+	boolean isChanged( Object[] r, int[] keyIndexes, ValueMetaInterface[] rowKeyMetas, Object[] outputRow,
+		int[] outputIndexes, ValueMetaInterface[] outputMetas ) throws KettleValueException {
+		int hash = 1;
+		for ( int k = 0; k < keyIndexes.length; k++ ) {
+			hash = hash * 31 + rowKeyMetas[k].hashCode( r[keyIndexes[k]] );
+		}
+		long valuesHash = 0xCBF29CE484222325L;
+		for ( int i = 0; i < outputIndexes.length; i++ ) {
+			valuesHash = ( valuesHash ^ outputMetas[i].hashCode( outputRow[outputIndexes[i]] ) ) * 0x100000001B3L;
+		}
+
+		int slotMask = slotEntries.length - 1;
+		int slot = mix( hash ) & slotMask;
+		int entry;
+		while ( ( entry = slotEntries[slot] ) != 0 ) {
+			if ( slotHashes[slot] == hash && isKey( entry - 1, r, keyIndexes, rowKeyMetas ) ) {
+				entry--;
+				if ( valuesHashes[entry] == valuesHash && isUnchanged( entry, outputRow, outputIndexes, outputMetas ) ) {
+					suppressed++;
+					return false;
+				}
+				remember( entry, valuesHash, outputRow, outputIndexes );
+				return true;
+			}
+			slot = ( slot + 1 ) & slotMask;
+		}
+
+		if ( count == keys.length ) {
+			int capacity = count * 2;
+			keys = Arrays.copyOf( keys, capacity );
+			keyMetas = Arrays.copyOf( keyMetas, capacity );
+			valuesHashes = Arrays.copyOf( valuesHashes, capacity );
+			values = Arrays.copyOf( values, capacity );
+		}
+		entry = count++;
+		Object[] key = new Object[keyIndexes.length];
+		for ( int k = 0; k < keyIndexes.length; k++ ) {
+			key[k] = r[keyIndexes[k]];
+		}
+		keys[entry] = key;
+		keyMetas[entry] = rowKeyMetas;
+		values[entry] = new Object[outputIndexes.length];
+		remember( entry, valuesHash, outputRow, outputIndexes );
+
+		slotEntries[slot] = entry + 1;
+		slotHashes[slot] = hash;
+		if ( count * 2 > slotEntries.length ) {
+			rehash();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of distinct keys seen so far
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of rows found unchanged so far
+	 */
+	long getSuppressed() {
+		return suppressed;
+	}
+
+	private boolean isKey( int entry, Object[] r, int[] keyIndexes, ValueMetaInterface[] rowKeyMetas ) throws KettleValueException {
+		Object[] key = keys[entry];
+		ValueMetaInterface[] metas = keyMetas[entry];
+		for ( int k = 0; k < keyIndexes.length; k++ ) {
+			if ( metas[k].compare( key[k], rowKeyMetas[k], r[keyIndexes[k]] ) != 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isUnchanged( int entry, Object[] outputRow, int[] outputIndexes, ValueMetaInterface[] outputMetas )
+		throws KettleValueException {
+		Object[] last = values[entry];
+		for ( int i = 0; i < outputIndexes.length; i++ ) {
+			if ( outputMetas[i].compare( last[i], outputRow[outputIndexes[i]] ) != 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void remember( int entry, long valuesHash, Object[] outputRow, int[] outputIndexes ) {
+		valuesHashes[entry] = valuesHash;
+		Object[] last = values[entry];
+		for ( int i = 0; i < outputIndexes.length; i++ ) {
+			last[i] = outputRow[outputIndexes[i]];
+		}
+	}
+
+	/**
+	 * Doubles the table, keeping the load factor at or below one half.
+	 */
+	private void rehash() {
+		int[] oldEntries = slotEntries;
+		int[] oldHashes = slotHashes;
+		slotEntries = new int[oldEntries.length * 2];
+		slotHashes = new int[oldEntries.length * 2];
+		int slotMask = slotEntries.length - 1;
+		for ( int i = 0; i < oldEntries.length; i++ ) {
+			if ( oldEntries[i] != 0 ) {
+				int slot = mix( oldHashes[i] ) & slotMask;
+				while ( slotEntries[slot] != 0 ) {
+					slot = ( slot + 1 ) & slotMask;
+				}
+				slotEntries[slot] = oldEntries[i];
+				slotHashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the key hash, similar keys differ in their low bits only.
+	 */
+	private static int mix( int hash ) {
+		int h = hash * 0x9E3779B9;
+		return h ^ ( h >>> 16 );
+	}
+}
@@ -22,7 +22,14 @@
 
 package com.graphiq.pdi.coalesce;
 
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 
@@ -48,9 +55,101 @@ import org.pentaho.di.trans.step.StepDataInterface;
  */
 public class CoalesceData extends BaseStepData implements StepDataInterface {
 
+	/**
+	 * the most plans kept for different input layouts
+	 */
+	static final int MAX_CACHED_PLANS = 16;
+
 	Object[] outputRowValues;
 	RowMetaInterface outputRowMeta;
 
+	/**
+	 * the plan of the current input layout, and the plans compiled so far by layout instance and by fingerprint
+	 */
+	CoalescePlan plan;
+	Map<RowMetaInterface, CoalescePlan> plansByLayout = new IdentityHashMap<RowMetaInterface, CoalescePlan>();
+	Map<String, CoalescePlan> plansByFingerprint = new LinkedHashMap<String, CoalescePlan>( 16, 0.75f, true ) {
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, CoalescePlan> eldest ) {
+			return size() > MAX_CACHED_PLANS;
+		}
+	};
+	long planLookups;
+	long planCompilations;
+	long planRecompilations;
+
+	/**
+	 * fallback dictionaries and the builders used to write them, one slot per output field
+	 */
+	CoalesceDictionary[] dictionaries;
+	CoalesceDictionaryBuilder[] dictionaryBuilders;
+	ValueMetaInterface dictionaryValueMeta;
+
+	/**
+	 * output type inference: the rows held back while sampling, with their input layouts, and the types
+	 * fixed once sampling is done, TYPE_NONE for fields that aren't inferred
+	 */
+	static final int MAX_SAMPLE_ROWS = 100000;
+	CoalesceTypeInference typeInference;
+	List<Object[]> sampleRows;
+	List<RowMetaInterface> sampleLayouts;
+	int[] inferredTypes;
+
+	/**
+	 * default values already converted to the output type, null if a field has no default or no value type,
+	 * the plans complete them for their layout
+	 */
+	Object[] defaultValues;
+
+	/**
+	 * the output row set of every route, null for routes without a target; null if rows aren't routed.
+	 * routeWinner is the candidate that won the routed field of the current row, -1 if all were null
+	 */
+	RowSet[] routeRowSets;
+	int routeWinner;
+
+	/**
+	 * the rows with conflicting candidates so far, per output field
+	 */
+	long[] conflictCounts;
+
+	/**
+	 * the pool canonicalizing the String values of every output field, null for fields that aren't interned
+	 */
+	CoalesceInternPool[] internPools;
+
+	/**
+	 * the encoder of every output field whose values are replaced by codes, null for other fields and once
+	 * the dictionary is written
+	 */
+	CoalesceEncoder[] encoders;
+
+	/**
+	 * merge mode: the row sets of the primary and secondary stream, their layouts and plans, the next row of
+	 * every stream, null once it is done, the positions of the merge keys in every stream and the output, and
+	 * which output fields of the merged row have a winner, cleared for every row
+	 */
+	RowSet[] mergeRowSets;
+	RowMetaInterface[] mergeRowMetas;
+	CoalescePlan[] mergePlans;
+	Object[][] mergeRows;
+	int[][] mergeKeyIndexes;
+	int[] mergeKeyOutputIndexes;
+	boolean[] mergeFound;
+
+	/**
+	 * grouping: the grouper, null until the first row and once the groups are written, and per input layout
+	 * the positions of the group keys and the plans of every partition
+	 */
+	CoalesceGrouper grouper;
+	Map<RowMetaInterface, int[]> groupKeyIndexes = new IdentityHashMap<RowMetaInterface, int[]>();
+	Map<RowMetaInterface, CoalescePlan[]> groupPlans = new IdentityHashMap<RowMetaInterface, CoalescePlan[]>();
+
+	/**
+	 * the output values last written per change key, null if all rows are written
+	 */
+	CoalesceChangeFilter changeFilter;
+
 	public CoalesceData() {
 		super();
 	}
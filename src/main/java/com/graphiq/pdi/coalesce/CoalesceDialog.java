@@ -19,6 +19,9 @@ package com.graphiq.pdi.coalesce;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.dialogs.MessageDialogWithToggle;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
+import org.eclipse.swt.events.FocusAdapter;
+import org.eclipse.swt.events.FocusEvent;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -37,9 +40,14 @@ import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.ui.core.dialog.EnterNumberDialog;
+import org.pentaho.di.ui.core.dialog.EnterTextDialog;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.core.gui.GUIResource;
 import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.ComboValuesSelectionListener;
 import org.pentaho.di.ui.core.widget.TableView;
+import org.pentaho.di.ui.trans.dialog.TransPreviewProgressDialog;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
@@ -62,10 +70,49 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 	private CoalesceMeta meta;
 
 	private Button wEmptyStringsCheck;
+	private CCombo wDictionaryKeyField;
+	private Button wBuildDictionariesCheck;
+	private Button wInferTypesCheck;
+	private Text wInferSampleSize;
+	private CCombo wRouteField;
+	private TableView wRoutes;
+	private Text wMergeKeys;
+	private TableView wMergeSteps;
+	private Text wGroupKeys;
+	private Text wGroupThreads;
+	private Text wChangeKeys;
 	private TableView wFields;
 	private ColumnInfo[] columnInfos;
 
-	private Map<String, Integer> allInputStreamFields;
+	private ProgressBar wFieldsProgress;
+	private Button wStopLoading;
+
+	/**
+	 * sorted names of the fields coming in, only touched on the UI thread
+	 */
+	private String[] inputFieldNames = new String[0];
+
+	/**
+	 * the thread loading the input fields, results of any other thread are dropped
+	 */
+	private volatile Thread fieldLoader;
+
+	/**
+	 * The input fields last loaded for each step, so a reopened dialog offers them right away while they are
+	 * loaded again. Upstream steps like database inputs or mappings can take long to describe their output.
+	 */
+	private static final Map<TransMeta, Map<String, InputFields>> inputFieldsCache =
+		Collections.synchronizedMap( new WeakHashMap<TransMeta, Map<String, InputFields>>() );
+
+	private static class InputFields {
+		final String layout;
+		final String[] names;
+
+		InputFields( String layout, String[] names ) {
+			this.layout = layout;
+			this.names = names;
+		}
+	}
 
 	/**
 	 * Constants:
@@ -85,8 +132,6 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 	public CoalesceDialog( Shell parent, Object in, TransMeta transMeta, String sName ) {
 		super( parent, (BaseStepMeta) in, transMeta, sName );
 		meta = (CoalesceMeta) in;
-
-		allInputStreamFields = new HashMap<String, Integer>();
 	}
 
 	/**
@@ -146,6 +191,21 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 		// Spaces and Nulls
 		setEmptyStringsAndNullsCheck( middle, margin );
 
+		// Fallback dictionaries
+		setDictionaryOptions( middle, margin, lsMod );
+
+		// Output type inference
+		setInferenceOptions( middle, margin, lsMod );
+
+		// Routing to target steps
+		setRoutingOptions( middle, margin, lsMod );
+
+		// Merging two sorted streams
+		setMergeOptions( middle, margin, lsMod );
+
+		// Grouping rows on keys
+		setGroupOptions( middle, margin, lsMod );
+
 		// Column infos
 		setTable( margin, lsMod );
 
@@ -201,6 +261,30 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 	 */
 	private void populateDialog() {
 		wEmptyStringsCheck.setSelection( meta.isTreatEmptyStringsAsNulls() );
+		wDictionaryKeyField.setText( Const.NVL( meta.getDictionaryKeyField(), "" ) );
+		wBuildDictionariesCheck.setSelection( meta.isBuildDictionaries() );
+		wInferTypesCheck.setSelection( meta.isInferTypes() );
+		wInferSampleSize.setText( String.valueOf( meta.getInferSampleSize() ) );
+		wInferSampleSize.setEnabled( meta.isInferTypes() );
+		wRouteField.setText( Const.NVL( meta.getRouteField(), "" ) );
+		for ( int i = 0; i < CoalesceMeta.nrRoutes; i++ ) {
+			TableItem item = wRoutes.table.getItem( i );
+			item.setText( 1, CoalesceMeta.routeDescriptions[i] );
+			item.setText( 2, meta.getRouteTarget( i ) );
+		}
+		wRoutes.setRowNums();
+		wRoutes.optWidth( true );
+		wMergeKeys.setText( meta.getMergeKeys() );
+		for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+			TableItem item = wMergeSteps.table.getItem( i );
+			item.setText( 1, CoalesceMeta.mergeDescriptions[i] );
+			item.setText( 2, meta.getMergeStep( i ) );
+		}
+		wMergeSteps.setRowNums();
+		wMergeSteps.optWidth( true );
+		wGroupKeys.setText( meta.getGroupKeys() );
+		wGroupThreads.setText( String.valueOf( meta.getGroupThreads() ) );
+		wChangeKeys.setText( meta.getChangeKeys() );
 
 		if ( meta.getOutputFields() != null ) {
 			for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
@@ -215,6 +299,22 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 				}
 				item.setText( 2 + CoalesceMeta.noInputFields, ValueMeta.getTypeDesc( meta.getValueType()[i] ) );
 				item.setText( 3 + CoalesceMeta.noInputFields, CoalesceMeta.getStringFromBoolean( meta.getDoRemoveInputFields()[i] ) );
+				item.setText( 4 + CoalesceMeta.noInputFields, Const.NVL( meta.getDictionaryFiles()[i], "" ) );
+				item.setText( 5 + CoalesceMeta.noInputFields, Const.NVL( meta.getDefaultValues()[i], "" ) );
+				item.setText( 6 + CoalesceMeta.noInputFields, Const.NVL( meta.getNullSentinels()[i], "" ) );
+				item.setText( 7 + CoalesceMeta.noInputFields, CoalesceMeta.getStringFromBoolean( meta.getTrimBeforeNullCheck()[i] ) );
+				item.setText( 8 + CoalesceMeta.noInputFields, CoalesceMeta.strategyDescriptions[meta.getStrategies()[i]] );
+				item.setText( 9 + CoalesceMeta.noInputFields, Const.NVL( meta.getCandidatePatterns()[i], "" ) );
+				item.setText( 10 + CoalesceMeta.noInputFields, CoalesceMeta.orderDescriptions[meta.getCandidateOrders()[i]] );
+				item.setText( 11 + CoalesceMeta.noInputFields, Const.NVL( meta.getWinnerFields()[i], "" ) );
+				item.setText( 12 + CoalesceMeta.noInputFields, Const.NVL( meta.getNonNullMaskFields()[i], "" ) );
+				item.setText( 13 + CoalesceMeta.noInputFields, CoalesceMeta.getStringFromBoolean( meta.getDetectConflicts()[i] ) );
+				item.setText( 14 + CoalesceMeta.noInputFields, Const.NVL( meta.getConflictFields()[i], "" ) );
+				if ( meta.getInternPoolSizes()[i] > 0 ) {
+					item.setText( 15 + CoalesceMeta.noInputFields, String.valueOf( meta.getInternPoolSizes()[i] ) );
+				}
+				item.setText( 16 + CoalesceMeta.noInputFields, Const.NVL( meta.getEncodingFiles()[i], "" ) );
+				item.setText( 17 + CoalesceMeta.noInputFields, Const.NVL( meta.getValueDelimiters()[i], "" ) );
 			}
 		}
 		wFields.setRowNums();
@@ -246,7 +346,7 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 			return;
 		}
 
-		populateMetaWithInfo();
+		populateMetaWithInfo( meta );
 		// close the SWT dialog window
 		dispose();
 	}
@@ -255,8 +355,23 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 	 * This helper method takes the information configured in the dialog controls
 	 * and stores it into the step configuration meta object
 	 */
-	private void populateMetaWithInfo() {
+	private void populateMetaWithInfo( CoalesceMeta meta ) {
 		meta.setTreatEmptyStringsAsNulls( wEmptyStringsCheck.getSelection() );
+		meta.setDictionaryKeyField( wDictionaryKeyField.getText() );
+		meta.setBuildDictionaries( wBuildDictionariesCheck.getSelection() );
+		meta.setInferTypes( wInferTypesCheck.getSelection() );
+		meta.setInferSampleSize( Const.toInt( wInferSampleSize.getText(), CoalesceMeta.DEFAULT_INFER_SAMPLE_SIZE ) );
+		meta.setRouteField( wRouteField.getText() );
+		for ( int i = 0; i < CoalesceMeta.nrRoutes; i++ ) {
+			meta.setRouteTarget( i, wRoutes.table.getItem( i ).getText( 2 ) );
+		}
+		meta.setMergeKeys( wMergeKeys.getText() );
+		for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+			meta.setMergeStep( i, wMergeSteps.table.getItem( i ).getText( 2 ) );
+		}
+		meta.setGroupKeys( wGroupKeys.getText() );
+		meta.setGroupThreads( Const.toInt( wGroupThreads.getText(), 0 ) );
+		meta.setChangeKeys( wChangeKeys.getText() );
 
 		int noKeys = wFields.nrNonEmpty();
 		meta.allocate( noKeys );
@@ -287,7 +402,28 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 				String isRemoveText = item.getText(3 + CoalesceMeta.noInputFields);
 				meta.getDoRemoveInputFields()[i] = !isRemoveText.isEmpty() && CoalesceMeta.getBooleanFromString(isRemoveText);
 
-			if (emptyFields > 2) {
+				meta.getDictionaryFiles()[i] = item.getText(4 + CoalesceMeta.noInputFields);
+				meta.getDefaultValues()[i] = item.getText(5 + CoalesceMeta.noInputFields);
+				meta.getNullSentinels()[i] = item.getText(6 + CoalesceMeta.noInputFields);
+
+				String isTrimText = item.getText(7 + CoalesceMeta.noInputFields);
+				meta.getTrimBeforeNullCheck()[i] = !isTrimText.isEmpty() && CoalesceMeta.getBooleanFromString(isTrimText);
+
+				meta.getStrategies()[i] = CoalesceMeta.getStrategyFromDescription(item.getText(8 + CoalesceMeta.noInputFields));
+				meta.getCandidatePatterns()[i] = item.getText(9 + CoalesceMeta.noInputFields);
+				meta.getCandidateOrders()[i] = CoalesceMeta.getOrderFromDescription(item.getText(10 + CoalesceMeta.noInputFields));
+				meta.getWinnerFields()[i] = item.getText(11 + CoalesceMeta.noInputFields);
+				meta.getNonNullMaskFields()[i] = item.getText(12 + CoalesceMeta.noInputFields);
+
+				String isDetectConflictsText = item.getText(13 + CoalesceMeta.noInputFields);
+				meta.getDetectConflicts()[i] = !isDetectConflictsText.isEmpty() && CoalesceMeta.getBooleanFromString(isDetectConflictsText);
+				meta.getConflictFields()[i] = item.getText(14 + CoalesceMeta.noInputFields);
+				meta.getInternPoolSizes()[i] = Math.max(Const.toInt(item.getText(15 + CoalesceMeta.noInputFields), 0), 0);
+				meta.getEncodingFiles()[i] = item.getText(16 + CoalesceMeta.noInputFields);
+				meta.getValueDelimiters()[i] = item.getText(17 + CoalesceMeta.noInputFields);
+
+			// a candidate pattern can stand in for the explicit input fields
+			if (emptyFields > 2 && meta.getCandidatePatterns()[i].isEmpty()) {
 				//  Ex.: OutColumn has 2 empty fields
 				nonEmptyFieldsNames.add(Const.CR + " Output Field [" + meta.getOutputFields()[i] + "] has " + emptyFields + " empty fields");
 			}
@@ -356,23 +492,292 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 		} );
 	}
 
+	private void setDictionaryOptions( int middle, int margin, ModifyListener lsMod ) {
+		Label wlDictionaryKeyField = new Label( shell, SWT.RIGHT );
+		wlDictionaryKeyField.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.DictionaryKeyField" ) );
+		props.setLook( wlDictionaryKeyField );
+		FormData fdlDictionaryKeyField = new FormData();
+		fdlDictionaryKeyField.left = new FormAttachment( 0, 0 );
+		fdlDictionaryKeyField.top = new FormAttachment( wEmptyStringsCheck, margin );
+		fdlDictionaryKeyField.right = new FormAttachment( middle, -margin );
+		wlDictionaryKeyField.setLayoutData( fdlDictionaryKeyField );
+
+		wDictionaryKeyField = new CCombo( shell, SWT.BORDER );
+		props.setLook( wDictionaryKeyField );
+		wDictionaryKeyField.addModifyListener( lsMod );
+		FormData fdDictionaryKeyField = new FormData();
+		fdDictionaryKeyField.left = new FormAttachment( middle, 0 );
+		fdDictionaryKeyField.top = new FormAttachment( wEmptyStringsCheck, margin );
+		fdDictionaryKeyField.right = new FormAttachment( 100, 0 );
+		wDictionaryKeyField.setLayoutData( fdDictionaryKeyField );
+
+		Label wlBuildDictionariesCheck = new Label( shell, SWT.RIGHT );
+		wlBuildDictionariesCheck.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.BuildDictionaries" ) );
+		props.setLook( wlBuildDictionariesCheck );
+		FormData fdlBuildDictionariesCheck = new FormData();
+		fdlBuildDictionariesCheck.left = new FormAttachment( 0, 0 );
+		fdlBuildDictionariesCheck.top = new FormAttachment( wDictionaryKeyField, margin );
+		fdlBuildDictionariesCheck.right = new FormAttachment( middle, -margin );
+		wlBuildDictionariesCheck.setLayoutData( fdlBuildDictionariesCheck );
+
+		wBuildDictionariesCheck = new Button( shell, SWT.CHECK );
+		props.setLook( wBuildDictionariesCheck );
+		FormData fdBuildDictionariesCheck = new FormData();
+		fdBuildDictionariesCheck.left = new FormAttachment( middle, 0 );
+		fdBuildDictionariesCheck.top = new FormAttachment( wDictionaryKeyField, margin );
+		fdBuildDictionariesCheck.right = new FormAttachment( 100, 0 );
+		wBuildDictionariesCheck.setLayoutData( fdBuildDictionariesCheck );
+		wBuildDictionariesCheck.addSelectionListener( new SelectionAdapter() {
+			public void widgetSelected( SelectionEvent e ) {
+				meta.setChanged();
+			}
+		} );
+	}
+
+	private void setInferenceOptions( int middle, int margin, ModifyListener lsMod ) {
+		Label wlInferTypesCheck = new Label( shell, SWT.RIGHT );
+		wlInferTypesCheck.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.InferTypes" ) );
+		props.setLook( wlInferTypesCheck );
+		FormData fdlInferTypesCheck = new FormData();
+		fdlInferTypesCheck.left = new FormAttachment( 0, 0 );
+		fdlInferTypesCheck.top = new FormAttachment( wBuildDictionariesCheck, margin );
+		fdlInferTypesCheck.right = new FormAttachment( middle, -margin );
+		wlInferTypesCheck.setLayoutData( fdlInferTypesCheck );
+
+		wInferTypesCheck = new Button( shell, SWT.CHECK );
+		props.setLook( wInferTypesCheck );
+		wInferTypesCheck.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.InferTypes.Tooltip" ) );
+		FormData fdInferTypesCheck = new FormData();
+		fdInferTypesCheck.left = new FormAttachment( middle, 0 );
+		fdInferTypesCheck.top = new FormAttachment( wBuildDictionariesCheck, margin );
+		fdInferTypesCheck.right = new FormAttachment( 100, 0 );
+		wInferTypesCheck.setLayoutData( fdInferTypesCheck );
+		wInferTypesCheck.addSelectionListener( new SelectionAdapter() {
+			public void widgetSelected( SelectionEvent e ) {
+				meta.setChanged();
+				wInferSampleSize.setEnabled( wInferTypesCheck.getSelection() );
+			}
+		} );
+
+		Label wlInferSampleSize = new Label( shell, SWT.RIGHT );
+		wlInferSampleSize.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.InferSampleSize" ) );
+		props.setLook( wlInferSampleSize );
+		FormData fdlInferSampleSize = new FormData();
+		fdlInferSampleSize.left = new FormAttachment( 0, 0 );
+		fdlInferSampleSize.top = new FormAttachment( wInferTypesCheck, margin );
+		fdlInferSampleSize.right = new FormAttachment( middle, -margin );
+		wlInferSampleSize.setLayoutData( fdlInferSampleSize );
+
+		wInferSampleSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wInferSampleSize );
+		wInferSampleSize.addModifyListener( lsMod );
+		FormData fdInferSampleSize = new FormData();
+		fdInferSampleSize.left = new FormAttachment( middle, 0 );
+		fdInferSampleSize.top = new FormAttachment( wInferTypesCheck, margin );
+		fdInferSampleSize.right = new FormAttachment( 100, 0 );
+		wInferSampleSize.setLayoutData( fdInferSampleSize );
+	}
+
+	private void setRoutingOptions( int middle, int margin, ModifyListener lsMod ) {
+		Label wlRouteField = new Label( shell, SWT.RIGHT );
+		wlRouteField.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.RouteField" ) );
+		props.setLook( wlRouteField );
+		FormData fdlRouteField = new FormData();
+		fdlRouteField.left = new FormAttachment( 0, 0 );
+		fdlRouteField.top = new FormAttachment( wInferSampleSize, margin );
+		fdlRouteField.right = new FormAttachment( middle, -margin );
+		wlRouteField.setLayoutData( fdlRouteField );
+
+		wRouteField = new CCombo( shell, SWT.BORDER );
+		wRouteField.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.RouteField.Tooltip" ) );
+		props.setLook( wRouteField );
+		wRouteField.addModifyListener( lsMod );
+		FormData fdRouteField = new FormData();
+		fdRouteField.left = new FormAttachment( middle, 0 );
+		fdRouteField.top = new FormAttachment( wInferSampleSize, margin );
+		fdRouteField.right = new FormAttachment( 100, 0 );
+		wRouteField.setLayoutData( fdRouteField );
+		// offers the output fields as they are in the table right now
+		wRouteField.addFocusListener( new FocusAdapter() {
+			public void focusGained( FocusEvent e ) {
+				String routeField = wRouteField.getText();
+				List<String> outputFields = new ArrayList<String>();
+				for ( int i = 0; i < wFields.nrNonEmpty(); i++ ) {
+					outputFields.add( wFields.getNonEmpty( i ).getText( 1 ) );
+				}
+				wRouteField.setItems( outputFields.toArray( new String[outputFields.size()] ) );
+				wRouteField.setText( routeField );
+			}
+		} );
+
+		String[] nextStepNames = new String[0];
+		StepMeta stepMeta = transMeta.findStep( stepname );
+		if ( stepMeta != null ) {
+			nextStepNames = transMeta.getNextStepNames( stepMeta );
+		}
+		ColumnInfo[] routeInfos = new ColumnInfo[] {
+			new ColumnInfo( BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.Route" ),
+				ColumnInfo.COLUMN_TYPE_TEXT, false, true ),
+			new ColumnInfo( BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.RouteTarget" ),
+				ColumnInfo.COLUMN_TYPE_CCOMBO, nextStepNames, false ) };
+		routeInfos[1].setToolTip( BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.RouteTarget.Tooltip" ) );
+
+		wRoutes = new TableView( transMeta, shell,
+						SWT.BORDER | SWT.FULL_SELECTION | SWT.SINGLE, routeInfos, CoalesceMeta.nrRoutes, lsMod, props );
+		FormData fdRoutes = new FormData();
+		fdRoutes.left = new FormAttachment( middle, 0 );
+		fdRoutes.top = new FormAttachment( wRouteField, margin );
+		fdRoutes.right = new FormAttachment( 100, 0 );
+		fdRoutes.height = wRoutes.table.getHeaderHeight() + wRoutes.table.getItemHeight() * ( CoalesceMeta.nrRoutes + 1 );
+		wRoutes.setLayoutData( fdRoutes );
+	}
+
+	private void setMergeOptions( int middle, int margin, ModifyListener lsMod ) {
+		Label wlMergeKeys = new Label( shell, SWT.RIGHT );
+		wlMergeKeys.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.MergeKeys" ) );
+		props.setLook( wlMergeKeys );
+		FormData fdlMergeKeys = new FormData();
+		fdlMergeKeys.left = new FormAttachment( 0, 0 );
+		fdlMergeKeys.top = new FormAttachment( wRoutes, margin );
+		fdlMergeKeys.right = new FormAttachment( middle, -margin );
+		wlMergeKeys.setLayoutData( fdlMergeKeys );
+
+		wMergeKeys = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		wMergeKeys.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.MergeKeys.Tooltip" ) );
+		props.setLook( wMergeKeys );
+		wMergeKeys.addModifyListener( lsMod );
+		FormData fdMergeKeys = new FormData();
+		fdMergeKeys.left = new FormAttachment( middle, 0 );
+		fdMergeKeys.top = new FormAttachment( wRoutes, margin );
+		fdMergeKeys.right = new FormAttachment( 100, 0 );
+		wMergeKeys.setLayoutData( fdMergeKeys );
+
+		String[] prevStepNames = new String[0];
+		StepMeta stepMeta = transMeta.findStep( stepname );
+		if ( stepMeta != null ) {
+			prevStepNames = transMeta.getPrevStepNames( stepMeta );
+		}
+		ColumnInfo[] mergeInfos = new ColumnInfo[] {
+			new ColumnInfo( BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.MergeStream" ),
+				ColumnInfo.COLUMN_TYPE_TEXT, false, true ),
+			new ColumnInfo( BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.MergeStep" ),
+				ColumnInfo.COLUMN_TYPE_CCOMBO, prevStepNames, false ) };
+
+		wMergeSteps = new TableView( transMeta, shell,
+						SWT.BORDER | SWT.FULL_SELECTION | SWT.SINGLE, mergeInfos, CoalesceMeta.nrMergeStreams, lsMod, props );
+		FormData fdMergeSteps = new FormData();
+		fdMergeSteps.left = new FormAttachment( middle, 0 );
+		fdMergeSteps.top = new FormAttachment( wMergeKeys, margin );
+		fdMergeSteps.right = new FormAttachment( 100, 0 );
+		fdMergeSteps.height = wMergeSteps.table.getHeaderHeight()
+			+ wMergeSteps.table.getItemHeight() * ( CoalesceMeta.nrMergeStreams + 1 );
+		wMergeSteps.setLayoutData( fdMergeSteps );
+	}
+
+	private void setGroupOptions( int middle, int margin, ModifyListener lsMod ) {
+		Label wlGroupKeys = new Label( shell, SWT.RIGHT );
+		wlGroupKeys.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.GroupKeys" ) );
+		props.setLook( wlGroupKeys );
+		FormData fdlGroupKeys = new FormData();
+		fdlGroupKeys.left = new FormAttachment( 0, 0 );
+		fdlGroupKeys.top = new FormAttachment( wMergeSteps, margin );
+		fdlGroupKeys.right = new FormAttachment( middle, -margin );
+		wlGroupKeys.setLayoutData( fdlGroupKeys );
+
+		wGroupKeys = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		wGroupKeys.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.GroupKeys.Tooltip" ) );
+		props.setLook( wGroupKeys );
+		wGroupKeys.addModifyListener( lsMod );
+		FormData fdGroupKeys = new FormData();
+		fdGroupKeys.left = new FormAttachment( middle, 0 );
+		fdGroupKeys.top = new FormAttachment( wMergeSteps, margin );
+		fdGroupKeys.right = new FormAttachment( 100, 0 );
+		wGroupKeys.setLayoutData( fdGroupKeys );
+
+		Label wlGroupThreads = new Label( shell, SWT.RIGHT );
+		wlGroupThreads.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.GroupThreads" ) );
+		props.setLook( wlGroupThreads );
+		FormData fdlGroupThreads = new FormData();
+		fdlGroupThreads.left = new FormAttachment( 0, 0 );
+		fdlGroupThreads.top = new FormAttachment( wGroupKeys, margin );
+		fdlGroupThreads.right = new FormAttachment( middle, -margin );
+		wlGroupThreads.setLayoutData( fdlGroupThreads );
+
+		wGroupThreads = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		wGroupThreads.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.GroupThreads.Tooltip" ) );
+		props.setLook( wGroupThreads );
+		wGroupThreads.addModifyListener( lsMod );
+		FormData fdGroupThreads = new FormData();
+		fdGroupThreads.left = new FormAttachment( middle, 0 );
+		fdGroupThreads.top = new FormAttachment( wGroupKeys, margin );
+		fdGroupThreads.right = new FormAttachment( 100, 0 );
+		wGroupThreads.setLayoutData( fdGroupThreads );
+
+		Label wlChangeKeys = new Label( shell, SWT.RIGHT );
+		wlChangeKeys.setText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.ChangeKeys" ) );
+		props.setLook( wlChangeKeys );
+		FormData fdlChangeKeys = new FormData();
+		fdlChangeKeys.left = new FormAttachment( 0, 0 );
+		fdlChangeKeys.top = new FormAttachment( wGroupThreads, margin );
+		fdlChangeKeys.right = new FormAttachment( middle, -margin );
+		wlChangeKeys.setLayoutData( fdlChangeKeys );
+
+		wChangeKeys = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		wChangeKeys.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Shell.ChangeKeys.Tooltip" ) );
+		props.setLook( wChangeKeys );
+		wChangeKeys.addModifyListener( lsMod );
+		FormData fdChangeKeys = new FormData();
+		fdChangeKeys.left = new FormAttachment( middle, 0 );
+		fdChangeKeys.top = new FormAttachment( wGroupThreads, margin );
+		fdChangeKeys.right = new FormAttachment( 100, 0 );
+		wChangeKeys.setLayoutData( fdChangeKeys );
+	}
+
 	private void setTable( int margin, ModifyListener lsMod ) {
 		Label wlFields = new Label( shell, SWT.NONE );
 		wlFields.setText( BaseMessages.getString( PKG, "CoalesceDialog.Fields.Label" ) );
 		props.setLook( wlFields );
 		FormData fdlFields = new FormData();
 		fdlFields.left = new FormAttachment( 0, 0 );
-		fdlFields.top = new FormAttachment( wEmptyStringsCheck, margin );
+		fdlFields.top = new FormAttachment( wChangeKeys, margin );
 		wlFields.setLayoutData( fdlFields );
 
-		columnInfos = new ColumnInfo[3 + CoalesceMeta.noInputFields];
+		wFieldsProgress = new ProgressBar( shell, SWT.HORIZONTAL | SWT.INDETERMINATE );
+		wFieldsProgress.setToolTipText( BaseMessages.getString( PKG, "CoalesceDialog.Fields.Loading" ) );
+		FormData fdFieldsProgress = new FormData();
+		fdFieldsProgress.left = new FormAttachment( wlFields, margin * 2 );
+		fdFieldsProgress.top = new FormAttachment( wChangeKeys, margin );
+		wFieldsProgress.setLayoutData( fdFieldsProgress );
+
+		wStopLoading = new Button( shell, SWT.PUSH );
+		wStopLoading.setText( BaseMessages.getString( PKG, "CoalesceDialog.Fields.StopLoading" ) );
+		props.setLook( wStopLoading );
+		FormData fdStopLoading = new FormData();
+		fdStopLoading.left = new FormAttachment( wFieldsProgress, margin );
+		fdStopLoading.top = new FormAttachment( wChangeKeys, margin );
+		wStopLoading.setLayoutData( fdStopLoading );
+		wStopLoading.addSelectionListener( new SelectionAdapter() {
+			public void widgetSelected( SelectionEvent e ) {
+				fieldLoader = null;
+				showLoading( false );
+			}
+		} );
+
+		columnInfos = new ColumnInfo[17 + CoalesceMeta.noInputFields];
 		columnInfos[0] = new ColumnInfo( BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.OutField" ),
 						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		// the field combos only list the fields containing what was typed into the cell already
+		ComboValuesSelectionListener typeAhead = new ComboValuesSelectionListener() {
+			public String[] getComboValues( TableItem tableItem, int rowNr, int colNr ) {
+				return filterInputFieldNames( tableItem.getText( colNr ) );
+			}
+		};
 		for ( int i = 0; i < CoalesceMeta.noInputFields; i++ ) {
 			columnInfos[i + 1] = new ColumnInfo(
 							BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.InputField",
 											Character.valueOf( (char) ( 'A' + i ) ).toString() ),
 							ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "" }, false );
+			columnInfos[i + 1].setComboValuesSelectionListener( typeAhead );
 		}
 		columnInfos[1 + CoalesceMeta.noInputFields] = new ColumnInfo(
 						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.ValueType" ),
@@ -385,6 +790,86 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 
 		columnInfos[2 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
 						( PKG, "CoalesceDialog.ColumnInfo.RemoveInputColumns.Tooltip" ) );
+		columnInfos[3 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.DictionaryFile" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[3 + CoalesceMeta.noInputFields].setUsingVariables( true );
+		columnInfos[3 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.DictionaryFile.Tooltip" ) );
+		columnInfos[4 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.DefaultValue" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[4 + CoalesceMeta.noInputFields].setUsingVariables( true );
+		columnInfos[4 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.DefaultValue.Tooltip" ) );
+		columnInfos[5 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.NullSentinels" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[5 + CoalesceMeta.noInputFields].setUsingVariables( true );
+		columnInfos[5 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.NullSentinels.Tooltip" ) );
+		columnInfos[6 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.TrimBeforeNullCheck" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] {
+						BaseMessages.getString( PKG, "System.Combo.No" ),
+						BaseMessages.getString( PKG, "System.Combo.Yes" ) } );
+		columnInfos[6 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.TrimBeforeNullCheck.Tooltip" ) );
+		columnInfos[7 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.Strategy" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, CoalesceMeta.strategyDescriptions );
+		columnInfos[7 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.Strategy.Tooltip" ) );
+		columnInfos[8 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.CandidatePattern" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[8 + CoalesceMeta.noInputFields].setUsingVariables( true );
+		columnInfos[8 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.CandidatePattern.Tooltip" ) );
+		columnInfos[9 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.CandidateOrder" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, CoalesceMeta.orderDescriptions );
+		columnInfos[9 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.CandidateOrder.Tooltip" ) );
+		columnInfos[10 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.WinnerField" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[10 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.WinnerField.Tooltip" ) );
+		columnInfos[11 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.NonNullMaskField" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[11 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.NonNullMaskField.Tooltip" ) );
+		columnInfos[12 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.DetectConflicts" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] {
+						BaseMessages.getString( PKG, "System.Combo.No" ),
+						BaseMessages.getString( PKG, "System.Combo.Yes" ) } );
+		columnInfos[12 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.DetectConflicts.Tooltip" ) );
+		columnInfos[13 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.ConflictField" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[13 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.ConflictField.Tooltip" ) );
+		columnInfos[14 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.InternPoolSize" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[14 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.InternPoolSize.Tooltip" ) );
+		columnInfos[15 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.EncodingFile" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[15 + CoalesceMeta.noInputFields].setUsingVariables( true );
+		columnInfos[15 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.EncodingFile.Tooltip" ) );
+		columnInfos[16 + CoalesceMeta.noInputFields] = new ColumnInfo(
+						BaseMessages.getString( PKG, "CoalesceDialog.ColumnInfo.ValueDelimiter" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
+		columnInfos[16 + CoalesceMeta.noInputFields].setUsingVariables( true );
+		columnInfos[16 + CoalesceMeta.noInputFields].setToolTip( BaseMessages.getString
+						( PKG, "CoalesceDialog.ColumnInfo.ValueDelimiter.Tooltip" ) );
 
 		int noFieldRows = ( meta.getOutputFields() != null ? meta.getOutputFields().length : 1 );
 		wFields = new TableView( transMeta, shell,
@@ -397,47 +882,139 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 		fdFields.bottom = new FormAttachment( 100, -50 );
 		wFields.setLayoutData( fdFields );
 
-		final Runnable runnable = new Runnable() {
-			public void run() {
-				StepMeta stepMeta = transMeta.findStep( stepname );
-				if ( stepMeta != null ) {
-					try {
-						RowMetaInterface row = transMeta.getPrevStepFields( stepMeta );
-
-						// Remember these fields...
-						for ( int i = 0; i < row.size(); i++ ) {
-							allInputStreamFields.put( row.getValueMeta( i ).getName(), i );
-						}
+		loadInputFields();
+	}
+
+	/**
+	 * Loads the input fields on a background thread, the combos offer the fields loaded last time meanwhile.
+	 */
+	private void loadInputFields() {
+		final StepMeta stepMeta = transMeta.findStep( stepname );
+		if ( stepMeta == null ) {
+			showLoading( false );
+			return;
+		}
 
-						setComboBoxes();
-					} catch ( KettleException e ) {
-						logError( BaseMessages.getString( PKG, "CoalesceDialog.Log.UnableToFindInput" ) );
+		final Display display = shell.getDisplay();
+		final InputFields cached = getCachedInputFields( stepMeta.getName() );
+		if ( cached != null ) {
+			setComboBoxes( cached.names );
+		}
+
+		Runnable runnable = new Runnable() {
+			public void run() {
+				String[] names = null;
+				try {
+					RowMetaInterface row = transMeta.getPrevStepFields( stepMeta );
+
+					// the same upstream layout as last time leaves the combos as they are
+					String layout = CoalesceMeta.getLayoutFingerprint( row );
+					if ( cached == null || !cached.layout.equals( layout ) ) {
+						names = row.getFieldNames();
+						Arrays.sort( names );
+						putCachedInputFields( stepMeta.getName(), new InputFields( layout, names ) );
 					}
+				} catch ( KettleException e ) {
+					logError( BaseMessages.getString( PKG, "CoalesceDialog.Log.UnableToFindInput" ) );
+				}
+
+				// widgets can only be touched from the UI thread
+				final Thread loader = Thread.currentThread();
+				final String[] loadedNames = names;
+				if ( display.isDisposed() ) {
+					return;
 				}
+				display.asyncExec( new Runnable() {
+					public void run() {
+						if ( shell.isDisposed() || fieldLoader != loader ) {
+							return;
+						}
+						fieldLoader = null;
+						showLoading( false );
+						if ( loadedNames != null ) {
+							setComboBoxes( loadedNames );
+						}
+					}
+				} );
 			}
 		};
-		new Thread( runnable ).start();
+
+		Thread loader = new Thread( runnable, "CoalesceDialog field loader" );
+		loader.setDaemon( true );
+		fieldLoader = loader;
+		showLoading( true );
+		loader.start();
 	}
 
-	private void setComboBoxes() {
-		// Something was changed in the row.
-		final Map<String, Integer> fields = new TreeMap<String, Integer>(allInputStreamFields);
+	private void showLoading( boolean loading ) {
+		if ( !wFieldsProgress.isDisposed() ) {
+			wFieldsProgress.setVisible( loading );
+			wStopLoading.setVisible( loading );
+		}
+	}
+
+	private InputFields getCachedInputFields( String stepName ) {
+		Map<String, InputFields> steps = inputFieldsCache.get( transMeta );
+		return steps == null ? null : steps.get( stepName );
+	}
+
+	private void putCachedInputFields( String stepName, InputFields inputFields ) {
+		synchronized ( inputFieldsCache ) {
+			Map<String, InputFields> steps = inputFieldsCache.get( transMeta );
+			if ( steps == null ) {
+				steps = new HashMap<String, InputFields>();
+				inputFieldsCache.put( transMeta, steps );
+			}
+			steps.put( stepName, inputFields );
+		}
+	}
+
+	/**
+	 * @return the input fields containing the text, ignoring case, or all of them if the text is empty,
+	 *         names a field already or matches none
+	 */
+	private String[] filterInputFieldNames( String text ) {
+		if ( Const.isEmpty( text ) ) {
+			return inputFieldNames;
+		}
+		String lowerText = text.toLowerCase();
+		List<String> matches = new ArrayList<String>();
+		for ( String name : inputFieldNames ) {
+			if ( name.equals( text ) ) {
+				return inputFieldNames;
+			}
+			if ( name.toLowerCase().contains( lowerText ) ) {
+				matches.add( name );
+			}
+		}
+		return matches.isEmpty() ? inputFieldNames : matches.toArray( new String[matches.size()] );
+	}
 
-		String[] fieldNames = new String[allInputStreamFields.size()];
-		fieldNames = fields.keySet().toArray( fieldNames );
+	private void setComboBoxes( String[] fieldNames ) {
+		inputFieldNames = fieldNames;
 
 		for ( int i = 0; i < CoalesceMeta.noInputFields; i++ ) {
 			columnInfos[1 + i].setComboValues( fieldNames );
 		}
+
+		if ( !wDictionaryKeyField.isDisposed() ) {
+			boolean hasChanged = meta.hasChanged();
+			String keyField = wDictionaryKeyField.getText();
+			wDictionaryKeyField.setItems( fieldNames );
+			wDictionaryKeyField.setText( keyField );
+			meta.setChanged( hasChanged );
+		}
 	}
 
 	private void setBottomButtons( int margin ) {
 		wOK = new Button( shell, SWT.PUSH );
 		wOK.setText( BaseMessages.getString( PKG, "System.Button.OK" ) );
+		wPreview = new Button( shell, SWT.PUSH );
+		wPreview.setText( BaseMessages.getString( PKG, "CoalesceDialog.Button.PreviewProfile" ) );
 		wCancel = new Button( shell, SWT.PUSH );
 		wCancel.setText( BaseMessages.getString( PKG, "System.Button.Cancel" ) );
 
-		BaseStepDialog.positionBottomButtons( shell, new Button[] { wOK, wCancel }, margin, null );
+		BaseStepDialog.positionBottomButtons( shell, new Button[] { wOK, wPreview, wCancel }, margin, null );
 
 		// Add listeners for cancel and OK
 		lsCancel = new Listener() {
@@ -450,8 +1027,104 @@ public class CoalesceDialog extends BaseStepDialog implements StepDialogInterfac
 				ok();
 			}
 		};
+		lsPreview = new Listener() {
+			public void handleEvent( Event e ) {
+				preview();
+			}
+		};
 
 		wCancel.addListener( SWT.Selection, lsCancel );
 		wOK.addListener( SWT.Selection, lsOK );
+		wPreview.addListener( SWT.Selection, lsPreview );
+	}
+
+	/**
+	 * Samples rows from the previous step and profiles the current settings on them, see CoalesceProfiler.
+	 */
+	private void preview() {
+		StepMeta stepMeta = transMeta.findStep( stepname );
+		List<StepMeta> previousSteps = stepMeta == null ? null : transMeta.findPreviousSteps( stepMeta, false );
+		if ( previousSteps == null || previousSteps.isEmpty() ) {
+			showMessage( SWT.ICON_WARNING, BaseMessages.getString( PKG, "CoalesceDialog.Preview.NoPreviousStep" ) );
+			return;
+		}
+		String previousStep = previousSteps.get( 0 ).getName();
+
+		EnterNumberDialog numberDialog = new EnterNumberDialog( shell, props.getDefaultPreviewSize(),
+			BaseMessages.getString( PKG, "CoalesceDialog.Preview.SampleSize.Title" ),
+			BaseMessages.getString( PKG, "CoalesceDialog.Preview.SampleSize.Message", previousStep ) );
+		int sampleSize = numberDialog.open();
+		if ( sampleSize <= 0 ) {
+			return;
+		}
+
+		TransPreviewProgressDialog progressDialog = new TransPreviewProgressDialog( shell,
+			createUpstreamPreview( previousStep ), new String[] { previousStep }, new int[] { sampleSize } );
+		progressDialog.open();
+		if ( progressDialog.isCancelled() ) {
+			return;
+		}
+		RowMetaInterface sampleRowMeta = progressDialog.getPreviewRowsMeta( previousStep );
+		List<Object[]> sample = progressDialog.getPreviewRows( previousStep );
+		if ( sampleRowMeta == null || sample == null || sample.isEmpty() ) {
+			showMessage( SWT.ICON_WARNING, BaseMessages.getString( PKG, "CoalesceDialog.Preview.NoRows", previousStep ) );
+			return;
+		}
+
+		CoalesceMeta previewMeta = new CoalesceMeta();
+		previewMeta.setDefault();
+		populateMetaWithInfo( previewMeta );
+
+		try {
+			CoalesceProfiler profiler = new CoalesceProfiler( previewMeta, transMeta );
+			profiler.profile( sampleRowMeta, sample );
+			EnterTextDialog reportDialog = new EnterTextDialog( shell,
+				BaseMessages.getString( PKG, "CoalesceDialog.Preview.Report.Title" ),
+				BaseMessages.getString( PKG, "CoalesceDialog.Preview.Report.Message", previousStep ), profiler.getReport(), true );
+			reportDialog.setReadOnly();
+			reportDialog.open();
+		} catch ( KettleException e ) {
+			new ErrorDialog( shell, BaseMessages.getString( PKG, "CoalesceDialog.Preview.Error.Title" ),
+				BaseMessages.getString( PKG, "CoalesceDialog.Preview.Error.Message" ), e );
+		}
+	}
+
+	/**
+	 * @return a copy of the transformation reduced to the given step and the steps it reads from, so that
+	 *         sampling doesn't run this step or anything after it
+	 */
+	private TransMeta createUpstreamPreview( String stepName ) {
+		TransMeta previewMeta = (TransMeta) transMeta.clone();
+
+		Set<String> upstream = new HashSet<String>();
+		collectUpstream( previewMeta, previewMeta.findStep( stepName ), upstream );
+
+		for ( int i = previewMeta.nrTransHops() - 1; i >= 0; i-- ) {
+			if ( !upstream.contains( previewMeta.getTransHop( i ).getToStep().getName() ) ) {
+				previewMeta.removeTransHop( i );
+			}
+		}
+		for ( int i = previewMeta.nrSteps() - 1; i >= 0; i-- ) {
+			if ( !upstream.contains( previewMeta.getStep( i ).getName() ) ) {
+				previewMeta.removeStep( i );
+			}
+		}
+		return previewMeta;
+	}
+
+	private static void collectUpstream( TransMeta transMeta, StepMeta stepMeta, Set<String> upstream ) {
+		if ( stepMeta == null || !upstream.add( stepMeta.getName() ) ) {
+			return;
+		}
+		for ( StepMeta previous : transMeta.findPreviousSteps( stepMeta, true ) ) {
+			collectUpstream( transMeta, previous, upstream );
+		}
+	}
+
+	private void showMessage( int icon, String message ) {
+		MessageBox messageBox = new MessageBox( shell, SWT.OK | icon );
+		messageBox.setText( BaseMessages.getString( PKG, "CoalesceDialog.Preview.Error.Title" ) );
+		messageBox.setMessage( message );
+		messageBox.open();
 	}
 }
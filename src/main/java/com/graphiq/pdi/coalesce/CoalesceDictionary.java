@@ -0,0 +1,209 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only view of a dictionary file written by {@link CoalesceDictionaryBuilder}.
+ *
+ * The file is an immutable open-addressing hash table that is memory-mapped as a whole, so opening it only
+ * reads the header and nothing is deserialized onto the heap. Instances are shared by every step copy and
+ * transformation in the JVM that opens the same file; use {@link #open(String)} and {@link #release()}.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header   int magic, int version, int entries, int slotCount, long slotTableOffset, long reserved
+ *   records  int hash, int keyLength, int valueLength, char[] key, char[] value
+ *   slots    long recordOffset per slot, 0 marks an empty slot
+ * </pre>
+ * Records never cross a {@link #SEGMENT_SIZE} boundary so every lookup reads from a single mapped segment.
+ */
+class CoalesceDictionary {
+
+	/**
+	 * constants:
+	 */
+	static final int MAGIC = 0x43444943; // "CDIC"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_HEADER_SIZE = 12;
+	static final int SEGMENT_SHIFT = 30;
+	static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/**
+	 * dictionaries currently mapped in this JVM, keyed by canonical path
+	 */
+	private static final Map<String, CoalesceDictionary> openDictionaries = new HashMap<String, CoalesceDictionary>();
+
+	private final String path;
+	private final long lastModified;
+	private final long length;
+	private final ByteBuffer[] segments;
+	private final int entries;
+	private final int slotMask;
+	private final long slotTableOffset;
+	private int references;
+
+	private CoalesceDictionary( File file ) throws IOException {
+		path = file.getPath();
+		lastModified = file.lastModified();
+		length = file.length();
+		if ( length < HEADER_SIZE ) {
+			throw new IOException( "Not a coalesce dictionary file: " + path );
+		}
+
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			segments = map( raf.getChannel(), FileChannel.MapMode.READ_ONLY, length );
+		} finally {
+			// the mapping stays valid once the channel is closed
+			raf.close();
+		}
+
+		if ( segments[0].getInt( 0 ) != MAGIC ) {
+			throw new IOException( "Not a coalesce dictionary file: " + path );
+		}
+		if ( segments[0].getInt( 4 ) != VERSION ) {
+			throw new IOException( "Unsupported coalesce dictionary version " + segments[0].getInt( 4 ) + ": " + path );
+		}
+		entries = segments[0].getInt( 8 );
+		slotMask = segments[0].getInt( 12 ) - 1;
+		slotTableOffset = segments[0].getLong( 16 );
+	}
+
+	/**
+	 * Returns the shared instance for the given file, mapping it if no up to date instance is open yet.
+	 * Every call must be paired with a call to {@link #release()}.
+	 */
+	static CoalesceDictionary open( String filename ) throws IOException {
+		File file = new File( filename ).getCanonicalFile();
+		if ( !file.isFile() ) {
+			throw new IOException( "Dictionary file not found: " + file.getPath() );
+		}
+
+		synchronized ( openDictionaries ) {
+			CoalesceDictionary dictionary = openDictionaries.get( file.getPath() );
+			// a rebuilt file gets a fresh mapping, users of the old one keep theirs until they release it
+			if ( dictionary == null || dictionary.lastModified != file.lastModified() || dictionary.length != file.length() ) {
+				dictionary = new CoalesceDictionary( file );
+				openDictionaries.put( file.getPath(), dictionary );
+			}
+			dictionary.references++;
+			return dictionary;
+		}
+	}
+
+	void release() {
+		synchronized ( openDictionaries ) {
+			if ( --references == 0 && openDictionaries.get( path ) == this ) {
+				openDictionaries.remove( path );
+			}
+		}
+	}
+
+	/**
+	 * Looks up the value stored for the key, returns null if the key is not present.
+	 * Lookups only use absolute reads so a single instance can be used by several threads.
+	 */
+	String get( String key ) {
+		int hash = hash( key );
+		int slot = hash & slotMask;
+		while ( true ) {
+			long offset = getLong( segments, slotTableOffset + ( (long) slot << 3 ) );
+			if ( offset == 0 ) {
+				return null;
+			}
+			ByteBuffer segment = segments[(int) ( offset >>> SEGMENT_SHIFT )];
+			int position = (int) ( offset & SEGMENT_MASK );
+			if ( segment.getInt( position ) == hash && keyEquals( segment, position, key ) ) {
+				int keyLength = segment.getInt( position + 4 );
+				int valueLength = segment.getInt( position + 8 );
+				return readChars( segment, position + RECORD_HEADER_SIZE + 2 * keyLength, valueLength );
+			}
+			slot = ( slot + 1 ) & slotMask;
+		}
+	}
+
+	int size() {
+		return entries;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	private static boolean keyEquals( ByteBuffer segment, int position, String key ) {
+		int keyLength = segment.getInt( position + 4 );
+		if ( keyLength != key.length() ) {
+			return false;
+		}
+		int charPosition = position + RECORD_HEADER_SIZE;
+		for ( int i = 0; i < keyLength; i++, charPosition += 2 ) {
+			if ( segment.getChar( charPosition ) != key.charAt( i ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String readChars( ByteBuffer segment, int position, int length ) {
+		char[] chars = new char[length];
+		for ( int i = 0; i < length; i++, position += 2 ) {
+			chars[i] = segment.getChar( position );
+		}
+		return new String( chars );
+	}
+
+	/**
+	 * String.hashCode() is cached on the key instance, the finalizer of MurmurHash3 spreads it
+	 * over the low bits used to pick a slot.
+	 */
+	static int hash( String key ) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	static ByteBuffer[] map( FileChannel channel, FileChannel.MapMode mode, long length ) throws IOException {
+		ByteBuffer[] segments = new ByteBuffer[(int) ( ( length + SEGMENT_SIZE - 1 ) >>> SEGMENT_SHIFT )];
+		for ( int i = 0; i < segments.length; i++ ) {
+			long start = (long) i << SEGMENT_SHIFT;
+			segments[i] = channel.map( mode, start, Math.min( SEGMENT_SIZE, length - start ) );
+		}
+		return segments;
+	}
+
+	static long getLong( ByteBuffer[] segments, long position ) {
+		return segments[(int) ( position >>> SEGMENT_SHIFT )].getLong( (int) ( position & SEGMENT_MASK ) );
+	}
+
+	static int getInt( ByteBuffer[] segments, long position ) {
+		return segments[(int) ( position >>> SEGMENT_SHIFT )].getInt( (int) ( position & SEGMENT_MASK ) );
+	}
+}
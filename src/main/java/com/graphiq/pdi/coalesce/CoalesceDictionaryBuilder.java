@@ -0,0 +1,250 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.graphiq.pdi.coalesce.CoalesceDictionary.*;
+
+/**
+ * Writes the dictionary files read by {@link CoalesceDictionary}.
+ *
+ * Records are streamed to a temporary file next to the target as they are added. Keys are deduplicated as they
+ * come, when a key is added more than once the first value wins, just like the coalesce itself. So the heap
+ * only grows with the distinct keys: it holds the offset and hash of every distinct key's record and an
+ * open-addressing table of them, which is written as the file's slot table by {@link #finish()}. A key whose
+ * hash matches is compared with the key of the record in the file. The result is moved into place once
+ * complete, so readers never see a partial file.
+ */
+public class CoalesceDictionaryBuilder {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_ENTRIES = 1 << 29;
+
+	private final File target;
+	private final File temporary;
+	private DataOutputStream out;
+	private long position;
+
+	/**
+	 * reads records back to compare their keys, out is flushed up to flushedPosition before
+	 */
+	private FileChannel in;
+	private long flushedPosition;
+	private ByteBuffer keyBuffer = ByteBuffer.allocate( 256 );
+
+	/**
+	 * per distinct key the offset of its record and its hash, and the slots holding entry + 1 of their key,
+	 * 0 marks an empty slot. The table is probed like the file's slot table, so it is written as is.
+	 */
+	private long[] offsets = new long[INITIAL_CAPACITY];
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+	private int count;
+
+	/**
+	 * the key added last, sorted or clustered input repeats it without reading the file
+	 */
+	private String lastKey;
+
+	public CoalesceDictionaryBuilder( String filename ) throws IOException {
+		target = new File( filename );
+		temporary = new File( filename + ".tmp" );
+		out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temporary ), 1 << 16 ) );
+		in = new RandomAccessFile( temporary, "r" ).getChannel();
+		// the header is filled in by finish()
+		writeZeros( HEADER_SIZE );
+	}
+
+	/**
+	 * Adds a key and its value, unless the key was added before.
+	 *
+	 * @return true if the key is new
+	 */
+	public boolean add( String key, String value ) throws IOException {
+		if ( key.equals( lastKey ) ) {
+			return false;
+		}
+		int hash = hash( key );
+		int slotMask = slots.length - 1;
+		int slot = hash & slotMask;
+		int entry;
+		while ( ( entry = slots[slot] ) != 0 ) {
+			if ( hashes[entry - 1] == hash && isKey( offsets[entry - 1], key ) ) {
+				lastKey = key;
+				return false;
+			}
+			slot = ( slot + 1 ) & slotMask;
+		}
+
+		long recordSize = RECORD_HEADER_SIZE + 2L * ( key.length() + value.length() );
+		if ( recordSize > SEGMENT_SIZE ) {
+			throw new IOException( "Dictionary entry too large for key: " + key );
+		}
+		if ( count == MAX_ENTRIES ) {
+			throw new IOException( "Dictionary can't hold more than " + MAX_ENTRIES + " distinct keys" );
+		}
+		long remaining = SEGMENT_SIZE - ( position & SEGMENT_MASK );
+		if ( recordSize > remaining ) {
+			writeZeros( remaining );
+		}
+
+		if ( count == offsets.length ) {
+			offsets = Arrays.copyOf( offsets, count * 2 );
+			hashes = Arrays.copyOf( hashes, count * 2 );
+		}
+		offsets[count] = position;
+		hashes[count] = hash;
+		slots[slot] = ++count;
+		if ( count * 2 > slots.length ) {
+			rehash();
+		}
+		lastKey = key;
+
+		out.writeInt( hash );
+		out.writeInt( key.length() );
+		out.writeInt( value.length() );
+		out.writeChars( key );
+		out.writeChars( value );
+		position += recordSize;
+		return true;
+	}
+
+	/**
+	 * Writes the slot table and header and replaces the target file.
+	 *
+	 * @return the number of distinct keys in the dictionary
+	 */
+	public int finish() throws IOException {
+		writeZeros( ( 8 - ( position & 7 ) ) & 7 );
+		long slotTableOffset = position;
+		for ( int entry : slots ) {
+			out.writeLong( entry == 0 ? 0 : offsets[entry - 1] );
+		}
+		out.close();
+		out = null;
+		in.close();
+		in = null;
+
+		RandomAccessFile file = new RandomAccessFile( temporary, "rw" );
+		try {
+			file.writeInt( MAGIC );
+			file.writeInt( VERSION );
+			file.writeInt( count );
+			file.writeInt( slots.length );
+			file.writeLong( slotTableOffset );
+			file.getChannel().force( true );
+		} finally {
+			file.close();
+		}
+
+		// the rename replaces the target atomically where the platform allows it, only where it can't the target
+		// is deleted first
+		if ( !temporary.renameTo( target ) ) {
+			if ( target.exists() && !target.delete() ) {
+				throw new IOException( "Unable to replace dictionary file: " + target.getPath() );
+			}
+			if ( !temporary.renameTo( target ) ) {
+				throw new IOException( "Unable to move dictionary file into place: " + target.getPath() );
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Discards everything written so far, the target file is left untouched.
+	 */
+	public void abort() {
+		try {
+			if ( out != null ) {
+				out.close();
+			}
+			if ( in != null ) {
+				in.close();
+			}
+		} catch ( IOException e ) {
+			// nothing to do, the file is deleted anyway
+		}
+		out = null;
+		in = null;
+		temporary.delete();
+	}
+
+	/**
+	 * @return true if the record at the offset has the key
+	 */
+	private boolean isKey( long offset, String key ) throws IOException {
+		if ( offset >= flushedPosition ) {
+			out.flush();
+			flushedPosition = position;
+		}
+
+		// the key length and the key, the value length in between is skipped
+		int size = 8 + 2 * key.length();
+		if ( keyBuffer.capacity() < size ) {
+			keyBuffer = ByteBuffer.allocate( Math.max( size, keyBuffer.capacity() * 2 ) );
+		}
+		keyBuffer.clear();
+		keyBuffer.limit( size );
+		while ( keyBuffer.hasRemaining() ) {
+			// a record with a shorter key may end the file before the buffer is full, its length tells anyway
+			if ( in.read( keyBuffer, offset + 4 + keyBuffer.position() ) < 0 ) {
+				break;
+			}
+		}
+		if ( keyBuffer.position() < 4 || keyBuffer.getInt( 0 ) != key.length() ) {
+			return false;
+		}
+		for ( int i = 0; i < key.length(); i++ ) {
+			if ( keyBuffer.getChar( 8 + 2 * i ) != key.charAt( i ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Doubles the table, keeping the load factor at or below one half.
+	 */
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		int slotMask = slots.length - 1;
+		for ( int entry = 0; entry < count; entry++ ) {
+			int slot = hashes[entry] & slotMask;
+			while ( slots[slot] != 0 ) {
+				slot = ( slot + 1 ) & slotMask;
+			}
+			slots[slot] = entry + 1;
+		}
+	}
+
+	private void writeZeros( long n ) throws IOException {
+		byte[] zeros = new byte[(int) Math.min( n, 1 << 16 )];
+		for ( long left = n; left > 0; left -= zeros.length ) {
+			out.write( zeros, 0, (int) Math.min( left, zeros.length ) );
+		}
+		position += n;
+	}
+}
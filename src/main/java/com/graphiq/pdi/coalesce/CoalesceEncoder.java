@@ -0,0 +1,154 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Replaces the values of an output field by Integer codes and writes the codes with their values to a
+ * dictionary file, so downstream steps and bulk loads move a number instead of the String.
+ *
+ * Codes are handed out from 1 on in the order the values first occur. The values are kept in an
+ * open-addressing table keyed by their hash in an int array, the slots hold the code, so a lookup compares
+ * ints until the hash matches and the heap holds one String per distinct value. {@link #finish()} writes
+ * the dictionary as CSV with a header, e.g.
+ *
+ * <pre>
+ *   code,value
+ *   1,"Germany"
+ *   2,"United States"
+ * </pre>
+ *
+ * to a temporary file next to the target first, so readers never see a partial file.
+ */
+class CoalesceEncoder {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final File target;
+
+	/**
+	 * the slots hold code + 1 of their value and its hash, 0 marks an empty slot
+	 */
+	private int[] slotCodes = new int[INITIAL_CAPACITY * 2];
+	private int[] slotHashes = new int[INITIAL_CAPACITY * 2];
+	private String[] values = new String[INITIAL_CAPACITY];
+	private int count;
+
+	CoalesceEncoder( String filename ) {
+		target = new File( filename );
+	}
+
+	/**
+	 * @return the code of the value, null for null
+	 */
+	Long encode( String value ) {
+		if ( value == null ) {
+			return null;
+		}
+		int hash = value.hashCode();
+		int slotMask = slotCodes.length - 1;
+		int slot = mix( hash ) & slotMask;
+		int code;
+		while ( ( code = slotCodes[slot] ) != 0 ) {
+			if ( slotHashes[slot] == hash && values[code - 1].equals( value ) ) {
+				return Long.valueOf( code );
+			}
+			slot = ( slot + 1 ) & slotMask;
+		}
+
+		if ( count == values.length ) {
+			values = Arrays.copyOf( values, count * 2 );
+		}
+		values[count++] = value;
+		slotCodes[slot] = count;
+		slotHashes[slot] = hash;
+		if ( count * 2 > slotCodes.length ) {
+			rehash();
+		}
+		return Long.valueOf( count );
+	}
+
+	/**
+	 * @return the number of distinct values encoded so far
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Writes the dictionary and replaces the target file.
+	 */
+	void finish() throws IOException {
+		File temporary = new File( target.getPath() + ".tmp" );
+		Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( temporary ), "UTF-8" ), 1 << 16 );
+		try {
+			out.write( "code,value\n" );
+			for ( int i = 0; i < count; i++ ) {
+				out.write( String.valueOf( i + 1 ) );
+				out.write( ",\"" );
+				out.write( values[i].replace( "\"", "\"\"" ) );
+				out.write( "\"\n" );
+			}
+		} finally {
+			out.close();
+		}
+
+		if ( target.exists() && !target.delete() ) {
+			temporary.delete();
+			throw new IOException( "Unable to replace encoding dictionary file: " + target.getPath() );
+		}
+		if ( !temporary.renameTo( target ) ) {
+			throw new IOException( "Unable to move encoding dictionary file into place: " + target.getPath() );
+		}
+	}
+
+	/**
+	 * Doubles the table, keeping the load factor at or below one half.
+	 */
+	private void rehash() {
+		int[] oldCodes = slotCodes;
+		int[] oldHashes = slotHashes;
+		slotCodes = new int[oldCodes.length * 2];
+		slotHashes = new int[oldCodes.length * 2];
+		int slotMask = slotCodes.length - 1;
+		for ( int i = 0; i < oldCodes.length; i++ ) {
+			if ( oldCodes[i] != 0 ) {
+				int slot = mix( oldHashes[i] ) & slotMask;
+				while ( slotCodes[slot] != 0 ) {
+					slot = ( slot + 1 ) & slotMask;
+				}
+				slotCodes[slot] = oldCodes[i];
+				slotHashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the String hash, similar values differ in their low bits only.
+	 */
+	private static int mix( int hash ) {
+		int h = hash * 0x9E3779B9;
+		return h ^ ( h >>> 16 );
+	}
+}
@@ -0,0 +1,486 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * A candidate computed from the input fields instead of naming one, written with a leading = in Field A-C:
+ *
+ * <pre>
+ *   =trim(phone)              field value without surrounding blanks
+ *   =substr(zip, 1, 5)        5 characters from the first one on, the length can be left out
+ *   =concat(area, '-', phone) the parts that aren't null, null if all are
+ *   ='n/a'                    a constant, quotes inside are doubled
+ *   =json(payload, '$.a.b[0]') the value at a JSON path of a field holding JSON, see {@link CoalesceJsonPath}
+ * </pre>
+ *
+ * Field names that aren't plain identifiers are written in brackets, e.g. [home phone]. Expressions are
+ * parsed once into a tree of nodes which the plan binds to the input layout, values are Strings. The
+ * reducers only evaluate an expression when its candidate is reached.
+ */
+abstract class CoalesceExpression {
+
+	private static Class<?> PKG = CoalesceMeta.class; // for i18n purposes
+
+	static final String PREFIX = "=";
+
+	static boolean isExpression( String candidate ) {
+		return candidate != null && candidate.startsWith( PREFIX );
+	}
+
+	/**
+	 * @param candidate the candidate including the leading =
+	 */
+	static CoalesceExpression parse( String candidate ) throws KettleException {
+		return new Parser( candidate ).parse();
+	}
+
+	/**
+	 * @return an expression reading an input field
+	 */
+	static CoalesceExpression field( String name ) {
+		return new Field( name );
+	}
+
+	/**
+	 * @return an expression picking the first element of a delimited list that isn't empty or a sentinel
+	 */
+	static CoalesceExpression firstElement( CoalesceExpression list, String delimiter, String[] sentinels, boolean trim ) {
+		return new FirstElement( list, delimiter, sentinels, trim );
+	}
+
+	/**
+	 * @return the value of the expression for a row, null if it has none
+	 */
+	abstract String evaluate( Object[] r ) throws KettleValueException;
+
+	/**
+	 * Resolves the fields the expression reads to the indexes of an input layout, missing fields are null.
+	 */
+	abstract void bind( RowMetaInterface inputRowMeta );
+
+	abstract void collectFieldNames( List<String> fieldNames );
+
+	/**
+	 * @return the names of the fields the expression reads
+	 */
+	List<String> getFieldNames() {
+		List<String> fieldNames = new ArrayList<String>();
+		collectFieldNames( fieldNames );
+		return fieldNames;
+	}
+
+	private static class Constant extends CoalesceExpression {
+		private final String value;
+
+		Constant( String value ) {
+			this.value = value;
+		}
+
+		@Override
+		String evaluate( Object[] r ) {
+			return value;
+		}
+
+		@Override
+		void bind( RowMetaInterface inputRowMeta ) {
+		}
+
+		@Override
+		void collectFieldNames( List<String> fieldNames ) {
+		}
+	}
+
+	private static class Field extends CoalesceExpression {
+		private final String name;
+		private int index = -1;
+		private ValueMetaInterface valueMeta;
+
+		Field( String name ) {
+			this.name = name;
+		}
+
+		@Override
+		String evaluate( Object[] r ) throws KettleValueException {
+			if ( index < 0 || r[index] == null ) {
+				return null;
+			}
+			return valueMeta.getString( r[index] );
+		}
+
+		@Override
+		void bind( RowMetaInterface inputRowMeta ) {
+			index = inputRowMeta.indexOfValue( name );
+			valueMeta = index < 0 ? null : inputRowMeta.getValueMeta( index );
+		}
+
+		@Override
+		void collectFieldNames( List<String> fieldNames ) {
+			fieldNames.add( name );
+		}
+	}
+
+	private abstract static class Function extends CoalesceExpression {
+		final CoalesceExpression[] arguments;
+
+		Function( CoalesceExpression[] arguments ) {
+			this.arguments = arguments;
+		}
+
+		@Override
+		void bind( RowMetaInterface inputRowMeta ) {
+			for ( CoalesceExpression argument : arguments ) {
+				argument.bind( inputRowMeta );
+			}
+		}
+
+		@Override
+		void collectFieldNames( List<String> fieldNames ) {
+			for ( CoalesceExpression argument : arguments ) {
+				argument.collectFieldNames( fieldNames );
+			}
+		}
+	}
+
+	private static class Trim extends Function {
+		Trim( CoalesceExpression argument ) {
+			super( new CoalesceExpression[] { argument } );
+		}
+
+		@Override
+		String evaluate( Object[] r ) throws KettleValueException {
+			String value = arguments[0].evaluate( r );
+			return value == null ? null : Const.trim( value );
+		}
+	}
+
+	private static class Substr extends Function {
+		/**
+		 * the length of substr( value, start ), explicit lengths can't be negative
+		 */
+		static final int TO_END = -1;
+
+		private final int start;
+		private final int length;
+
+		/**
+		 * @param start  the first character, counting from 1
+		 * @param length the number of characters, TO_END for the rest of the value
+		 */
+		Substr( CoalesceExpression argument, int start, int length ) {
+			super( new CoalesceExpression[] { argument } );
+			this.start = Math.max( start - 1, 0 );
+			this.length = length;
+		}
+
+		@Override
+		String evaluate( Object[] r ) throws KettleValueException {
+			String value = arguments[0].evaluate( r );
+			if ( value == null ) {
+				return null;
+			}
+			int from = Math.min( start, value.length() );
+			int to = length == TO_END ? value.length() : Math.min( from + length, value.length() );
+			return value.substring( from, to );
+		}
+	}
+
+	private static class Concat extends Function {
+		Concat( CoalesceExpression[] arguments ) {
+			super( arguments );
+		}
+
+		@Override
+		String evaluate( Object[] r ) throws KettleValueException {
+			StringBuilder result = null;
+			for ( CoalesceExpression argument : arguments ) {
+				String value = argument.evaluate( r );
+				if ( value != null ) {
+					if ( result == null ) {
+						result = new StringBuilder();
+					}
+					result.append( value );
+				}
+			}
+			return result == null ? null : result.toString();
+		}
+	}
+
+	private static class Json extends Function {
+		private final CoalesceJsonPath path;
+
+		/**
+		 * the path is compiled once with the expression, every row only walks its document
+		 */
+		Json( CoalesceExpression argument, CoalesceJsonPath path ) {
+			super( new CoalesceExpression[] { argument } );
+			this.path = path;
+		}
+
+		@Override
+		String evaluate( Object[] r ) throws KettleValueException {
+			String json = arguments[0].evaluate( r );
+			return json == null ? null : path.evaluate( json );
+		}
+	}
+
+	/**
+	 * Reads a list like |555-1234|555-9876 in place: the elements are found with indexOf and checked as regions
+	 * of the value, only the element that is returned becomes a String of its own.
+	 */
+	private static class FirstElement extends Function {
+		private final String delimiter;
+		private final String[] sentinels;
+		private final boolean trim;
+
+		FirstElement( CoalesceExpression list, String delimiter, String[] sentinels, boolean trim ) {
+			super( new CoalesceExpression[] { list } );
+			this.delimiter = delimiter;
+			this.sentinels = sentinels;
+			this.trim = trim;
+		}
+
+		@Override
+		String evaluate( Object[] r ) throws KettleValueException {
+			String list = arguments[0].evaluate( r );
+			if ( list == null ) {
+				return null;
+			}
+			int length = list.length();
+			int start = 0;
+			while ( start <= length ) {
+				int end = list.indexOf( delimiter, start );
+				if ( end < 0 ) {
+					end = length;
+				}
+				int from = start;
+				int to = end;
+				if ( trim ) {
+					while ( from < to && list.charAt( from ) <= ' ' ) {
+						from++;
+					}
+					while ( to > from && list.charAt( to - 1 ) <= ' ' ) {
+						to--;
+					}
+				}
+				if ( from < to && !isSentinel( list, from, to ) ) {
+					return from == 0 && to == length ? list : list.substring( from, to );
+				}
+				start = end + delimiter.length();
+			}
+			return null;
+		}
+
+		private boolean isSentinel( String list, int from, int to ) {
+			for ( String sentinel : sentinels ) {
+				if ( sentinel.length() == to - from && list.regionMatches( from, sentinel, 0, to - from ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Recursive descent over the expression text.
+	 */
+	private static class Parser {
+		private final String text;
+		private int position;
+
+		Parser( String candidate ) {
+			this.text = candidate;
+			this.position = PREFIX.length();
+		}
+
+		CoalesceExpression parse() throws KettleException {
+			CoalesceExpression expression = parseExpression();
+			skipBlanks();
+			if ( position < text.length() ) {
+				throw error();
+			}
+			return expression;
+		}
+
+		private CoalesceExpression parseExpression() throws KettleException {
+			skipBlanks();
+			if ( position >= text.length() ) {
+				throw error();
+			}
+			char c = text.charAt( position );
+			if ( c == '\'' ) {
+				return new Constant( parseString() );
+			}
+			if ( c == '[' ) {
+				int end = text.indexOf( ']', position );
+				if ( end < 0 ) {
+					throw error();
+				}
+				String name = text.substring( position + 1, end );
+				position = end + 1;
+				return new Field( name );
+			}
+			if ( c == '-' || Character.isDigit( c ) ) {
+				return new Constant( String.valueOf( parseInteger() ) );
+			}
+			if ( !Character.isJavaIdentifierStart( c ) ) {
+				throw error();
+			}
+
+			int start = position;
+			while ( position < text.length()
+				&& ( Character.isJavaIdentifierPart( text.charAt( position ) ) || text.charAt( position ) == '.' ) ) {
+				position++;
+			}
+			String name = text.substring( start, position );
+			skipBlanks();
+			if ( position < text.length() && text.charAt( position ) == '(' ) {
+				return parseFunction( name );
+			}
+			return new Field( name );
+		}
+
+		private CoalesceExpression parseFunction( String name ) throws KettleException {
+			position++;
+			List<CoalesceExpression> arguments = new ArrayList<CoalesceExpression>();
+			List<Integer> argumentStarts = new ArrayList<Integer>();
+			skipBlanks();
+			if ( position < text.length() && text.charAt( position ) == ')' ) {
+				position++;
+			} else {
+				while ( true ) {
+					skipBlanks();
+					argumentStarts.add( position );
+					arguments.add( parseExpression() );
+					skipBlanks();
+					if ( position >= text.length() ) {
+						throw error();
+					}
+					char c = text.charAt( position++ );
+					if ( c == ')' ) {
+						break;
+					}
+					if ( c != ',' ) {
+						position--;
+						throw error();
+					}
+				}
+			}
+
+			String function = name.toLowerCase();
+			if ( function.equals( "trim" ) && arguments.size() == 1 ) {
+				return new Trim( arguments.get( 0 ) );
+			}
+			if ( ( function.equals( "substr" ) || function.equals( "substring" ) )
+				&& ( arguments.size() == 2 || arguments.size() == 3 ) ) {
+				int from = getIntegerArgument( arguments, argumentStarts, 1 );
+				int length = Substr.TO_END;
+				if ( arguments.size() == 3 ) {
+					length = getIntegerArgument( arguments, argumentStarts, 2 );
+					if ( length < 0 ) {
+						position = argumentStarts.get( 2 );
+						throw error();
+					}
+				}
+				return new Substr( arguments.get( 0 ), from, length );
+			}
+			if ( function.equals( "json" ) && arguments.size() == 2 ) {
+				CoalesceExpression path = arguments.get( 1 );
+				if ( !( path instanceof Constant ) ) {
+					position = argumentStarts.get( 1 );
+					throw error();
+				}
+				return new Json( arguments.get( 0 ), CoalesceJsonPath.compile( ( (Constant) path ).value ) );
+			}
+			if ( function.equals( "concat" ) && !arguments.isEmpty() ) {
+				return new Concat( arguments.toArray( new CoalesceExpression[arguments.size()] ) );
+			}
+			throw new KettleException( BaseMessages.getString( PKG, "CoalesceExpression.Exception.UnknownFunction",
+				name, String.valueOf( arguments.size() ), text ) );
+		}
+
+		/**
+		 * positions and lengths are integer constants, so they are known when the expression is parsed
+		 */
+		private int getIntegerArgument( List<CoalesceExpression> arguments, List<Integer> argumentStarts, int index )
+			throws KettleException {
+			CoalesceExpression argument = arguments.get( index );
+			if ( argument instanceof Constant ) {
+				try {
+					return Integer.parseInt( ( (Constant) argument ).value );
+				} catch ( NumberFormatException e ) {
+					// reported below
+				}
+			}
+			position = argumentStarts.get( index );
+			throw error();
+		}
+
+		private String parseString() throws KettleException {
+			StringBuilder value = new StringBuilder();
+			position++;
+			while ( position < text.length() ) {
+				char c = text.charAt( position++ );
+				if ( c != '\'' ) {
+					value.append( c );
+				} else if ( position < text.length() && text.charAt( position ) == '\'' ) {
+					value.append( c );
+					position++;
+				} else {
+					return value.toString();
+				}
+			}
+			throw error();
+		}
+
+		private int parseInteger() throws KettleException {
+			int start = position;
+			if ( text.charAt( position ) == '-' ) {
+				position++;
+			}
+			while ( position < text.length() && Character.isDigit( text.charAt( position ) ) ) {
+				position++;
+			}
+			try {
+				return Integer.parseInt( text.substring( start, position ) );
+			} catch ( NumberFormatException e ) {
+				position = start;
+				throw error();
+			}
+		}
+
+		private void skipBlanks() {
+			while ( position < text.length() && Character.isWhitespace( text.charAt( position ) ) ) {
+				position++;
+			}
+		}
+
+		private KettleException error() {
+			return new KettleException( BaseMessages.getString( PKG, "CoalesceExpression.Exception.Syntax",
+				text, String.valueOf( position + 1 ) ) );
+		}
+	}
+}
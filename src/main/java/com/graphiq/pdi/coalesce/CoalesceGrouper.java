@@ -0,0 +1,379 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Coalesces the rows with equal keys of an unsorted input into one row per key, every output field taking the
+ * first non null candidate over the key's rows in the order they came in.
+ *
+ * The rows are hash partitioned on their keys to worker threads. Every worker owns the groups of its keys in a
+ * private open-addressing table, so the rows of a key meet in one thread and the tables need no locking. The
+ * reading thread hands the rows over in batches and only hashes the keys, the workers look up the groups and
+ * reduce the candidates. A worker reduces a group's row only for the fields that have no value yet, groups
+ * complete in their first rows cost a lookup per row afterwards. Every worker has its own plans, because plans
+ * keep state per row, and its own copy of the input layout, because value metas cache their formats.
+ *
+ * Once all rows are added, {@link #finish()} waits for the workers, and the groups are read partition by
+ * partition, in the order of their first row within a partition.
+ */
+class CoalesceGrouper {
+
+	private static Class<?> PKG = CoalesceMeta.class; // for i18n purposes
+
+	static final int BATCH_SIZE = 1024;
+	private static final int QUEUED_BATCHES = 16;
+
+	private final Partition[] partitions;
+
+	/**
+	 * the batch being filled for every partition
+	 */
+	private final Batch[] batches;
+
+	CoalesceGrouper( String name, int nrPartitions ) {
+		partitions = new Partition[nrPartitions];
+		batches = new Batch[nrPartitions];
+		for ( int i = 0; i < nrPartitions; i++ ) {
+			partitions[i] = new Partition();
+			batches[i] = new Batch();
+			partitions[i].thread = new Thread( partitions[i], name + " group partition " + i );
+			partitions[i].thread.setDaemon( true );
+			partitions[i].thread.start();
+		}
+	}
+
+	int getNrPartitions() {
+		return partitions.length;
+	}
+
+	/**
+	 * @return the partition of the rows with a key hash
+	 */
+	int getPartition( int hash ) {
+		int h = hash * 0x9E3779B9;
+		return ( ( h ^ ( h >>> 16 ) ) & Integer.MAX_VALUE ) % partitions.length;
+	}
+
+	/**
+	 * @return the hash of the key values of a row
+	 */
+	static int hashKeys( RowMetaInterface rowMeta, Object[] r, int[] keyIndexes ) throws KettleValueException {
+		int hash = 1;
+		for ( int keyIndex : keyIndexes ) {
+			hash = hash * 31 + rowMeta.getValueMeta( keyIndex ).hashCode( r[keyIndex] );
+		}
+		return hash;
+	}
+
+	/**
+	 * Adds a row to its partition, the plan must have been compiled for that partition alone.
+	 */
+	void add( int partition, int hash, int[] keyIndexes, CoalescePlan plan, Object[] r ) throws KettleException {
+		Batch batch = batches[partition];
+		int n = batch.size++;
+		batch.rows[n] = r;
+		batch.plans[n] = plan;
+		batch.keyIndexes[n] = keyIndexes;
+		batch.hashes[n] = hash;
+		if ( batch.size == BATCH_SIZE ) {
+			hand( partition, batch );
+			batches[partition] = new Batch();
+		}
+	}
+
+	/**
+	 * Hands the rows left over to the workers and waits until all rows are grouped.
+	 */
+	void finish() throws KettleException {
+		for ( int i = 0; i < partitions.length; i++ ) {
+			if ( batches[i].size > 0 ) {
+				hand( i, batches[i] );
+			}
+			hand( i, Batch.END );
+		}
+		for ( Partition partition : partitions ) {
+			try {
+				partition.thread.join();
+			} catch ( InterruptedException e ) {
+				abort();
+				throw new KettleException( e );
+			}
+			checkFailure( partition );
+		}
+	}
+
+	/**
+	 * Stops the workers, the groups are discarded.
+	 */
+	void abort() {
+		for ( Partition partition : partitions ) {
+			partition.thread.interrupt();
+		}
+	}
+
+	int getNrGroups( int partition ) {
+		return partitions[partition].count;
+	}
+
+	/**
+	 * @return the output row of a group, output fields without a non null candidate are still null
+	 */
+	Object[] getGroupRow( int partition, int group ) {
+		return partitions[partition].groupRows[group];
+	}
+
+	/**
+	 * @return the plan of the first row of a group, it has the output layout of the group's row
+	 */
+	CoalescePlan getGroupPlan( int partition, int group ) {
+		return partitions[partition].groupPlans[group];
+	}
+
+	private void hand( int partition, Batch batch ) throws KettleException {
+		Partition p = partitions[partition];
+		try {
+			// a worker that failed takes no more batches, don't wait for it forever
+			while ( !p.queue.offer( batch, 100, TimeUnit.MILLISECONDS ) ) {
+				checkFailure( p );
+			}
+		} catch ( InterruptedException e ) {
+			abort();
+			throw new KettleException( e );
+		}
+	}
+
+	private static void checkFailure( Partition partition ) throws KettleException {
+		if ( partition.failure instanceof KettleException ) {
+			throw (KettleException) partition.failure;
+		}
+		if ( partition.failure != null ) {
+			throw new KettleException( partition.failure );
+		}
+	}
+
+	/**
+	 * Rows handed to a worker at once, so the threads meet once per batch instead of once per row.
+	 */
+	private static class Batch {
+
+		static final Batch END = new Batch();
+
+		final Object[][] rows = new Object[BATCH_SIZE][];
+		final CoalescePlan[] plans = new CoalescePlan[BATCH_SIZE];
+		final int[][] keyIndexes = new int[BATCH_SIZE][];
+		final int[] hashes = new int[BATCH_SIZE];
+		int size;
+	}
+
+	/**
+	 * The worker of a partition and its groups. The slots hold group + 1 of their group and its key hash,
+	 * 0 marks an empty slot.
+	 */
+	private static class Partition implements Runnable {
+
+		private static final int INITIAL_CAPACITY = 1024;
+
+		final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>( QUEUED_BATCHES );
+		Thread thread;
+		volatile Throwable failure;
+
+		private int[] slotGroups = new int[INITIAL_CAPACITY * 2];
+		private int[] slotHashes = new int[INITIAL_CAPACITY * 2];
+
+		/**
+		 * per group the output row, the plan and key indexes of its first row, its key values and the number
+		 * of output fields without a value yet
+		 */
+		Object[][] groupRows = new Object[INITIAL_CAPACITY][];
+		CoalescePlan[] groupPlans = new CoalescePlan[INITIAL_CAPACITY];
+		private Object[][] groupKeys = new Object[INITIAL_CAPACITY][];
+		private int[][] groupKeyIndexes = new int[INITIAL_CAPACITY][];
+		private int[] groupMissing = new int[INITIAL_CAPACITY];
+		int count;
+
+		@Override
+		public void run() {
+			try {
+				while ( true ) {
+					Batch batch = queue.take();
+					if ( batch == Batch.END ) {
+						return;
+					}
+					for ( int i = 0; i < batch.size; i++ ) {
+						add( batch.hashes[i], batch.keyIndexes[i], batch.plans[i], batch.rows[i] );
+					}
+				}
+			} catch ( InterruptedException e ) {
+				failure = e;
+			} catch ( Throwable t ) {
+				failure = t;
+			}
+		}
+
+		private void add( int hash, int[] keyIndexes, CoalescePlan plan, Object[] r ) throws KettleValueException {
+			int group = find( hash, keyIndexes, plan, r );
+			if ( group < 0 ) {
+				group = create( hash, keyIndexes, plan, r );
+			}
+			if ( groupMissing[group] == 0 ) {
+				return;
+			}
+
+			Object[] groupRow = groupRows[group];
+			CoalescePlan.OutputField[] outputFields = groupPlans[group].outputFields;
+			if ( plan.scan != null ) {
+				plan.scan.scan( r );
+			}
+			for ( int i = 0; i < outputFields.length; i++ ) {
+				int outputIndex = outputFields[i].outputIndex;
+				if ( groupRow[outputIndex] != null ) {
+					continue;
+				}
+				int inputIndex = plan.outputFields[i].reducer.reduce( r );
+				if ( inputIndex >= 0 ) {
+					groupRow[outputIndex] = convert( plan, r, inputIndex, outputFields[i].valueMeta );
+					if ( groupRow[outputIndex] != null ) {
+						groupMissing[group]--;
+					}
+				}
+			}
+		}
+
+		private static Object convert( CoalescePlan plan, Object[] r, int inputIndex, ValueMetaInterface vm ) throws KettleValueException {
+			Object value = plan.getCandidateValue( r, inputIndex );
+			ValueMetaInterface candidateMeta = plan.getCandidateMeta( inputIndex );
+			try {
+				return vm.convertData( candidateMeta, value );
+			} catch ( KettleValueException e ) {
+				throw new KettleValueException( BaseMessages.getString( PKG, "CoalesceStep.Log.DataIncompatibleError",
+					value.toString(), candidateMeta.toString(), vm.toString() ), e );
+			}
+		}
+
+		/**
+		 * @return the group of the row's keys, -1 if there is none yet
+		 */
+		private int find( int hash, int[] keyIndexes, CoalescePlan plan, Object[] r ) throws KettleValueException {
+			int slotMask = slotGroups.length - 1;
+			int slot = mix( hash ) & slotMask;
+			int group;
+			while ( ( group = slotGroups[slot] ) != 0 ) {
+				if ( slotHashes[slot] == hash && isKey( group - 1, keyIndexes, plan, r ) ) {
+					return group - 1;
+				}
+				slot = ( slot + 1 ) & slotMask;
+			}
+			return -1;
+		}
+
+		private boolean isKey( int group, int[] keyIndexes, CoalescePlan plan, Object[] r ) throws KettleValueException {
+			RowMetaInterface groupMeta = groupPlans[group].inputRowMeta;
+			int[] groupIndexes = groupKeyIndexes[group];
+			Object[] keys = groupKeys[group];
+			for ( int k = 0; k < keyIndexes.length; k++ ) {
+				if ( groupMeta.getValueMeta( groupIndexes[k] ).compare( keys[k],
+					plan.inputRowMeta.getValueMeta( keyIndexes[k] ), r[keyIndexes[k]] ) != 0 ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Creates the group of a row's keys, its output row starts with the fields passed down from that row.
+		 */
+		private int create( int hash, int[] keyIndexes, CoalescePlan plan, Object[] r ) {
+			if ( count == groupRows.length ) {
+				int capacity = count * 2;
+				groupRows = Arrays.copyOf( groupRows, capacity );
+				groupPlans = Arrays.copyOf( groupPlans, capacity );
+				groupKeys = Arrays.copyOf( groupKeys, capacity );
+				groupKeyIndexes = Arrays.copyOf( groupKeyIndexes, capacity );
+				groupMissing = Arrays.copyOf( groupMissing, capacity );
+			}
+			int group = count++;
+
+			Object[] groupRow = RowDataUtil.allocateRowData( plan.outputRowMeta.size() );
+			for ( int i = 0; i < plan.passThroughIndexes.length; i++ ) {
+				groupRow[i] = r[plan.passThroughIndexes[i]];
+			}
+			Object[] keys = new Object[keyIndexes.length];
+			for ( int k = 0; k < keyIndexes.length; k++ ) {
+				keys[k] = r[keyIndexes[k]];
+			}
+			groupRows[group] = groupRow;
+			groupPlans[group] = plan;
+			groupKeys[group] = keys;
+			groupKeyIndexes[group] = keyIndexes;
+			groupMissing[group] = plan.outputFields.length;
+
+			int slotMask = slotGroups.length - 1;
+			int slot = mix( hash ) & slotMask;
+			while ( slotGroups[slot] != 0 ) {
+				slot = ( slot + 1 ) & slotMask;
+			}
+			slotGroups[slot] = group + 1;
+			slotHashes[slot] = hash;
+			if ( count * 2 > slotGroups.length ) {
+				rehash();
+			}
+			return group;
+		}
+
+		/**
+		 * Doubles the table, keeping the load factor at or below one half.
+		 */
+		private void rehash() {
+			int[] oldGroups = slotGroups;
+			int[] oldHashes = slotHashes;
+			slotGroups = new int[oldGroups.length * 2];
+			slotHashes = new int[oldGroups.length * 2];
+			int slotMask = slotGroups.length - 1;
+			for ( int i = 0; i < oldGroups.length; i++ ) {
+				if ( oldGroups[i] != 0 ) {
+					int slot = mix( oldHashes[i] ) & slotMask;
+					while ( slotGroups[slot] != 0 ) {
+						slot = ( slot + 1 ) & slotMask;
+					}
+					slotGroups[slot] = oldGroups[i];
+					slotHashes[slot] = oldHashes[i];
+				}
+			}
+		}
+
+		/**
+		 * Spreads the key hash differently than the partitioning does, so the keys of a partition still fill
+		 * the whole table.
+		 */
+		private static int mix( int hash ) {
+			int h = hash * 0x85EBCA6B;
+			return h ^ ( h >>> 15 );
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded pool of the String values of one output field, so that rows with equal values share one instance
+ * downstream instead of carrying a copy each.
+ *
+ * Unlike String.intern() the pool belongs to the step copy and goes away with it. It keeps at most
+ * maxSize values and evicts the least recently used one when it is full, so a field with more distinct
+ * values than expected costs a lookup per row but no more memory. Every step copy has its own pools,
+ * no locking is needed.
+ */
+class CoalesceInternPool {
+
+	private final int maxSize;
+	private final Map<String, String> values;
+
+	private long lookups;
+	private long hits;
+	private long evictions;
+
+	/**
+	 * @param maxSize the number of distinct values kept, at least 1
+	 */
+	CoalesceInternPool( int maxSize ) {
+		this.maxSize = Math.max( maxSize, 1 );
+		// access order, so the eldest entry is the least recently used one
+		this.values = new LinkedHashMap<String, String>( Math.min( this.maxSize, 1024 ) * 4 / 3 + 1, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, String> eldest ) {
+				if ( size() > CoalesceInternPool.this.maxSize ) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the pooled instance equal to value, value itself if there is none yet
+	 */
+	String intern( String value ) {
+		if ( value == null ) {
+			return null;
+		}
+		lookups++;
+		String pooled = values.get( value );
+		if ( pooled != null ) {
+			hits++;
+			return pooled;
+		}
+		values.put( value, value );
+		return value;
+	}
+
+	int size() {
+		return values.size();
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	long getLookups() {
+		return lookups;
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the share of the values found in the pool, 0 before the first value
+	 */
+	double getHitRate() {
+		return lookups == 0 ? 0.0 : (double) hits / lookups;
+	}
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * A compiled JSON path like $.contact.phone, $.phones[0] or $['home phone'], read by the json() function of
+ * {@link CoalesceExpression}.
+ *
+ * The path is looked up in a single pass over the text without building a document: the members and
+ * elements before the one on the path are skipped over, and the lookup stops as soon as the value is
+ * found or an object or array ends without it. Strings are returned unescaped, numbers and booleans as
+ * written, objects and arrays as their JSON text. JSON null, a missing path and text that isn't valid
+ * JSON up to the point the lookup stopped are all null.
+ */
+class CoalesceJsonPath {
+
+	private static Class<?> PKG = CoalesceMeta.class; // for i18n purposes
+
+	/**
+	 * the member names of the steps, null for array steps, and the element indexes of the array steps
+	 */
+	private final String[] names;
+	private final int[] indexes;
+
+	private CoalesceJsonPath( String[] names, int[] indexes ) {
+		this.names = names;
+		this.indexes = indexes;
+	}
+
+	static CoalesceJsonPath compile( String path ) throws KettleException {
+		List<String> names = new ArrayList<String>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		String p = path.trim();
+		if ( !p.startsWith( "$" ) ) {
+			throw error( path );
+		}
+		int position = 1;
+		while ( position < p.length() ) {
+			char c = p.charAt( position );
+			if ( c == '.' ) {
+				int start = ++position;
+				while ( position < p.length() && p.charAt( position ) != '.' && p.charAt( position ) != '[' ) {
+					position++;
+				}
+				if ( position == start ) {
+					throw error( path );
+				}
+				names.add( p.substring( start, position ) );
+				indexes.add( -1 );
+			} else if ( c == '[' ) {
+				int end = p.indexOf( ']', position );
+				if ( end < 0 ) {
+					throw error( path );
+				}
+				String step = p.substring( position + 1, end ).trim();
+				if ( step.length() >= 2 && ( step.charAt( 0 ) == '\'' || step.charAt( 0 ) == '"' )
+					&& step.charAt( step.length() - 1 ) == step.charAt( 0 ) ) {
+					names.add( step.substring( 1, step.length() - 1 ) );
+					indexes.add( -1 );
+				} else {
+					try {
+						int index = Integer.parseInt( step );
+						if ( index < 0 ) {
+							throw error( path );
+						}
+						names.add( null );
+						indexes.add( index );
+					} catch ( NumberFormatException e ) {
+						throw error( path );
+					}
+				}
+				position = end + 1;
+			} else {
+				throw error( path );
+			}
+		}
+
+		int[] steps = new int[indexes.size()];
+		for ( int i = 0; i < steps.length; i++ ) {
+			steps[i] = indexes.get( i );
+		}
+		return new CoalesceJsonPath( names.toArray( new String[names.size()] ), steps );
+	}
+
+	private static KettleException error( String path ) {
+		return new KettleException( BaseMessages.getString( PKG, "CoalesceJsonPath.Exception.Syntax", path ) );
+	}
+
+	/**
+	 * @return the value at the path, null if there is none
+	 */
+	String evaluate( String json ) {
+		int position = skipBlanks( json, 0 );
+		for ( int i = 0; i < names.length && position >= 0; i++ ) {
+			position = names[i] != null ? findMember( json, position, names[i] ) : findElement( json, position, indexes[i] );
+		}
+		return position < 0 ? null : readValue( json, position );
+	}
+
+	/**
+	 * @return the position of the member's value in the object at position, -1 if there is none
+	 */
+	private static int findMember( String json, int position, String name ) {
+		if ( position >= json.length() || json.charAt( position ) != '{' ) {
+			return -1;
+		}
+		position = skipBlanks( json, position + 1 );
+		if ( position < json.length() && json.charAt( position ) == '}' ) {
+			return -1;
+		}
+		while ( position < json.length() && json.charAt( position ) == '"' ) {
+			int keyEnd = skipString( json, position );
+			if ( keyEnd < 0 ) {
+				return -1;
+			}
+			boolean found = isKey( json, position, keyEnd, name );
+			position = skipBlanks( json, keyEnd );
+			if ( position >= json.length() || json.charAt( position ) != ':' ) {
+				return -1;
+			}
+			position = skipBlanks( json, position + 1 );
+			if ( found ) {
+				return position;
+			}
+			position = skipValue( json, position );
+			if ( position < 0 ) {
+				return -1;
+			}
+			position = skipBlanks( json, position );
+			if ( position >= json.length() || json.charAt( position ) != ',' ) {
+				// the end of the object, or text that isn't JSON
+				return -1;
+			}
+			position = skipBlanks( json, position + 1 );
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the position of the element in the array at position, -1 if there is none
+	 */
+	private static int findElement( String json, int position, int index ) {
+		if ( position >= json.length() || json.charAt( position ) != '[' ) {
+			return -1;
+		}
+		position = skipBlanks( json, position + 1 );
+		if ( position < json.length() && json.charAt( position ) == ']' ) {
+			return -1;
+		}
+		for ( int i = 0; i < index; i++ ) {
+			position = skipValue( json, position );
+			if ( position < 0 ) {
+				return -1;
+			}
+			position = skipBlanks( json, position );
+			if ( position >= json.length() || json.charAt( position ) != ',' ) {
+				return -1;
+			}
+			position = skipBlanks( json, position + 1 );
+		}
+		return position;
+	}
+
+	/**
+	 * Compares the key between the quotes at start and end - 1 with a name, keys without escapes are
+	 * compared in place.
+	 */
+	private static boolean isKey( String json, int start, int end, String name ) {
+		int length = end - start - 2;
+		if ( json.indexOf( '\\', start + 1 ) < 0 || json.indexOf( '\\', start + 1 ) >= end ) {
+			return length == name.length() && json.regionMatches( start + 1, name, 0, length );
+		}
+		return name.equals( unescape( json, start, end ) );
+	}
+
+	private static String readValue( String json, int position ) {
+		if ( position >= json.length() ) {
+			return null;
+		}
+		int end = skipValue( json, position );
+		if ( end < 0 ) {
+			return null;
+		}
+		char c = json.charAt( position );
+		if ( c == '"' ) {
+			return unescape( json, position, end );
+		}
+		String value = json.substring( position, end );
+		return value.equals( "null" ) ? null : value;
+	}
+
+	/**
+	 * @return the position after the value at position, -1 if it isn't valid
+	 */
+	private static int skipValue( String json, int position ) {
+		if ( position >= json.length() ) {
+			return -1;
+		}
+		char c = json.charAt( position );
+		if ( c == '"' ) {
+			return skipString( json, position );
+		}
+		if ( c == '{' || c == '[' ) {
+			// only the nesting matters, strings are skipped as a whole so their brackets don't count
+			int depth = 0;
+			while ( position < json.length() ) {
+				c = json.charAt( position );
+				if ( c == '"' ) {
+					position = skipString( json, position );
+					if ( position < 0 ) {
+						return -1;
+					}
+					continue;
+				}
+				if ( c == '{' || c == '[' ) {
+					depth++;
+				} else if ( c == '}' || c == ']' ) {
+					if ( --depth == 0 ) {
+						return position + 1;
+					}
+				}
+				position++;
+			}
+			return -1;
+		}
+		int start = position;
+		while ( position < json.length() ) {
+			c = json.charAt( position );
+			if ( c == ',' || c == '}' || c == ']' || Character.isWhitespace( c ) ) {
+				break;
+			}
+			position++;
+		}
+		return position == start ? -1 : position;
+	}
+
+	/**
+	 * @return the position after the closing quote of the string at position, -1 if it isn't closed
+	 */
+	private static int skipString( String json, int position ) {
+		for ( position++; position < json.length(); position++ ) {
+			char c = json.charAt( position );
+			if ( c == '\\' ) {
+				position++;
+			} else if ( c == '"' ) {
+				return position + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the string between the quotes at start and end - 1 without its escapes
+	 */
+	private static String unescape( String json, int start, int end ) {
+		int first = json.indexOf( '\\', start + 1 );
+		if ( first < 0 || first >= end - 1 ) {
+			return json.substring( start + 1, end - 1 );
+		}
+		StringBuilder value = new StringBuilder( end - start );
+		value.append( json, start + 1, first );
+		for ( int i = first; i < end - 1; i++ ) {
+			char c = json.charAt( i );
+			if ( c != '\\' || i + 1 >= end - 1 ) {
+				value.append( c );
+				continue;
+			}
+			c = json.charAt( ++i );
+			switch ( c ) {
+				case 'b':
+					value.append( '\b' );
+					break;
+				case 'f':
+					value.append( '\f' );
+					break;
+				case 'n':
+					value.append( '\n' );
+					break;
+				case 'r':
+					value.append( '\r' );
+					break;
+				case 't':
+					value.append( '\t' );
+					break;
+				case 'u':
+					if ( i + 4 < end - 1 ) {
+						try {
+							value.append( (char) Integer.parseInt( json.substring( i + 1, i + 5 ), 16 ) );
+							i += 4;
+							break;
+						} catch ( NumberFormatException e ) {
+							// kept as written
+						}
+					}
+					value.append( "\\u" );
+					break;
+				default:
+					value.append( c );
+			}
+		}
+		return value.toString();
+	}
+
+	private static int skipBlanks( String json, int position ) {
+		while ( position < json.length() && Character.isWhitespace( json.charAt( position ) ) ) {
+			position++;
+		}
+		return position;
+	}
+}
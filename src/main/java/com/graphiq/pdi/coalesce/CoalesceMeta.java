@@ -16,8 +16,14 @@
 
 package com.graphiq.pdi.coalesce;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.pentaho.di.core.CheckResult;
 import org.pentaho.di.core.CheckResultInterface;
@@ -25,6 +31,7 @@ import org.pentaho.di.core.Const;
 import org.pentaho.di.core.annotations.Step;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.exception.KettleXMLException;
@@ -41,9 +48,16 @@ import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepIOMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInjectionInterface;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface.StreamType;
 import org.pentaho.metastore.api.IMetaStore;
 import org.w3c.dom.Node;
 
@@ -71,6 +85,97 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	private static final int STRING_AS_DEFAULT = -1;
 	static final int noInputFields = 3;
 
+	/**
+	 * reduction strategies, how the output value is picked from the non null candidates
+	 */
+	static final int STRATEGY_FIRST = 0;
+	static final int STRATEGY_LAST = 1;
+	static final int STRATEGY_MIN = 2;
+	static final int STRATEGY_MAX = 3;
+	static final int STRATEGY_LONGEST = 4;
+	static final int STRATEGY_MAJORITY = 5;
+
+	static final String[] strategyCodes = { "first", "last", "min", "max", "longest", "majority" };
+
+	static final String[] strategyDescriptions = {
+		BaseMessages.getString( PKG, "CoalesceMeta.Strategy.First" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Strategy.Last" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Strategy.Min" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Strategy.Max" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Strategy.Longest" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Strategy.Majority" ) };
+
+	/**
+	 * orders of the input fields matched by a candidate pattern
+	 */
+	static final int ORDER_INPUT = 0;
+	static final int ORDER_NAME = 1;
+	static final int ORDER_NAME_DESC = 2;
+
+	static final String[] orderCodes = { "input", "name", "name_desc" };
+
+	static final String[] orderDescriptions = {
+		BaseMessages.getString( PKG, "CoalesceMeta.CandidateOrder.Input" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.CandidateOrder.Name" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.CandidateOrder.NameDesc" ) };
+
+	/**
+	 * routes of the rows when they are sent to target steps by the winner of one output field: one per
+	 * input field slot, one for fields matched by the candidate pattern, one for rows where all candidates
+	 * were null and one for the rows of routes without a target
+	 */
+	static final int ROUTE_PATTERN = noInputFields;
+	static final int ROUTE_NULL = noInputFields + 1;
+	static final int ROUTE_DEFAULT = noInputFields + 2;
+	static final int nrRoutes = noInputFields + 3;
+
+	static final String[] routeCodes = { "a", "b", "c", "pattern", "null", "default" };
+
+	/**
+	 * the info streams merged on their keys, the candidates are looked up in the primary row first
+	 */
+	static final int MERGE_PRIMARY = 0;
+	static final int MERGE_SECONDARY = 1;
+	static final int nrMergeStreams = 2;
+
+	static final String[] mergeCodes = { "primary", "secondary" };
+
+	static final String[] mergeDescriptions = {
+		BaseMessages.getString( PKG, "CoalesceMeta.Merge.Primary" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Merge.Secondary" ) };
+
+	static final String[] routeDescriptions = {
+		BaseMessages.getString( PKG, "CoalesceMeta.Route.Field", "A" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Route.Field", "B" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Route.Field", "C" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Route.Pattern" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Route.Null" ),
+		BaseMessages.getString( PKG, "CoalesceMeta.Route.Default" ) };
+
+	/**
+	 * prefixes selecting the syntax of a candidate pattern, patterns without one are regular expressions
+	 */
+	static final int DEFAULT_INFER_SAMPLE_SIZE = 100;
+
+	/**
+	 * XML and repository tags of the input fields, input_field_a to input_field_c
+	 */
+	private static final String[] inputFieldTags = new String[noInputFields];
+	static {
+		for ( int j = 0; j < noInputFields; j++ ) {
+			inputFieldTags[j] = "input_field_" + (char) ( 'a' + j );
+		}
+	}
+
+	/**
+	 * fixed XML markup of the step settings and of a field, used to size the buffer in getXML()
+	 */
+	private static final int STEP_XML_SIZE = 256;
+	private static final int FIELD_XML_SIZE = 640;
+
+	static final String GLOB_PREFIX = "glob:";
+	static final String REGEX_PREFIX = "regex:";
+
 	/**
 	 * Stores the name of the field added to the row-stream.
 	 */
@@ -78,11 +183,100 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	private String[][] inputFields;
 	private int[] valueType;
 	private boolean[] doRemoveInputFields;
+	private String[] dictionaryFiles;
+	private String[] defaultValues;
+	private String[] nullSentinels;
+	private boolean[] trimBeforeNullCheck;
+	private int[] strategies;
+	private String[] candidatePatterns;
+	private int[] candidateOrders;
+
+	/**
+	 * names of the Integer fields receiving the position of the winning candidate and the bits of the non null
+	 * candidates, empty if not wanted
+	 */
+	private String[] winnerFields;
+	private String[] nonNullMaskFields;
+
+	/**
+	 * conflict detection: whether rows are checked for other non null candidates disagreeing with the winner,
+	 * and the name of the Boolean field flagging them, empty if not wanted
+	 */
+	private boolean[] detectConflicts;
+	private String[] conflictFields;
+
+	/**
+	 * the number of distinct String values kept to share one instance among the rows, 0 if values aren't interned
+	 */
+	private int[] internPoolSizes;
+
+	/**
+	 * the dictionary file of every output field whose values are replaced by Integer codes, empty if not encoded
+	 */
+	private String[] encodingFiles;
+
+	/**
+	 * the delimiter of String candidates holding a list of alternatives, whose first element that isn't null
+	 * is the candidate's value; empty if candidates are single values
+	 */
+	private String[] valueDelimiters;
 
 	/**
 	 * additional options
 	 */
 	private boolean treatEmptyStringsAsNulls;
+	private String dictionaryKeyField;
+	private boolean buildDictionaries;
+	private boolean inferTypes;
+	private int inferSampleSize;
+
+	/**
+	 * the output field whose winner routes the rows, empty if rows go to all next steps, and the target step
+	 * of every route by name and, once the transformation resolved them, as steps
+	 */
+	private String routeField = "";
+	private String[] routeTargets = createRouteTargets();
+	private transient StepMeta[] routeTargetSteps = new StepMeta[nrRoutes];
+
+	/**
+	 * the comma separated key fields of the merge, empty if the step reads a single input, and the steps
+	 * of the primary and secondary stream by name and, once the transformation resolved them, as steps
+	 */
+	private String mergeKeys = "";
+	private String[] mergeSteps = createMergeSteps();
+	private transient StepMeta[] mergeStepMetas = new StepMeta[nrMergeStreams];
+
+	/**
+	 * the comma separated key fields whose rows are coalesced into one, empty if every row is coalesced on
+	 * its own, and the threads grouping the rows, 0 for one per available processor
+	 */
+	private String groupKeys = "";
+	private int groupThreads;
+
+	/**
+	 * the comma separated key fields whose rows are dropped when their output values are the ones last written
+	 * for the key, empty if all rows are written
+	 */
+	private String changeKeys = "";
+
+	/**
+	 * getFields results by input layout fingerprint, Spoon asks for them over and over while editing. They hold
+	 * for one settings version and the variables of the candidate patterns, the input layout of the last call
+	 * is recognized by identity before it's fingerprinted.
+	 */
+	private static final int MAX_CACHED_LAYOUTS = 8;
+	private transient Map<String, FieldsLayout> fieldsLayouts = createFieldsLayoutCache();
+	private transient long fieldsLayoutsVersion = -1;
+	private transient String fieldsLayoutsVariables = "";
+	private transient RowMetaInterface lastInputRowMeta;
+	private transient ValueMetaInterface[] lastInputValueMetas;
+	private transient FieldsLayout lastFieldsLayout;
+
+	/**
+	 * bumped by the setters, allocate() and setChanged(), so code editing the arrays in place must allocate
+	 * them first, as the dialog does, or mark the step changed afterwards
+	 */
+	private transient volatile long settingsVersion;
 
 	public CoalesceMeta() {
 		super();
@@ -104,6 +298,14 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 		return new CoalesceStep( stepMeta, stepDataInterface, cnr, transMeta, disp );
 	}
 
+	/**
+	 * Called by PDI when the step is the target of ETL Metadata Injection.
+	 */
+	@Override
+	public StepMetaInjectionInterface getStepMetaInjectionInterface() {
+		return new CoalesceMetaInjection( this );
+	}
+
 	/**
 	 * Called by PDI to get a new instance of the step data class.
 	 */
@@ -119,6 +321,18 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	@Override
 	public void setDefault() {
 		allocate( 0 );
+		dictionaryKeyField = "";
+		inferSampleSize = DEFAULT_INFER_SAMPLE_SIZE;
+		routeField = "";
+		routeTargets = createRouteTargets();
+		routeTargetSteps = new StepMeta[nrRoutes];
+		mergeKeys = "";
+		mergeSteps = createMergeSteps();
+		mergeStepMetas = new StepMeta[nrMergeStreams];
+		groupKeys = "";
+		groupThreads = 0;
+		changeKeys = "";
+		resetStepIoMeta();
 	}
 
 	public String[] getOutputFields() {
@@ -126,6 +340,7 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	}
 	public void setOutputFields( String[] outputFields ) {
 		this.outputFields = outputFields;
+		settingsVersion++;
 	}
 
 	public String[][] getInputFields() {
@@ -133,6 +348,7 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	}
 	public void setInputFields( String[][] inputFields ) {
 		this.inputFields = inputFields;
+		settingsVersion++;
 	}
 
 	public int[] getValueType() {
@@ -140,6 +356,7 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	}
 	public void setValueType( int[] valueType ) {
 		this.valueType = valueType;
+		settingsVersion++;
 	}
 
 	public boolean[] getDoRemoveInputFields() {
@@ -147,6 +364,152 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	}
 	public void setDoRemoveInputFields( boolean[] doRemoveInputFields ) {
 		this.doRemoveInputFields = doRemoveInputFields;
+		settingsVersion++;
+	}
+
+	public String[] getDictionaryFiles() {
+		return dictionaryFiles;
+	}
+	public void setDictionaryFiles( String[] dictionaryFiles ) {
+		this.dictionaryFiles = dictionaryFiles;
+		settingsVersion++;
+	}
+
+	public String[] getDefaultValues() {
+		return defaultValues;
+	}
+	public void setDefaultValues( String[] defaultValues ) {
+		this.defaultValues = defaultValues;
+		settingsVersion++;
+	}
+
+	public String[] getNullSentinels() {
+		return nullSentinels;
+	}
+	public void setNullSentinels( String[] nullSentinels ) {
+		this.nullSentinels = nullSentinels;
+		settingsVersion++;
+	}
+
+	public boolean[] getTrimBeforeNullCheck() {
+		return trimBeforeNullCheck;
+	}
+	public void setTrimBeforeNullCheck( boolean[] trimBeforeNullCheck ) {
+		this.trimBeforeNullCheck = trimBeforeNullCheck;
+		settingsVersion++;
+	}
+
+	public int[] getStrategies() {
+		return strategies;
+	}
+	public void setStrategies( int[] strategies ) {
+		this.strategies = strategies;
+		settingsVersion++;
+	}
+
+	public String[] getCandidatePatterns() {
+		return candidatePatterns;
+	}
+	public void setCandidatePatterns( String[] candidatePatterns ) {
+		this.candidatePatterns = candidatePatterns;
+		settingsVersion++;
+	}
+
+	public int[] getCandidateOrders() {
+		return candidateOrders;
+	}
+	public void setCandidateOrders( int[] candidateOrders ) {
+		this.candidateOrders = candidateOrders;
+		settingsVersion++;
+	}
+
+	public String[] getWinnerFields() {
+		return winnerFields;
+	}
+	public void setWinnerFields( String[] winnerFields ) {
+		this.winnerFields = winnerFields;
+		settingsVersion++;
+	}
+
+	public String[] getNonNullMaskFields() {
+		return nonNullMaskFields;
+	}
+	public void setNonNullMaskFields( String[] nonNullMaskFields ) {
+		this.nonNullMaskFields = nonNullMaskFields;
+		settingsVersion++;
+	}
+
+	public boolean[] getDetectConflicts() {
+		return detectConflicts;
+	}
+	public void setDetectConflicts( boolean[] detectConflicts ) {
+		this.detectConflicts = detectConflicts;
+		settingsVersion++;
+	}
+
+	public String[] getConflictFields() {
+		return conflictFields;
+	}
+	public void setConflictFields( String[] conflictFields ) {
+		this.conflictFields = conflictFields;
+		settingsVersion++;
+	}
+
+	public int[] getInternPoolSizes() {
+		return internPoolSizes;
+	}
+	public void setInternPoolSizes( int[] internPoolSizes ) {
+		this.internPoolSizes = internPoolSizes;
+		settingsVersion++;
+	}
+
+	public String[] getEncodingFiles() {
+		return encodingFiles;
+	}
+	public void setEncodingFiles( String[] encodingFiles ) {
+		this.encodingFiles = encodingFiles;
+		settingsVersion++;
+	}
+
+	public String[] getValueDelimiters() {
+		return valueDelimiters;
+	}
+	public void setValueDelimiters( String[] valueDelimiters ) {
+		this.valueDelimiters = valueDelimiters;
+		settingsVersion++;
+	}
+
+	/**
+	 * @return true if the values of an output field are replaced by Integer codes
+	 */
+	boolean isEncoding( int field ) {
+		return !Const.isEmpty( encodingFiles[field] );
+	}
+
+	/**
+	 * @return true if the rows are checked for conflicts on an output field, a flag field implies the check
+	 */
+	boolean isDetectingConflicts( int field ) {
+		return detectConflicts[field] || !Const.isEmpty( conflictFields[field] );
+	}
+
+	/**
+	 * @return the number of provenance fields, they follow the output fields in the output row
+	 */
+	int getNrProvenanceFields() {
+		int nrFields = 0;
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			if ( !Const.isEmpty( winnerFields[i] ) ) {
+				nrFields++;
+			}
+			if ( !Const.isEmpty( nonNullMaskFields[i] ) ) {
+				nrFields++;
+			}
+			if ( !Const.isEmpty( conflictFields[i] ) ) {
+				nrFields++;
+			}
+		}
+		return nrFields;
 	}
 
 	public boolean isTreatEmptyStringsAsNulls() {
@@ -154,6 +517,216 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	}
 	public void setTreatEmptyStringsAsNulls( boolean treatEmptyStringsAsNulls ) {
 		this.treatEmptyStringsAsNulls = treatEmptyStringsAsNulls;
+		settingsVersion++;
+	}
+
+	public String getDictionaryKeyField() {
+		return dictionaryKeyField;
+	}
+	public void setDictionaryKeyField( String dictionaryKeyField ) {
+		this.dictionaryKeyField = dictionaryKeyField;
+		settingsVersion++;
+	}
+
+	public boolean isBuildDictionaries() {
+		return buildDictionaries;
+	}
+	public void setBuildDictionaries( boolean buildDictionaries ) {
+		this.buildDictionaries = buildDictionaries;
+		settingsVersion++;
+	}
+
+	public boolean isInferTypes() {
+		return inferTypes;
+	}
+	public void setInferTypes( boolean inferTypes ) {
+		this.inferTypes = inferTypes;
+		settingsVersion++;
+	}
+
+	public int getInferSampleSize() {
+		return inferSampleSize;
+	}
+	public void setInferSampleSize( int inferSampleSize ) {
+		this.inferSampleSize = inferSampleSize;
+		settingsVersion++;
+	}
+
+	public String getRouteField() {
+		return routeField;
+	}
+	public void setRouteField( String routeField ) {
+		this.routeField = routeField;
+		resetStepIoMeta();
+		settingsVersion++;
+	}
+
+	/**
+	 * @return the name of the target step of a route, empty if the route has none
+	 */
+	public String getRouteTarget( int route ) {
+		StepMeta targetStep = routeTargetSteps[route];
+		return targetStep != null ? targetStep.getName() : Const.NVL( routeTargets[route], "" );
+	}
+	public void setRouteTarget( int route, String routeTarget ) {
+		routeTargets[route] = Const.NVL( routeTarget, "" );
+		routeTargetSteps[route] = null;
+		resetStepIoMeta();
+		settingsVersion++;
+	}
+
+	/**
+	 * @return true if the rows are sent to target steps by the winner of an output field
+	 */
+	public boolean isRouting() {
+		return !Const.isEmpty( routeField );
+	}
+
+	public String getMergeKeys() {
+		return mergeKeys;
+	}
+	public void setMergeKeys( String mergeKeys ) {
+		this.mergeKeys = Const.NVL( mergeKeys, "" );
+		resetStepIoMeta();
+		settingsVersion++;
+	}
+
+	/**
+	 * @return the name of the step of a merged stream, empty if it has none
+	 */
+	public String getMergeStep( int stream ) {
+		StepMeta step = mergeStepMetas[stream];
+		return step != null ? step.getName() : Const.NVL( mergeSteps[stream], "" );
+	}
+	public void setMergeStep( int stream, String mergeStep ) {
+		mergeSteps[stream] = Const.NVL( mergeStep, "" );
+		mergeStepMetas[stream] = null;
+		resetStepIoMeta();
+		settingsVersion++;
+	}
+
+	/**
+	 * @return true if the step merges two streams sorted on the merge keys instead of reading a single input
+	 */
+	public boolean isMerging() {
+		return !Const.isEmpty( mergeKeys );
+	}
+
+	/**
+	 * @return the names of the merge keys
+	 */
+	String[] getMergeKeyFields() {
+		return splitKeys( mergeKeys );
+	}
+
+	public String getGroupKeys() {
+		return groupKeys;
+	}
+	public void setGroupKeys( String groupKeys ) {
+		this.groupKeys = Const.NVL( groupKeys, "" );
+		settingsVersion++;
+	}
+
+	public int getGroupThreads() {
+		return groupThreads;
+	}
+	public void setGroupThreads( int groupThreads ) {
+		this.groupThreads = Math.max( groupThreads, 0 );
+		settingsVersion++;
+	}
+
+	/**
+	 * @return true if the rows with equal group keys are coalesced into one row
+	 */
+	public boolean isGrouping() {
+		return !Const.isEmpty( groupKeys );
+	}
+
+	/**
+	 * @return the names of the group keys
+	 */
+	String[] getGroupKeyFields() {
+		return splitKeys( groupKeys );
+	}
+
+	public String getChangeKeys() {
+		return changeKeys;
+	}
+	public void setChangeKeys( String changeKeys ) {
+		this.changeKeys = Const.NVL( changeKeys, "" );
+		settingsVersion++;
+	}
+
+	/**
+	 * @return true if rows whose output values didn't change since the last row of their change keys are dropped
+	 */
+	public boolean isSuppressingUnchanged() {
+		return !Const.isEmpty( changeKeys );
+	}
+
+	/**
+	 * @return the names of the change keys
+	 */
+	String[] getChangeKeyFields() {
+		return splitKeys( changeKeys );
+	}
+
+	private static String[] splitKeys( String keyList ) {
+		List<String> keys = new ArrayList<String>();
+		for ( String key : keyList.split( "," ) ) {
+			if ( !Const.isEmpty( key.trim() ) ) {
+				keys.add( key.trim() );
+			}
+		}
+		return keys.toArray( new String[keys.size()] );
+	}
+
+	/**
+	 * @return true if settings describe the input row of an output row, which merged or grouped output rows don't have
+	 */
+	boolean hasSingleRowSettings() {
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			if ( isDetectingConflicts( i ) ) {
+				return true;
+			}
+		}
+		return isRouting() || hasDictionaries() || isInferTypes() || getNrProvenanceFields() > 0;
+	}
+
+	/**
+	 * @return the first output field reduced with another strategy than first non null, -1 if there is none
+	 */
+	int getNonFirstStrategyField() {
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			if ( strategies[i] != STRATEGY_FIRST ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String[] createMergeSteps() {
+		String[] mergeSteps = new String[nrMergeStreams];
+		Arrays.fill( mergeSteps, "" );
+		return mergeSteps;
+	}
+
+	private static String[] createRouteTargets() {
+		String[] routeTargets = new String[nrRoutes];
+		Arrays.fill( routeTargets, "" );
+		return routeTargets;
+	}
+
+	/**
+	 * @return true if at least one output field has a fallback dictionary configured
+	 */
+	public boolean hasDictionaries() {
+		for ( String dictionaryFile : dictionaryFiles ) {
+			if ( !Const.isEmpty( dictionaryFile ) ) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -165,6 +738,11 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	@Override
 	public Object clone() {
 		CoalesceMeta retVal = (CoalesceMeta) super.clone();
+		retVal.fieldsLayouts = createFieldsLayoutCache();
+		retVal.fieldsLayoutsVersion = -1;
+		retVal.lastInputRowMeta = null;
+		retVal.lastInputValueMetas = null;
+		retVal.lastFieldsLayout = null;
 
 		int nrFields = outputFields.length;
 		retVal.outputFields = Arrays.copyOf( outputFields, nrFields );
@@ -176,6 +754,26 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 
 		retVal.valueType = Arrays.copyOf( valueType, nrFields );
 		retVal.doRemoveInputFields = Arrays.copyOf( doRemoveInputFields, nrFields );
+		retVal.dictionaryFiles = Arrays.copyOf( dictionaryFiles, nrFields );
+		retVal.defaultValues = Arrays.copyOf( defaultValues, nrFields );
+		retVal.nullSentinels = Arrays.copyOf( nullSentinels, nrFields );
+		retVal.trimBeforeNullCheck = Arrays.copyOf( trimBeforeNullCheck, nrFields );
+		retVal.strategies = Arrays.copyOf( strategies, nrFields );
+		retVal.candidatePatterns = Arrays.copyOf( candidatePatterns, nrFields );
+		retVal.candidateOrders = Arrays.copyOf( candidateOrders, nrFields );
+		retVal.winnerFields = Arrays.copyOf( winnerFields, nrFields );
+		retVal.nonNullMaskFields = Arrays.copyOf( nonNullMaskFields, nrFields );
+		retVal.detectConflicts = Arrays.copyOf( detectConflicts, nrFields );
+		retVal.conflictFields = Arrays.copyOf( conflictFields, nrFields );
+		retVal.internPoolSizes = Arrays.copyOf( internPoolSizes, nrFields );
+		retVal.encodingFiles = Arrays.copyOf( encodingFiles, nrFields );
+		retVal.valueDelimiters = Arrays.copyOf( valueDelimiters, nrFields );
+
+		retVal.routeTargets = Arrays.copyOf( routeTargets, nrRoutes );
+		retVal.routeTargetSteps = Arrays.copyOf( routeTargetSteps, nrRoutes );
+		retVal.mergeSteps = Arrays.copyOf( mergeSteps, nrMergeStreams );
+		retVal.mergeStepMetas = Arrays.copyOf( mergeStepMetas, nrMergeStreams );
+		retVal.resetStepIoMeta();
 
 		return retVal;
 	}
@@ -189,19 +787,48 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	@Override
 	public String getXML() throws KettleValueException {
 
-		StringBuilder retVal = new StringBuilder( 500 );
+		StringBuilder retVal = new StringBuilder( estimateXMLSize() );
 
-		retVal.append( "    " + XMLHandler.addTagValue( "empty_is_null", treatEmptyStringsAsNulls ) );
+		appendTagValue( retVal, "    ", "empty_is_null", treatEmptyStringsAsNulls ? "Y" : "N" );
+		appendTagValue( retVal, "    ", "dictionary_key_field", dictionaryKeyField );
+		appendTagValue( retVal, "    ", "build_dictionaries", buildDictionaries ? "Y" : "N" );
+		appendTagValue( retVal, "    ", "infer_types", inferTypes ? "Y" : "N" );
+		retVal.append( "    <infer_sample_size>" ).append( inferSampleSize ).append( "</infer_sample_size>" ).append( Const.CR );
+		appendTagValue( retVal, "    ", "route_field", routeField );
+		for ( int i = 0; i < nrRoutes; i++ ) {
+			appendTagValue( retVal, "    ", "route_target_" + routeCodes[i], getRouteTarget( i ) );
+		}
+		appendTagValue( retVal, "    ", "merge_keys", mergeKeys );
+		for ( int i = 0; i < nrMergeStreams; i++ ) {
+			appendTagValue( retVal, "    ", "merge_" + mergeCodes[i] + "_step", getMergeStep( i ) );
+		}
+		appendTagValue( retVal, "    ", "group_keys", groupKeys );
+		retVal.append( "    <group_threads>" ).append( groupThreads ).append( "</group_threads>" ).append( Const.CR );
+		appendTagValue( retVal, "    ", "change_keys", changeKeys );
 
 		retVal.append( "    <fields>" ).append( Const.CR );
 		for ( int i = 0; i < outputFields.length; i++ ) {
 			retVal.append( "      <field>" ).append( Const.CR );
-			retVal.append( "        " ).append( XMLHandler.addTagValue( "output_field", outputFields[i] ) );
-			retVal.append( "        " ).append( XMLHandler.addTagValue( "value_type", ValueMeta.getTypeDesc( valueType[i] ) ) );
-			retVal.append( "        " ).append( XMLHandler.addTagValue( "remove", getStringFromBoolean( doRemoveInputFields[i] ) ) );
+			appendTagValue( retVal, "        ", "output_field", outputFields[i] );
+			appendTagValue( retVal, "        ", "value_type", ValueMeta.getTypeDesc( valueType[i] ) );
+			appendTagValue( retVal, "        ", "remove", getStringFromBoolean( doRemoveInputFields[i] ) );
 			for ( int j = 0; j < noInputFields; j++ ) {
-				retVal.append( "        " ).append( XMLHandler.addTagValue( getInputFieldTag( j ), inputFields[i][j] ) );
+				appendTagValue( retVal, "        ", inputFieldTags[j], inputFields[i][j] );
 			}
+			appendTagValue( retVal, "        ", "dictionary_file", dictionaryFiles[i] );
+			appendTagValue( retVal, "        ", "default_value", defaultValues[i] );
+			appendTagValue( retVal, "        ", "null_sentinels", nullSentinels[i] );
+			appendTagValue( retVal, "        ", "trim", getStringFromBoolean( trimBeforeNullCheck[i] ) );
+			appendTagValue( retVal, "        ", "strategy", getStrategyCode( strategies[i] ) );
+			appendTagValue( retVal, "        ", "candidate_pattern", candidatePatterns[i] );
+			appendTagValue( retVal, "        ", "candidate_order", getOrderCode( candidateOrders[i] ) );
+			appendTagValue( retVal, "        ", "winner_field", winnerFields[i] );
+			appendTagValue( retVal, "        ", "non_null_mask_field", nonNullMaskFields[i] );
+			appendTagValue( retVal, "        ", "detect_conflicts", getStringFromBoolean( detectConflicts[i] ) );
+			appendTagValue( retVal, "        ", "conflict_field", conflictFields[i] );
+			retVal.append( "        <intern_pool_size>" ).append( internPoolSizes[i] ).append( "</intern_pool_size>" ).append( Const.CR );
+			appendTagValue( retVal, "        ", "encoding_file", encodingFiles[i] );
+			appendTagValue( retVal, "        ", "value_delimiter", valueDelimiters[i] );
 			retVal.append( "      </field>" ).append( Const.CR );
 		}
 		retVal.append( "    </fields>" ).append( Const.CR );
@@ -209,6 +836,68 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 		return retVal.toString();
 	}
 
+	/**
+	 * Room for the fixed markup of the step and of every field, the values are added on top.
+	 */
+	private int estimateXMLSize() {
+		int size = STEP_XML_SIZE + length( dictionaryKeyField ) + length( routeField ) + length( mergeKeys ) + length( groupKeys ) + length( changeKeys );
+		for ( int i = 0; i < nrMergeStreams; i++ ) {
+			size += length( mergeSteps[i] );
+		}
+		for ( int i = 0; i < nrRoutes; i++ ) {
+			size += length( routeTargets[i] );
+		}
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			size += FIELD_XML_SIZE + length( outputFields[i] ) + length( dictionaryFiles[i] ) + length( defaultValues[i] )
+				+ length( nullSentinels[i] ) + length( candidatePatterns[i] ) + length( winnerFields[i] )
+				+ length( nonNullMaskFields[i] ) + length( conflictFields[i] ) + length( encodingFiles[i] )
+				+ length( valueDelimiters[i] );
+			for ( int j = 0; j < noInputFields; j++ ) {
+				size += length( inputFields[i][j] );
+			}
+		}
+		return size;
+	}
+
+	private static int length( String s ) {
+		return s == null ? 0 : s.length();
+	}
+
+	/**
+	 * Appends a tag the way XMLHandler.addTagValue() formats it, without creating intermediate strings.
+	 */
+	private static void appendTagValue( StringBuilder xml, String indent, String tag, String value ) {
+		xml.append( indent ).append( '<' ).append( tag );
+		if ( Const.isEmpty( value ) ) {
+			xml.append( "/>" ).append( Const.CR );
+			return;
+		}
+		xml.append( '>' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch ( c ) {
+				case '&':
+					xml.append( "&amp;" );
+					break;
+				case '<':
+					xml.append( "&lt;" );
+					break;
+				case '>':
+					xml.append( "&gt;" );
+					break;
+				case '"':
+					xml.append( "&quot;" );
+					break;
+				case '\'':
+					xml.append( "&apos;" );
+					break;
+				default:
+					xml.append( c );
+			}
+		}
+		xml.append( "</" ).append( tag ).append( '>' ).append( Const.CR );
+	}
+
 	/**
 	 * This method is called by PDI when a step needs to load its configuration from XML.
 	 *
@@ -221,6 +910,24 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 
 		try {
 			treatEmptyStringsAsNulls = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepNode, "empty_is_null" ) );
+			dictionaryKeyField = Const.NVL( XMLHandler.getTagValue( stepNode, "dictionary_key_field" ), "" );
+			buildDictionaries = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepNode, "build_dictionaries" ) );
+			inferTypes = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepNode, "infer_types" ) );
+			inferSampleSize = Const.toInt( XMLHandler.getTagValue( stepNode, "infer_sample_size" ), DEFAULT_INFER_SAMPLE_SIZE );
+			routeField = Const.NVL( XMLHandler.getTagValue( stepNode, "route_field" ), "" );
+			for ( int i = 0; i < nrRoutes; i++ ) {
+				routeTargets[i] = Const.NVL( XMLHandler.getTagValue( stepNode, "route_target_" + routeCodes[i] ), "" );
+				routeTargetSteps[i] = null;
+			}
+			mergeKeys = Const.NVL( XMLHandler.getTagValue( stepNode, "merge_keys" ), "" );
+			for ( int i = 0; i < nrMergeStreams; i++ ) {
+				mergeSteps[i] = Const.NVL( XMLHandler.getTagValue( stepNode, "merge_" + mergeCodes[i] + "_step" ), "" );
+				mergeStepMetas[i] = null;
+			}
+			groupKeys = Const.NVL( XMLHandler.getTagValue( stepNode, "group_keys" ), "" );
+			groupThreads = Math.max( Const.toInt( XMLHandler.getTagValue( stepNode, "group_threads" ), 0 ), 0 );
+			changeKeys = Const.NVL( XMLHandler.getTagValue( stepNode, "change_keys" ), "" );
+			resetStepIoMeta();
 
 			Node fields = XMLHandler.getSubNode( stepNode, "fields" );
 			int noFields = XMLHandler.countNodes( fields, "field" );
@@ -232,8 +939,22 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 				valueType[i] = ValueMeta.getType( XMLHandler.getTagValue( line, "value_type" ) );
 				doRemoveInputFields[i] = getBooleanFromString( XMLHandler.getTagValue( line, "remove" ) );
 				for ( int j = 0; j < noInputFields; j++ ) {
-					inputFields[i][j] = Const.NVL( XMLHandler.getTagValue( line, getInputFieldTag( j ) ), "" );
+					inputFields[i][j] = Const.NVL( XMLHandler.getTagValue( line, inputFieldTags[j] ), "" );
 				}
+				dictionaryFiles[i] = Const.NVL( XMLHandler.getTagValue( line, "dictionary_file" ), "" );
+				defaultValues[i] = Const.NVL( XMLHandler.getTagValue( line, "default_value" ), "" );
+				nullSentinels[i] = Const.NVL( XMLHandler.getTagValue( line, "null_sentinels" ), "" );
+				trimBeforeNullCheck[i] = getBooleanFromString( XMLHandler.getTagValue( line, "trim" ) );
+				strategies[i] = getStrategyFromCode( XMLHandler.getTagValue( line, "strategy" ) );
+				candidatePatterns[i] = Const.NVL( XMLHandler.getTagValue( line, "candidate_pattern" ), "" );
+				candidateOrders[i] = getOrderFromCode( XMLHandler.getTagValue( line, "candidate_order" ) );
+				winnerFields[i] = Const.NVL( XMLHandler.getTagValue( line, "winner_field" ), "" );
+				nonNullMaskFields[i] = Const.NVL( XMLHandler.getTagValue( line, "non_null_mask_field" ), "" );
+				detectConflicts[i] = getBooleanFromString( XMLHandler.getTagValue( line, "detect_conflicts" ) );
+				conflictFields[i] = Const.NVL( XMLHandler.getTagValue( line, "conflict_field" ), "" );
+				internPoolSizes[i] = Math.max( Const.toInt( XMLHandler.getTagValue( line, "intern_pool_size" ), 0 ), 0 );
+				encodingFiles[i] = Const.NVL( XMLHandler.getTagValue( line, "encoding_file" ), "" );
+				valueDelimiters[i] = Const.NVL( XMLHandler.getTagValue( line, "value_delimiter" ), "" );
 			}
 		} catch ( Exception e ) {
 			throw new KettleXMLException( BaseMessages.getString(
@@ -255,13 +976,81 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	public void saveRep( Repository rep, IMetaStore metaStore, ObjectId id_transformation, ObjectId id_step ) throws KettleException {
 		try {
 			rep.saveStepAttribute( id_transformation, id_step, "empty_is_null", treatEmptyStringsAsNulls );
+			rep.saveStepAttribute( id_transformation, id_step, "dictionary_key_field", dictionaryKeyField );
+			rep.saveStepAttribute( id_transformation, id_step, "build_dictionaries", buildDictionaries );
+			rep.saveStepAttribute( id_transformation, id_step, "infer_types", inferTypes );
+			rep.saveStepAttribute( id_transformation, id_step, "infer_sample_size", inferSampleSize );
+			if ( isRouting() ) {
+				rep.saveStepAttribute( id_transformation, id_step, "route_field", routeField );
+				for ( int i = 0; i < nrRoutes; i++ ) {
+					rep.saveStepAttribute( id_transformation, id_step, "route_target_" + routeCodes[i], getRouteTarget( i ) );
+				}
+			}
+			if ( isMerging() ) {
+				rep.saveStepAttribute( id_transformation, id_step, "merge_keys", mergeKeys );
+				for ( int i = 0; i < nrMergeStreams; i++ ) {
+					rep.saveStepAttribute( id_transformation, id_step, "merge_" + mergeCodes[i] + "_step", getMergeStep( i ) );
+				}
+			}
+			if ( isGrouping() ) {
+				rep.saveStepAttribute( id_transformation, id_step, "group_keys", groupKeys );
+				rep.saveStepAttribute( id_transformation, id_step, "group_threads", groupThreads );
+			}
+			if ( isSuppressingUnchanged() ) {
+				rep.saveStepAttribute( id_transformation, id_step, "change_keys", changeKeys );
+			}
 
 			for ( int i = 0; i < outputFields.length; i++ ) {
 				rep.saveStepAttribute( id_transformation, id_step, i, "output_field", outputFields[i] );
 				rep.saveStepAttribute( id_transformation, id_step, i, "value_type", ValueMeta.getTypeDesc( valueType[i] ) );
 				rep.saveStepAttribute( id_transformation, id_step, i, "remove", getStringFromBoolean( doRemoveInputFields[i] ) );
 				for ( int j = 0; j < noInputFields; j++ ) {
-					rep.saveStepAttribute( id_transformation, id_step, i, getInputFieldTag( j ), inputFields[i][j] );
+					rep.saveStepAttribute( id_transformation, id_step, i, inputFieldTags[j], inputFields[i][j] );
+				}
+
+				// the repository API has no batch writes, so the optional settings are only saved when they
+				// differ from what readRep() assumes for a missing attribute
+				if ( !Const.isEmpty( dictionaryFiles[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "dictionary_file", dictionaryFiles[i] );
+				}
+				if ( !Const.isEmpty( defaultValues[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "default_value", defaultValues[i] );
+				}
+				if ( !Const.isEmpty( nullSentinels[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "null_sentinels", nullSentinels[i] );
+				}
+				if ( trimBeforeNullCheck[i] ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "trim", getStringFromBoolean( trimBeforeNullCheck[i] ) );
+				}
+				if ( strategies[i] != STRATEGY_FIRST ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "strategy", getStrategyCode( strategies[i] ) );
+				}
+				if ( !Const.isEmpty( candidatePatterns[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "candidate_pattern", candidatePatterns[i] );
+				}
+				if ( candidateOrders[i] != ORDER_INPUT ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "candidate_order", getOrderCode( candidateOrders[i] ) );
+				}
+				if ( !Const.isEmpty( winnerFields[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "winner_field", winnerFields[i] );
+				}
+				if ( !Const.isEmpty( nonNullMaskFields[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "non_null_mask_field", nonNullMaskFields[i] );
+				}
+				if ( detectConflicts[i] ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "detect_conflicts", getStringFromBoolean( detectConflicts[i] ) );
+				}
+				if ( !Const.isEmpty( conflictFields[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "conflict_field", conflictFields[i] );
+				}
+				if ( internPoolSizes[i] > 0 ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "intern_pool_size", internPoolSizes[i] );
+				}
+				if ( !Const.isEmpty( encodingFiles[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "encoding_file", encodingFiles[i] );
+				}
+				if ( !Const.isEmpty( valueDelimiters[i] ) ) {
+					rep.saveStepAttribute( id_transformation, id_step, i, "value_delimiter", valueDelimiters[i] );
 				}
 			}
 		} catch ( Exception e ) {
@@ -282,23 +1071,145 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	public void readRep( Repository rep, IMetaStore metaStore, ObjectId id_step, List<DatabaseMeta> databases ) throws KettleException {
 		try {
 			treatEmptyStringsAsNulls = rep.getStepAttributeBoolean( id_step, getRepCode( "empty_is_null" ) );
+			dictionaryKeyField = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "dictionary_key_field" ) ), "" );
+			buildDictionaries = rep.getStepAttributeBoolean( id_step, getRepCode( "build_dictionaries" ) );
+			inferTypes = rep.getStepAttributeBoolean( id_step, getRepCode( "infer_types" ) );
+			inferSampleSize = (int) rep.getStepAttributeInteger( id_step, getRepCode( "infer_sample_size" ) );
+			if ( inferSampleSize <= 0 ) {
+				inferSampleSize = DEFAULT_INFER_SAMPLE_SIZE;
+			}
+			routeField = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "route_field" ) ), "" );
+			for ( int i = 0; i < nrRoutes; i++ ) {
+				routeTargets[i] = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "route_target_" + routeCodes[i] ) ), "" );
+				routeTargetSteps[i] = null;
+			}
+			mergeKeys = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "merge_keys" ) ), "" );
+			for ( int i = 0; i < nrMergeStreams; i++ ) {
+				mergeSteps[i] = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "merge_" + mergeCodes[i] + "_step" ) ), "" );
+				mergeStepMetas[i] = null;
+			}
+			groupKeys = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "group_keys" ) ), "" );
+			groupThreads = Math.max( (int) rep.getStepAttributeInteger( id_step, getRepCode( "group_threads" ) ), 0 );
+			changeKeys = Const.NVL( rep.getStepAttributeString( id_step, getRepCode( "change_keys" ) ), "" );
+			resetStepIoMeta();
 
-			int nrFields = rep.countNrStepAttributes( id_step, getRepCode( "output_field" ) );
+			String outputFieldCode = getRepCode( "output_field" );
+			String valueTypeCode = getRepCode( "value_type" );
+			String removeCode = getRepCode( "remove" );
+			String[] inputFieldCodes = new String[noInputFields];
+			for ( int j = 0; j < noInputFields; j++ ) {
+				inputFieldCodes[j] = getRepCode( inputFieldTags[j] );
+			}
+			String dictionaryFileCode = getRepCode( "dictionary_file" );
+			String defaultValueCode = getRepCode( "default_value" );
+			String nullSentinelsCode = getRepCode( "null_sentinels" );
+			String trimCode = getRepCode( "trim" );
+			String strategyCode = getRepCode( "strategy" );
+			String candidatePatternCode = getRepCode( "candidate_pattern" );
+			String candidateOrderCode = getRepCode( "candidate_order" );
+			String winnerFieldCode = getRepCode( "winner_field" );
+			String nonNullMaskFieldCode = getRepCode( "non_null_mask_field" );
+			String detectConflictsCode = getRepCode( "detect_conflicts" );
+			String conflictFieldCode = getRepCode( "conflict_field" );
+			String internPoolSizeCode = getRepCode( "intern_pool_size" );
+			String encodingFileCode = getRepCode( "encoding_file" );
+			String valueDelimiterCode = getRepCode( "value_delimiter" );
+
+			int nrFields = rep.countNrStepAttributes( id_step, outputFieldCode );
 			allocate( nrFields );
 
 			for ( int i = 0; i < nrFields; i++ ) {
-				outputFields[i] = rep.getStepAttributeString( id_step, i, getRepCode( "output_field" ) );
-				valueType[i] = ValueMeta.getType( rep.getStepAttributeString( id_step, i, getRepCode( "value_type" ) ) );
-				doRemoveInputFields[i] = getBooleanFromString( rep.getStepAttributeString( id_step, i, getRepCode( "remove" ) ) );
+				outputFields[i] = rep.getStepAttributeString( id_step, i, outputFieldCode );
+				valueType[i] = ValueMeta.getType( rep.getStepAttributeString( id_step, i, valueTypeCode ) );
+				doRemoveInputFields[i] = getBooleanFromString( rep.getStepAttributeString( id_step, i, removeCode ) );
 				for ( int j = 0; j < noInputFields; j++ ) {
-					inputFields[i][j] = rep.getStepAttributeString( id_step, i, getRepCode( getInputFieldTag( j ) ) );
+					inputFields[i][j] = rep.getStepAttributeString( id_step, i, inputFieldCodes[j] );
 				}
+				dictionaryFiles[i] = Const.NVL( rep.getStepAttributeString( id_step, i, dictionaryFileCode ), "" );
+				defaultValues[i] = Const.NVL( rep.getStepAttributeString( id_step, i, defaultValueCode ), "" );
+				nullSentinels[i] = Const.NVL( rep.getStepAttributeString( id_step, i, nullSentinelsCode ), "" );
+				trimBeforeNullCheck[i] = getBooleanFromString( rep.getStepAttributeString( id_step, i, trimCode ) );
+				strategies[i] = getStrategyFromCode( rep.getStepAttributeString( id_step, i, strategyCode ) );
+				candidatePatterns[i] = Const.NVL( rep.getStepAttributeString( id_step, i, candidatePatternCode ), "" );
+				candidateOrders[i] = getOrderFromCode( rep.getStepAttributeString( id_step, i, candidateOrderCode ) );
+				winnerFields[i] = Const.NVL( rep.getStepAttributeString( id_step, i, winnerFieldCode ), "" );
+				nonNullMaskFields[i] = Const.NVL( rep.getStepAttributeString( id_step, i, nonNullMaskFieldCode ), "" );
+				detectConflicts[i] = getBooleanFromString( rep.getStepAttributeString( id_step, i, detectConflictsCode ) );
+				conflictFields[i] = Const.NVL( rep.getStepAttributeString( id_step, i, conflictFieldCode ), "" );
+				internPoolSizes[i] = (int) Math.max( rep.getStepAttributeInteger( id_step, i, internPoolSizeCode ), 0 );
+				encodingFiles[i] = Const.NVL( rep.getStepAttributeString( id_step, i, encodingFileCode ), "" );
+				valueDelimiters[i] = Const.NVL( rep.getStepAttributeString( id_step, i, valueDelimiterCode ), "" );
 			}
 		} catch ( Exception e ) {
 			throw new KettleException( "Unable to load step from repository", e );
 		}
 	}
 
+	/**
+	 * With routing on, every route is a target stream, so Spoon offers the routes when a hop is drawn and
+	 * draws the hops of the targets as such. Merged streams are info streams that have to be sorted.
+	 */
+	@Override
+	public StepIOMetaInterface getStepIOMeta() {
+		if ( ioMeta == null ) {
+			ioMeta = new StepIOMeta( true, true, false, isMerging(), false, false );
+			if ( isMerging() ) {
+				for ( int i = 0; i < nrMergeStreams; i++ ) {
+					ioMeta.addStream( new Stream( StreamType.INFO, mergeStepMetas[i], mergeDescriptions[i], StreamIcon.INFO,
+						mergeCodes[i] ) );
+				}
+			}
+			if ( isRouting() ) {
+				for ( int i = 0; i < nrRoutes; i++ ) {
+					ioMeta.addStream( new Stream( StreamType.TARGET, routeTargetSteps[i], routeDescriptions[i], StreamIcon.TARGET, i ) );
+				}
+			}
+		}
+		return ioMeta;
+	}
+
+	/**
+	 * Called by PDI once all steps of the transformation are loaded, resolves the target and merged steps by name.
+	 */
+	@Override
+	public void searchInfoAndTargetSteps( List<StepMeta> steps ) {
+		for ( int i = 0; i < nrRoutes; i++ ) {
+			routeTargetSteps[i] = Const.isEmpty( routeTargets[i] ) ? null : StepMeta.findStep( steps, routeTargets[i] );
+		}
+		for ( int i = 0; i < nrMergeStreams; i++ ) {
+			mergeStepMetas[i] = Const.isEmpty( mergeSteps[i] ) ? null : StepMeta.findStep( steps, mergeSteps[i] );
+		}
+		resetStepIoMeta();
+	}
+
+	/**
+	 * Called by Spoon when a hop is drawn to the target of a route or from a merged step.
+	 */
+	@Override
+	public void handleStreamSelection( StreamInterface stream ) {
+		if ( stream.getSubject() instanceof String ) {
+			int mergeStream = Const.indexOfString( (String) stream.getSubject(), mergeCodes );
+			if ( mergeStream >= 0 ) {
+				mergeStepMetas[mergeStream] = stream.getStepMeta();
+				mergeSteps[mergeStream] = stream.getStepMeta() == null ? "" : stream.getStepMeta().getName();
+				resetStepIoMeta();
+			}
+		} else if ( stream.getSubject() instanceof Integer ) {
+			int route = (Integer) stream.getSubject();
+			routeTargetSteps[route] = stream.getStepMeta();
+			routeTargets[route] = stream.getStepMeta() == null ? "" : stream.getStepMeta().getName();
+			resetStepIoMeta();
+		}
+	}
+
+	/**
+	 * Routed rows go to one target each, Spoon must not ask whether to copy or distribute them.
+	 */
+	@Override
+	public boolean excludeFromCopyDistributeVerification() {
+		return isRouting();
+	}
+
 	/**
 	 * This method is called to determine the changes the step is making to the row-stream.
 	 *
@@ -314,36 +1225,51 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	public void getFields( RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info, StepMeta nextStep,
 					VariableSpace space, Repository repository, IMetaStore metaStore ) throws KettleStepException {
 		try {
-			// store the input stream meta
-			RowMetaInterface unalteredInputRowMeta = inputRowMeta.clone();
+			// merged streams arrive as info streams, the output has the layout of the primary stream
+			if ( isMerging() && inputRowMeta.isEmpty() && info != null && info.length > 0 && info[MERGE_PRIMARY] != null ) {
+				inputRowMeta.addRowMeta( info[MERGE_PRIMARY] );
+			}
 
-			// first remove all unwanted input fields from the stream
-			for ( int i = 0; i < outputFields.length; i++ ) {
-				if ( doRemoveInputFields[i] ) {
-					for ( int j = 0; j < noInputFields; j++ ) {
-						if ( inputRowMeta.indexOfValue( inputFields[i][j] ) != -1 ) {
-							inputRowMeta.removeValueMeta( inputFields[i][j] );
-						}
+			FieldsLayout layout = getFieldsLayout( inputRowMeta, space );
+
+			// first remove all unwanted input fields from the stream, rebuilding the layout once
+			if ( layout.removed != null ) {
+				List<ValueMetaInterface> valueMetas = new ArrayList<ValueMetaInterface>( layout.removed.length );
+				for ( int i = 0; i < layout.removed.length; i++ ) {
+					if ( !layout.removed[i] ) {
+						valueMetas.add( inputRowMeta.getValueMeta( i ) );
 					}
 				}
+				inputRowMeta.setValueMetaList( valueMetas );
 			}
 
 			// then add the output fields
 			for ( int i = 0; i < outputFields.length; i++ ) {
-				int type = valueType[i];
-				if ( type == ValueMeta.TYPE_NONE ) {
-					type = getDefaultValueType( unalteredInputRowMeta, i );
-				}
-
-				ValueMetaInterface v = ValueMetaFactory.createValueMeta( outputFields[i], type );
+				ValueMetaInterface v = ValueMetaFactory.createValueMeta( outputFields[i], layout.types[i] );
 				v.setOrigin( name );
 				inputRowMeta.addValueMeta( v );
 			}
+
+			// and their provenance fields
+			for ( int i = 0; i < outputFields.length; i++ ) {
+				addProvenanceField( inputRowMeta, winnerFields[i], name, ValueMetaInterface.TYPE_INTEGER );
+				addProvenanceField( inputRowMeta, nonNullMaskFields[i], name, ValueMetaInterface.TYPE_INTEGER );
+				addProvenanceField( inputRowMeta, conflictFields[i], name, ValueMetaInterface.TYPE_BOOLEAN );
+			}
 		} catch ( Exception e ) {
 			throw new KettleStepException( e );
 		}
 	}
 
+	private static void addProvenanceField( RowMetaInterface rowMeta, String fieldName, String origin, int type )
+		throws KettlePluginException {
+		if ( !Const.isEmpty( fieldName ) ) {
+			ValueMetaInterface v = ValueMetaFactory.createValueMeta( fieldName, type );
+			v.setOrigin( origin );
+			rowMeta.addValueMeta( v );
+		}
+	}
+
 	/**
 	 * This method is called when the user selects the "Verify Transformation" option in Spoon.
 	 *
@@ -399,13 +1325,305 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 							PKG, "CoalesceMeta.CheckResult.FoundInStreamFields" ), stepMeta );
 		}
 		remarks.add( cr );
+
+		// See if the dictionaries can be looked up
+		if ( hasDictionaries() ) {
+			if ( Const.isEmpty( dictionaryKeyField ) || prev.searchValueMeta( dictionaryKeyField ) == null ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.DictionaryKeyField.ERROR", Const.NVL( dictionaryKeyField, "" ) ), stepMeta );
+			} else {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_OK, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.DictionaryKeyField.OK" ), stepMeta );
+			}
+			remarks.add( cr );
+		}
+
+		// See if the routed field and the targets exist
+		if ( isRouting() ) {
+			if ( Const.indexOfString( routeField, outputFields ) < 0 ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.RouteField.ERROR", routeField ), stepMeta );
+				remarks.add( cr );
+			}
+			for ( int i = 0; i < nrRoutes; i++ ) {
+				String target = getRouteTarget( i );
+				if ( !Const.isEmpty( target ) && Const.indexOfString( target, output ) < 0 ) {
+					cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+									PKG, "CoalesceMeta.CheckResult.RouteTarget.ERROR", target, routeDescriptions[i] ), stepMeta );
+					remarks.add( cr );
+				}
+			}
+		}
+
+		// See if both merged streams come in, and the settings of a single input row are off
+		if ( isMerging() ) {
+			for ( int i = 0; i < nrMergeStreams; i++ ) {
+				String step = getMergeStep( i );
+				if ( Const.isEmpty( step ) || Const.indexOfString( step, input ) < 0 ) {
+					cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+									PKG, "CoalesceMeta.CheckResult.MergeStep.ERROR", step, mergeDescriptions[i] ), stepMeta );
+					remarks.add( cr );
+				}
+			}
+			if ( hasSingleRowSettings() || isGrouping() ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.MergeUnsupported.ERROR" ), stepMeta );
+				remarks.add( cr );
+			}
+		}
+
+		// See if the group keys come in, and the rows of a key all reach this step copy
+		if ( isGrouping() ) {
+			for ( String key : getGroupKeyFields() ) {
+				if ( prev.searchValueMeta( key ) == null ) {
+					cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+									PKG, "CoalesceMeta.CheckResult.GroupKey.ERROR", key ), stepMeta );
+					remarks.add( cr );
+				}
+			}
+			if ( stepMeta.getCopies() > 1 && !stepMeta.isPartitioned() ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.GroupCopies.ERROR" ), stepMeta );
+				remarks.add( cr );
+			}
+			if ( hasSingleRowSettings() ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.GroupUnsupported.ERROR" ), stepMeta );
+				remarks.add( cr );
+			}
+			int strategyField = getNonFirstStrategyField();
+			if ( strategyField >= 0 ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.GroupStrategy.ERROR", outputFields[strategyField],
+								strategyDescriptions[strategies[strategyField]] ), stepMeta );
+				remarks.add( cr );
+			}
+		}
+
+		// See if the change keys come in, and the rows of a key all reach this step copy
+		if ( isSuppressingUnchanged() ) {
+			for ( String key : getChangeKeyFields() ) {
+				if ( prev.searchValueMeta( key ) == null ) {
+					cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+									PKG, "CoalesceMeta.CheckResult.ChangeKey.ERROR", key ), stepMeta );
+					remarks.add( cr );
+				}
+			}
+			if ( stepMeta.getCopies() > 1 && !stepMeta.isPartitioned() ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.ChangeCopies.ERROR" ), stepMeta );
+				remarks.add( cr );
+			}
+			if ( isMerging() || isGrouping() ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.ChangeUnsupported.ERROR" ), stepMeta );
+				remarks.add( cr );
+			}
+		}
+
+		// Only String values are interned, encoded fields are coalesced as Strings
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			boolean isString = valueType[i] == ValueMetaInterface.TYPE_NONE || valueType[i] == ValueMetaInterface.TYPE_STRING;
+			if ( internPoolSizes[i] > 0 && ( !isString || isEncoding( i ) ) ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.InternPoolSize.WARNING", outputFields[i] ), stepMeta );
+				remarks.add( cr );
+			}
+			if ( isEncoding( i ) && !isString ) {
+				cr = new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(
+								PKG, "CoalesceMeta.CheckResult.EncodingValueType.WARNING", outputFields[i] ), stepMeta );
+				remarks.add( cr );
+			}
+		}
 	}
 
 	void allocate( int noOutputFields ) {
+		settingsVersion++;
 		outputFields = new String[noOutputFields];
 		inputFields = new String[noOutputFields][noInputFields];
 		valueType = new int[noOutputFields];
 		doRemoveInputFields = new boolean[noOutputFields];
+		dictionaryFiles = new String[noOutputFields];
+		Arrays.fill( dictionaryFiles, "" );
+		defaultValues = new String[noOutputFields];
+		Arrays.fill( defaultValues, "" );
+		nullSentinels = new String[noOutputFields];
+		Arrays.fill( nullSentinels, "" );
+		trimBeforeNullCheck = new boolean[noOutputFields];
+		strategies = new int[noOutputFields];
+		candidatePatterns = new String[noOutputFields];
+		Arrays.fill( candidatePatterns, "" );
+		candidateOrders = new int[noOutputFields];
+		winnerFields = new String[noOutputFields];
+		Arrays.fill( winnerFields, "" );
+		nonNullMaskFields = new String[noOutputFields];
+		Arrays.fill( nonNullMaskFields, "" );
+		detectConflicts = new boolean[noOutputFields];
+		conflictFields = new String[noOutputFields];
+		Arrays.fill( conflictFields, "" );
+		internPoolSizes = new int[noOutputFields];
+		encodingFiles = new String[noOutputFields];
+		Arrays.fill( encodingFiles, "" );
+		valueDelimiters = new String[noOutputFields];
+		Arrays.fill( valueDelimiters, "" );
+	}
+
+	/**
+	 * Copies all settings of an output field of another step meta into an allocated output field.
+	 */
+	void copyField( CoalesceMeta from, int fromIndex, int toIndex ) {
+		settingsVersion++;
+		outputFields[toIndex] = from.outputFields[fromIndex];
+		inputFields[toIndex] = Arrays.copyOf( from.inputFields[fromIndex], noInputFields );
+		valueType[toIndex] = from.valueType[fromIndex];
+		doRemoveInputFields[toIndex] = from.doRemoveInputFields[fromIndex];
+		dictionaryFiles[toIndex] = from.dictionaryFiles[fromIndex];
+		defaultValues[toIndex] = from.defaultValues[fromIndex];
+		nullSentinels[toIndex] = from.nullSentinels[fromIndex];
+		trimBeforeNullCheck[toIndex] = from.trimBeforeNullCheck[fromIndex];
+		strategies[toIndex] = from.strategies[fromIndex];
+		candidatePatterns[toIndex] = from.candidatePatterns[fromIndex];
+		candidateOrders[toIndex] = from.candidateOrders[fromIndex];
+		winnerFields[toIndex] = from.winnerFields[fromIndex];
+		nonNullMaskFields[toIndex] = from.nonNullMaskFields[fromIndex];
+		detectConflicts[toIndex] = from.detectConflicts[fromIndex];
+		conflictFields[toIndex] = from.conflictFields[fromIndex];
+		internPoolSizes[toIndex] = from.internPoolSizes[fromIndex];
+		encodingFiles[toIndex] = from.encodingFiles[fromIndex];
+		valueDelimiters[toIndex] = from.valueDelimiters[fromIndex];
+	}
+
+	/**
+	 * Expands the candidate pattern of an output field against an input row layout.
+	 *
+	 * @return the input indexes of the matching fields that aren't explicit candidates already, in the configured order
+	 */
+	int[] getPatternCandidateIndexes( RowMetaInterface inputRowMeta, int outputIndex, VariableSpace space ) {
+		String patternText = space == null ? candidatePatterns[outputIndex]
+						: space.environmentSubstitute( candidatePatterns[outputIndex] );
+		if ( Const.isEmpty( patternText ) ) {
+			return new int[0];
+		}
+		Pattern pattern = compileCandidatePattern( patternText );
+
+		List<Integer> indexes = new ArrayList<Integer>();
+		for ( int i = 0; i < inputRowMeta.size(); i++ ) {
+			String name = inputRowMeta.getValueMeta( i ).getName();
+			if ( pattern.matcher( name ).matches() && !isExplicitCandidate( outputIndex, name ) ) {
+				indexes.add( i );
+			}
+		}
+
+		if ( candidateOrders[outputIndex] != ORDER_INPUT ) {
+			final RowMetaInterface rowMeta = inputRowMeta;
+			final boolean descending = candidateOrders[outputIndex] == ORDER_NAME_DESC;
+			Collections.sort( indexes, new Comparator<Integer>() {
+				@Override
+				public int compare( Integer a, Integer b ) {
+					int comparison = rowMeta.getValueMeta( a ).getName().compareTo( rowMeta.getValueMeta( b ).getName() );
+					return descending ? -comparison : comparison;
+				}
+			} );
+		}
+
+		int[] result = new int[indexes.size()];
+		for ( int i = 0; i < result.length; i++ ) {
+			result[i] = indexes.get( i );
+		}
+		return result;
+	}
+
+	private boolean isExplicitCandidate( int outputIndex, String name ) {
+		for ( int j = 0; j < noInputFields; j++ ) {
+			if ( name.equalsIgnoreCase( inputFields[outputIndex][j] ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Patterns are regular expressions over the whole field name, a "glob:" prefix selects wildcards
+	 * where * matches any number of characters and ? a single one.
+	 */
+	static Pattern compileCandidatePattern( String pattern ) {
+		if ( pattern.startsWith( REGEX_PREFIX ) ) {
+			return Pattern.compile( pattern.substring( REGEX_PREFIX.length() ) );
+		}
+		if ( !pattern.startsWith( GLOB_PREFIX ) ) {
+			return Pattern.compile( pattern );
+		}
+
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for ( char c : pattern.substring( GLOB_PREFIX.length() ).toCharArray() ) {
+			if ( c == '*' || c == '?' ) {
+				if ( literal.length() > 0 ) {
+					regex.append( Pattern.quote( literal.toString() ) );
+					literal.setLength( 0 );
+				}
+				regex.append( c == '*' ? ".*" : "." );
+			} else {
+				literal.append( c );
+			}
+		}
+		if ( literal.length() > 0 ) {
+			regex.append( Pattern.quote( literal.toString() ) );
+		}
+		return Pattern.compile( regex.toString() );
+	}
+
+	static String getOrderCode( int order ) {
+		if ( order < 0 || order >= orderCodes.length ) {
+			return orderCodes[ORDER_INPUT];
+		}
+		return orderCodes[order];
+	}
+
+	static int getOrderFromCode( String code ) {
+		for ( int i = 0; i < orderCodes.length; i++ ) {
+			if ( orderCodes[i].equalsIgnoreCase( code ) ) {
+				return i;
+			}
+		}
+		return ORDER_INPUT;
+	}
+
+	static int getOrderFromDescription( String description ) {
+		for ( int i = 0; i < orderDescriptions.length; i++ ) {
+			if ( orderDescriptions[i].equalsIgnoreCase( description ) ) {
+				return i;
+			}
+		}
+		return getOrderFromCode( description );
+	}
+
+	static String getStrategyCode( int strategy ) {
+		if ( strategy < 0 || strategy >= strategyCodes.length ) {
+			return strategyCodes[STRATEGY_FIRST];
+		}
+		return strategyCodes[strategy];
+	}
+
+	/**
+	 * @return the strategy with the given code, first non null for unknown codes and steps saved before strategies existed
+	 */
+	static int getStrategyFromCode( String code ) {
+		for ( int i = 0; i < strategyCodes.length; i++ ) {
+			if ( strategyCodes[i].equalsIgnoreCase( code ) ) {
+				return i;
+			}
+		}
+		return STRATEGY_FIRST;
+	}
+
+	static int getStrategyFromDescription( String description ) {
+		for ( int i = 0; i < strategyDescriptions.length; i++ ) {
+			if ( strategyDescriptions[i].equalsIgnoreCase( description ) ) {
+				return i;
+			}
+		}
+		return getStrategyFromCode( description );
 	}
 
 	static String getStringFromBoolean( boolean b ) {
@@ -418,16 +1636,179 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	}
 
 	/**
-	 * If all 3 fields are of the same data type then the output field should mirror this
-	 * otherwise return a more generic String type
+	 * Marks the input fields to remove and infers the output types, without changing the input layout.
+	 * Types inferred from the data are only known at run time, where the step replaces these in its plans.
+	 */
+	private FieldsLayout resolveFieldsLayout( RowMetaInterface inputRowMeta, VariableSpace space ) throws Exception {
+		int[][] patternIndexes = new int[outputFields.length][];
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			patternIndexes[i] = getPatternCandidateIndexes( inputRowMeta, i, space );
+		}
+
+		boolean[] removed = new boolean[inputRowMeta.size()];
+		boolean removeAny = false;
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			if ( doRemoveInputFields[i] ) {
+				for ( int j = 0; j < noInputFields; j++ ) {
+					int index = inputRowMeta.indexOfValue( inputFields[i][j] );
+					if ( index != -1 ) {
+						removed[index] = true;
+						removeAny = true;
+					}
+				}
+				for ( int index : patternIndexes[i] ) {
+					removed[index] = true;
+					removeAny = true;
+				}
+			}
+		}
+
+		int[] types = new int[outputFields.length];
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			types[i] = valueType[i];
+			if ( isEncoding( i ) ) {
+				// the values are coalesced as Strings and leave the step as their codes
+				types[i] = ValueMeta.TYPE_INTEGER;
+			} else if ( types[i] == ValueMeta.TYPE_NONE ) {
+				types[i] = getDefaultValueType( inputRowMeta, i, patternIndexes[i] );
+			}
+		}
+		return new FieldsLayout( removeAny ? removed : null, types );
+	}
+
+	/**
+	 * The fields removed from an input layout and the output types, as resolved by getFields.
+	 */
+	private static class FieldsLayout {
+		final boolean[] removed;
+		final int[] types;
+
+		FieldsLayout( boolean[] removed, int[] types ) {
+			this.removed = removed;
+			this.types = types;
+		}
+	}
+
+	private static Map<String, FieldsLayout> createFieldsLayoutCache() {
+		return new LinkedHashMap<String, FieldsLayout>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, FieldsLayout> eldest ) {
+				return size() > MAX_CACHED_LAYOUTS;
+			}
+		};
+	}
+
+	/**
+	 * Layouts with the same fingerprint have the same field names, types, storage and formats.
+	 */
+	static String getLayoutFingerprint( RowMetaInterface rowMeta ) {
+		StringBuilder fingerprint = new StringBuilder();
+		for ( int i = 0; i < rowMeta.size(); i++ ) {
+			ValueMetaInterface vm = rowMeta.getValueMeta( i );
+			fingerprint.append( vm.getName() ).append( '\t' ).append( vm.getType() ).append( '\t' )
+				.append( vm.getStorageType() ).append( '\t' ).append( vm.getLength() ).append( '\t' )
+				.append( vm.getPrecision() ).append( '\t' ).append( vm.getConversionMask() ).append( '\n' );
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * The resolved layout only depends on the input layout, the settings and the variables of the candidate
+	 * patterns. The input layout is fingerprinted unless it's the instance of the last call, unchanged.
+	 */
+	private FieldsLayout getFieldsLayout( RowMetaInterface inputRowMeta, VariableSpace space ) throws Exception {
+		long version = settingsVersion;
+		String variables = getPatternVariables( space );
+		synchronized ( fieldsLayouts ) {
+			if ( fieldsLayoutsVersion != version || !fieldsLayoutsVariables.equals( variables ) ) {
+				fieldsLayouts.clear();
+				fieldsLayoutsVersion = version;
+				fieldsLayoutsVariables = variables;
+				lastInputRowMeta = null;
+			} else if ( isLastInputRowMeta( inputRowMeta ) ) {
+				return lastFieldsLayout;
+			}
+		}
+
+		// getFields changes the layout it's given, its value metas are kept to recognize it unchanged
+		ValueMetaInterface[] valueMetas = inputRowMeta.getValueMetaList().toArray( new ValueMetaInterface[0] );
+		String fingerprint = getLayoutFingerprint( inputRowMeta );
+		FieldsLayout layout;
+		synchronized ( fieldsLayouts ) {
+			layout = fieldsLayouts.get( fingerprint );
+		}
+		if ( layout == null ) {
+			layout = resolveFieldsLayout( inputRowMeta, space );
+		}
+		synchronized ( fieldsLayouts ) {
+			if ( fieldsLayoutsVersion == version ) {
+				fieldsLayouts.put( fingerprint, layout );
+				lastInputRowMeta = inputRowMeta;
+				lastInputValueMetas = valueMetas;
+				lastFieldsLayout = layout;
+			}
+		}
+		return layout;
+	}
+
+	private boolean isLastInputRowMeta( RowMetaInterface inputRowMeta ) {
+		if ( inputRowMeta != lastInputRowMeta || inputRowMeta.size() != lastInputValueMetas.length ) {
+			return false;
+		}
+		for ( int i = 0; i < lastInputValueMetas.length; i++ ) {
+			if ( inputRowMeta.getValueMeta( i ) != lastInputValueMetas[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the candidate patterns holding variables with the variables resolved, empty if none hold any
 	 */
-	private int getDefaultValueType( RowMetaInterface inputRowMeta, int rowIndex ) throws Exception {
+	private String getPatternVariables( VariableSpace space ) {
+		if ( space == null ) {
+			return "";
+		}
+		StringBuilder variables = null;
+		for ( String candidatePattern : candidatePatterns ) {
+			if ( candidatePattern.contains( "${" ) || candidatePattern.contains( "%%" ) ) {
+				if ( variables == null ) {
+					variables = new StringBuilder();
+				}
+				variables.append( space.environmentSubstitute( candidatePattern ) ).append( '\n' );
+			}
+		}
+		return variables == null ? "" : variables.toString();
+	}
+
+	@Override
+	public void setChanged() {
+		super.setChanged();
+		settingsVersion++;
+	}
+
+	@Override
+	public void setChanged( boolean ch ) {
+		super.setChanged( ch );
+		settingsVersion++;
+	}
+
+	/**
+	 * If all 3 fields, and the fields matched by the candidate pattern, are of the same data type then the
+	 * output field should mirror this otherwise return a more generic String type
+	 */
+	private int getDefaultValueType( RowMetaInterface inputRowMeta, int rowIndex, int[] patternIndexes ) throws Exception {
 
 		Integer valueType = null;
+		for ( int index : patternIndexes ) {
+			valueType = getResultingType( valueType, inputRowMeta.getValueMeta( index ).getType() );
+		}
+
 		int i = 0;
 		do {
 			if ( i == 0 ) {
-				valueType = getInputFieldValueType( inputRowMeta, rowIndex, i++ );
+				valueType = getResultingType( valueType, getInputFieldValueType( inputRowMeta, rowIndex, i++ ) );
 			}
 			Integer type = getInputFieldValueType( inputRowMeta, rowIndex, i );
 
@@ -450,8 +1831,12 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 	 * returns null if the field is not present in the input stream
 	 */
 	private Integer getInputFieldValueType( RowMetaInterface inputRowMeta, int rowIndex, int inputIndex ) {
+		if ( CoalesceExpression.isExpression( inputFields[rowIndex][inputIndex] ) ) {
+			// expressions evaluate to strings
+			return ValueMetaInterface.TYPE_STRING;
+		}
 		int index = inputRowMeta.indexOfValue( inputFields[rowIndex][inputIndex] );
-		if ( index > 0 ) {
+		if ( index >= 0 ) {
 			return inputRowMeta.getValueMeta( index ).getType();
 		}
 		return null;
@@ -468,7 +1853,4 @@ public class CoalesceMeta extends BaseStepMeta implements StepMetaInterface {
 		}
 	}
 
-	private String getInputFieldTag( int index ) {
-		return "input_field_" + (char) ( 'a' + index );
-	}
 }
@@ -0,0 +1,389 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.step.StepInjectionMetaEntry;
+import org.pentaho.di.trans.step.StepMetaInjectionInterface;
+
+/**
+ * Metadata injection for the coalesce step, so that ETL Metadata Injection can drive one template
+ * transformation with the output fields of many feeds.
+ *
+ * The injected values are written straight into the step meta, the plan is compiled from them like from
+ * loaded settings. Settings that aren't injected keep their configured values. Injecting fields replaces all
+ * output fields, each injected field starts from the template's field of the same name, or else the one at its
+ * position, so only its injected settings change.
+ */
+class CoalesceMetaInjection implements StepMetaInjectionInterface {
+
+	private static Class<?> PKG = CoalesceMeta.class; // for i18n purposes
+
+	private enum Entry {
+
+		EMPTY_IS_NULL( ValueMetaInterface.TYPE_BOOLEAN ),
+		DICTIONARY_KEY_FIELD( ValueMetaInterface.TYPE_STRING ),
+		BUILD_DICTIONARIES( ValueMetaInterface.TYPE_BOOLEAN ),
+		INFER_TYPES( ValueMetaInterface.TYPE_BOOLEAN ),
+		INFER_SAMPLE_SIZE( ValueMetaInterface.TYPE_INTEGER ),
+		ROUTE_FIELD( ValueMetaInterface.TYPE_STRING ),
+		ROUTE_TARGET_A( ValueMetaInterface.TYPE_STRING ),
+		ROUTE_TARGET_B( ValueMetaInterface.TYPE_STRING ),
+		ROUTE_TARGET_C( ValueMetaInterface.TYPE_STRING ),
+		ROUTE_TARGET_PATTERN( ValueMetaInterface.TYPE_STRING ),
+		ROUTE_TARGET_NULL( ValueMetaInterface.TYPE_STRING ),
+		ROUTE_TARGET_DEFAULT( ValueMetaInterface.TYPE_STRING ),
+		MERGE_KEYS( ValueMetaInterface.TYPE_STRING ),
+		MERGE_PRIMARY_STEP( ValueMetaInterface.TYPE_STRING ),
+		MERGE_SECONDARY_STEP( ValueMetaInterface.TYPE_STRING ),
+		GROUP_KEYS( ValueMetaInterface.TYPE_STRING ),
+		GROUP_THREADS( ValueMetaInterface.TYPE_INTEGER ),
+		CHANGE_KEYS( ValueMetaInterface.TYPE_STRING ),
+
+		FIELDS( ValueMetaInterface.TYPE_NONE ),
+		FIELD( ValueMetaInterface.TYPE_NONE ),
+
+		OUTPUT_FIELD( ValueMetaInterface.TYPE_STRING ),
+		INPUT_FIELD_A( ValueMetaInterface.TYPE_STRING ),
+		INPUT_FIELD_B( ValueMetaInterface.TYPE_STRING ),
+		INPUT_FIELD_C( ValueMetaInterface.TYPE_STRING ),
+		CANDIDATE_PATTERN( ValueMetaInterface.TYPE_STRING ),
+		CANDIDATE_ORDER( ValueMetaInterface.TYPE_STRING ),
+		VALUE_TYPE( ValueMetaInterface.TYPE_STRING ),
+		REMOVE( ValueMetaInterface.TYPE_BOOLEAN ),
+		DICTIONARY_FILE( ValueMetaInterface.TYPE_STRING ),
+		DEFAULT_VALUE( ValueMetaInterface.TYPE_STRING ),
+		NULL_SENTINELS( ValueMetaInterface.TYPE_STRING ),
+		TRIM_BEFORE_NULL_CHECK( ValueMetaInterface.TYPE_BOOLEAN ),
+		STRATEGY( ValueMetaInterface.TYPE_STRING ),
+		WINNER_FIELD( ValueMetaInterface.TYPE_STRING ),
+		NON_NULL_MASK_FIELD( ValueMetaInterface.TYPE_STRING ),
+		DETECT_CONFLICTS( ValueMetaInterface.TYPE_BOOLEAN ),
+		CONFLICT_FIELD( ValueMetaInterface.TYPE_STRING ),
+		INTERN_POOL_SIZE( ValueMetaInterface.TYPE_INTEGER ),
+		ENCODING_FILE( ValueMetaInterface.TYPE_STRING ),
+		VALUE_DELIMITER( ValueMetaInterface.TYPE_STRING );
+
+		/**
+		 * the route targets in the order of CoalesceMeta.routeCodes
+		 */
+		private static final Entry[] ROUTE_TARGETS = new Entry[] {
+			ROUTE_TARGET_A, ROUTE_TARGET_B, ROUTE_TARGET_C, ROUTE_TARGET_PATTERN, ROUTE_TARGET_NULL, ROUTE_TARGET_DEFAULT };
+
+		/**
+		 * the merged steps in the order of CoalesceMeta.mergeCodes
+		 */
+		private static final Entry[] MERGE_STEPS = new Entry[] { MERGE_PRIMARY_STEP, MERGE_SECONDARY_STEP };
+
+		private static final Entry[] STEP_ENTRIES = new Entry[] {
+			EMPTY_IS_NULL, DICTIONARY_KEY_FIELD, BUILD_DICTIONARIES, INFER_TYPES, INFER_SAMPLE_SIZE, ROUTE_FIELD,
+			ROUTE_TARGET_A, ROUTE_TARGET_B, ROUTE_TARGET_C, ROUTE_TARGET_PATTERN, ROUTE_TARGET_NULL, ROUTE_TARGET_DEFAULT,
+			MERGE_KEYS, MERGE_PRIMARY_STEP, MERGE_SECONDARY_STEP, GROUP_KEYS, GROUP_THREADS, CHANGE_KEYS };
+
+		private static final Entry[] FIELD_ENTRIES = new Entry[] {
+			OUTPUT_FIELD, INPUT_FIELD_A, INPUT_FIELD_B, INPUT_FIELD_C, CANDIDATE_PATTERN, CANDIDATE_ORDER, VALUE_TYPE,
+			REMOVE, DICTIONARY_FILE, DEFAULT_VALUE, NULL_SENTINELS, TRIM_BEFORE_NULL_CHECK, STRATEGY, WINNER_FIELD,
+			NON_NULL_MASK_FIELD, DETECT_CONFLICTS, CONFLICT_FIELD, INTERN_POOL_SIZE, ENCODING_FILE, VALUE_DELIMITER };
+
+		private final int valueType;
+
+		private Entry( int valueType ) {
+			this.valueType = valueType;
+		}
+
+		StepInjectionMetaEntry createMetaEntry( Object value ) {
+			return new StepInjectionMetaEntry( name(), value, valueType,
+				BaseMessages.getString( PKG, "CoalesceMetaInjection.Entry." + name() ) );
+		}
+
+		static Entry findEntry( String key ) {
+			for ( Entry entry : values() ) {
+				if ( entry.name().equals( key ) ) {
+					return entry;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final CoalesceMeta meta;
+
+	CoalesceMetaInjection( CoalesceMeta meta ) {
+		this.meta = meta;
+	}
+
+	@Override
+	public List<StepInjectionMetaEntry> getStepInjectionMetadataEntries() throws KettleException {
+		List<StepInjectionMetaEntry> all = new ArrayList<StepInjectionMetaEntry>();
+		for ( Entry entry : Entry.STEP_ENTRIES ) {
+			all.add( entry.createMetaEntry( null ) );
+		}
+
+		StepInjectionMetaEntry fieldsEntry = Entry.FIELDS.createMetaEntry( null );
+		StepInjectionMetaEntry fieldEntry = Entry.FIELD.createMetaEntry( null );
+		for ( Entry entry : Entry.FIELD_ENTRIES ) {
+			fieldEntry.getDetails().add( entry.createMetaEntry( null ) );
+		}
+		fieldsEntry.getDetails().add( fieldEntry );
+		all.add( fieldsEntry );
+
+		return all;
+	}
+
+	@Override
+	public void injectStepMetadataEntries( List<StepInjectionMetaEntry> all ) throws KettleException {
+		List<StepInjectionMetaEntry> fields = null;
+
+		for ( StepInjectionMetaEntry lookFor : all ) {
+			Entry entry = Entry.findEntry( lookFor.getKey() );
+			if ( entry == null ) {
+				continue;
+			}
+			Object value = lookFor.getValue();
+			switch ( entry ) {
+				case EMPTY_IS_NULL:
+					meta.setTreatEmptyStringsAsNulls( getBoolean( value ) );
+					break;
+				case DICTIONARY_KEY_FIELD:
+					meta.setDictionaryKeyField( getString( value ) );
+					break;
+				case BUILD_DICTIONARIES:
+					meta.setBuildDictionaries( getBoolean( value ) );
+					break;
+				case INFER_TYPES:
+					meta.setInferTypes( getBoolean( value ) );
+					break;
+				case INFER_SAMPLE_SIZE:
+					meta.setInferSampleSize( Const.toInt( getString( value ), CoalesceMeta.DEFAULT_INFER_SAMPLE_SIZE ) );
+					break;
+				case ROUTE_FIELD:
+					meta.setRouteField( getString( value ) );
+					break;
+				case ROUTE_TARGET_A:
+				case ROUTE_TARGET_B:
+				case ROUTE_TARGET_C:
+				case ROUTE_TARGET_PATTERN:
+				case ROUTE_TARGET_NULL:
+				case ROUTE_TARGET_DEFAULT:
+					meta.setRouteTarget( Arrays.asList( Entry.ROUTE_TARGETS ).indexOf( entry ), getString( value ) );
+					break;
+				case MERGE_KEYS:
+					meta.setMergeKeys( getString( value ) );
+					break;
+				case MERGE_PRIMARY_STEP:
+				case MERGE_SECONDARY_STEP:
+					meta.setMergeStep( Arrays.asList( Entry.MERGE_STEPS ).indexOf( entry ), getString( value ) );
+					break;
+				case GROUP_KEYS:
+					meta.setGroupKeys( getString( value ) );
+					break;
+				case GROUP_THREADS:
+					meta.setGroupThreads( Const.toInt( getString( value ), 0 ) );
+					break;
+				case CHANGE_KEYS:
+					meta.setChangeKeys( getString( value ) );
+					break;
+				case FIELDS:
+					fields = lookFor.getDetails();
+					break;
+				default:
+					break;
+			}
+		}
+
+		if ( fields != null ) {
+			injectFields( fields );
+		}
+		meta.setChanged();
+	}
+
+	private void injectFields( List<StepInjectionMetaEntry> fields ) {
+		CoalesceMeta template = (CoalesceMeta) meta.clone();
+		meta.allocate( fields.size() );
+		for ( int i = 0; i < fields.size(); i++ ) {
+			List<StepInjectionMetaEntry> attributes = fields.get( i ).getDetails();
+			int templateIndex = findTemplateField( template, attributes, i );
+			if ( templateIndex >= 0 ) {
+				meta.copyField( template, templateIndex, i );
+			} else {
+				meta.getOutputFields()[i] = "";
+				Arrays.fill( meta.getInputFields()[i], "" );
+			}
+
+			for ( StepInjectionMetaEntry attribute : attributes ) {
+				Entry entry = Entry.findEntry( attribute.getKey() );
+				if ( entry == null ) {
+					continue;
+				}
+				Object value = attribute.getValue();
+				switch ( entry ) {
+					case OUTPUT_FIELD:
+						meta.getOutputFields()[i] = getString( value );
+						break;
+					case INPUT_FIELD_A:
+						meta.getInputFields()[i][0] = getString( value );
+						break;
+					case INPUT_FIELD_B:
+						meta.getInputFields()[i][1] = getString( value );
+						break;
+					case INPUT_FIELD_C:
+						meta.getInputFields()[i][2] = getString( value );
+						break;
+					case CANDIDATE_PATTERN:
+						meta.getCandidatePatterns()[i] = getString( value );
+						break;
+					case CANDIDATE_ORDER:
+						meta.getCandidateOrders()[i] = CoalesceMeta.getOrderFromDescription( getString( value ) );
+						break;
+					case VALUE_TYPE:
+						meta.getValueType()[i] = ValueMeta.getType( getString( value ) );
+						break;
+					case REMOVE:
+						meta.getDoRemoveInputFields()[i] = getBoolean( value );
+						break;
+					case DICTIONARY_FILE:
+						meta.getDictionaryFiles()[i] = getString( value );
+						break;
+					case DEFAULT_VALUE:
+						meta.getDefaultValues()[i] = getString( value );
+						break;
+					case NULL_SENTINELS:
+						meta.getNullSentinels()[i] = getString( value );
+						break;
+					case TRIM_BEFORE_NULL_CHECK:
+						meta.getTrimBeforeNullCheck()[i] = getBoolean( value );
+						break;
+					case STRATEGY:
+						meta.getStrategies()[i] = CoalesceMeta.getStrategyFromDescription( getString( value ) );
+						break;
+					case WINNER_FIELD:
+						meta.getWinnerFields()[i] = getString( value );
+						break;
+					case NON_NULL_MASK_FIELD:
+						meta.getNonNullMaskFields()[i] = getString( value );
+						break;
+					case DETECT_CONFLICTS:
+						meta.getDetectConflicts()[i] = getBoolean( value );
+						break;
+					case CONFLICT_FIELD:
+						meta.getConflictFields()[i] = getString( value );
+						break;
+					case INTERN_POOL_SIZE:
+						meta.getInternPoolSizes()[i] = Math.max( Const.toInt( getString( value ), 0 ), 0 );
+						break;
+					case ENCODING_FILE:
+						meta.getEncodingFiles()[i] = getString( value );
+						break;
+					case VALUE_DELIMITER:
+						meta.getValueDelimiters()[i] = getString( value );
+						break;
+					default:
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the template's output field named like the injected one, else the one at the same position, -1 if
+	 *         the template has neither
+	 */
+	private static int findTemplateField( CoalesceMeta template, List<StepInjectionMetaEntry> attributes, int position ) {
+		for ( StepInjectionMetaEntry attribute : attributes ) {
+			if ( Entry.OUTPUT_FIELD.name().equals( attribute.getKey() ) ) {
+				int index = Const.indexOfString( getString( attribute.getValue() ), template.getOutputFields() );
+				if ( index >= 0 ) {
+					return index;
+				}
+			}
+		}
+		return position < template.getOutputFields().length ? position : -1;
+	}
+
+	@Override
+	public List<StepInjectionMetaEntry> extractStepMetadataEntries() throws KettleException {
+		List<StepInjectionMetaEntry> all = new ArrayList<StepInjectionMetaEntry>();
+		all.add( Entry.EMPTY_IS_NULL.createMetaEntry( meta.isTreatEmptyStringsAsNulls() ) );
+		all.add( Entry.DICTIONARY_KEY_FIELD.createMetaEntry( meta.getDictionaryKeyField() ) );
+		all.add( Entry.BUILD_DICTIONARIES.createMetaEntry( meta.isBuildDictionaries() ) );
+		all.add( Entry.INFER_TYPES.createMetaEntry( meta.isInferTypes() ) );
+		all.add( Entry.INFER_SAMPLE_SIZE.createMetaEntry( (long) meta.getInferSampleSize() ) );
+		all.add( Entry.ROUTE_FIELD.createMetaEntry( meta.getRouteField() ) );
+		for ( int i = 0; i < CoalesceMeta.nrRoutes; i++ ) {
+			all.add( Entry.ROUTE_TARGETS[i].createMetaEntry( meta.getRouteTarget( i ) ) );
+		}
+		all.add( Entry.MERGE_KEYS.createMetaEntry( meta.getMergeKeys() ) );
+		for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+			all.add( Entry.MERGE_STEPS[i].createMetaEntry( meta.getMergeStep( i ) ) );
+		}
+		all.add( Entry.GROUP_KEYS.createMetaEntry( meta.getGroupKeys() ) );
+		all.add( Entry.GROUP_THREADS.createMetaEntry( (long) meta.getGroupThreads() ) );
+		all.add( Entry.CHANGE_KEYS.createMetaEntry( meta.getChangeKeys() ) );
+
+		StepInjectionMetaEntry fieldsEntry = Entry.FIELDS.createMetaEntry( null );
+		for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
+			StepInjectionMetaEntry fieldEntry = Entry.FIELD.createMetaEntry( null );
+			List<StepInjectionMetaEntry> details = fieldEntry.getDetails();
+			details.add( Entry.OUTPUT_FIELD.createMetaEntry( meta.getOutputFields()[i] ) );
+			details.add( Entry.INPUT_FIELD_A.createMetaEntry( meta.getInputFields()[i][0] ) );
+			details.add( Entry.INPUT_FIELD_B.createMetaEntry( meta.getInputFields()[i][1] ) );
+			details.add( Entry.INPUT_FIELD_C.createMetaEntry( meta.getInputFields()[i][2] ) );
+			details.add( Entry.CANDIDATE_PATTERN.createMetaEntry( meta.getCandidatePatterns()[i] ) );
+			details.add( Entry.CANDIDATE_ORDER.createMetaEntry( CoalesceMeta.getOrderCode( meta.getCandidateOrders()[i] ) ) );
+			details.add( Entry.VALUE_TYPE.createMetaEntry( ValueMeta.getTypeDesc( meta.getValueType()[i] ) ) );
+			details.add( Entry.REMOVE.createMetaEntry( meta.getDoRemoveInputFields()[i] ) );
+			details.add( Entry.DICTIONARY_FILE.createMetaEntry( meta.getDictionaryFiles()[i] ) );
+			details.add( Entry.DEFAULT_VALUE.createMetaEntry( meta.getDefaultValues()[i] ) );
+			details.add( Entry.NULL_SENTINELS.createMetaEntry( meta.getNullSentinels()[i] ) );
+			details.add( Entry.TRIM_BEFORE_NULL_CHECK.createMetaEntry( meta.getTrimBeforeNullCheck()[i] ) );
+			details.add( Entry.STRATEGY.createMetaEntry( CoalesceMeta.getStrategyCode( meta.getStrategies()[i] ) ) );
+			details.add( Entry.WINNER_FIELD.createMetaEntry( meta.getWinnerFields()[i] ) );
+			details.add( Entry.NON_NULL_MASK_FIELD.createMetaEntry( meta.getNonNullMaskFields()[i] ) );
+			details.add( Entry.DETECT_CONFLICTS.createMetaEntry( meta.getDetectConflicts()[i] ) );
+			details.add( Entry.CONFLICT_FIELD.createMetaEntry( meta.getConflictFields()[i] ) );
+			details.add( Entry.INTERN_POOL_SIZE.createMetaEntry( (long) meta.getInternPoolSizes()[i] ) );
+			details.add( Entry.ENCODING_FILE.createMetaEntry( meta.getEncodingFiles()[i] ) );
+			details.add( Entry.VALUE_DELIMITER.createMetaEntry( meta.getValueDelimiters()[i] ) );
+			fieldsEntry.getDetails().add( fieldEntry );
+		}
+		all.add( fieldsEntry );
+
+		return all;
+	}
+
+	private static String getString( Object value ) {
+		return value == null ? "" : Const.NVL( value.toString(), "" );
+	}
+
+	/**
+	 * Boolean entries arrive as Boolean from the injection step, Y and the dialog's Yes are accepted as well.
+	 */
+	private static boolean getBoolean( Object value ) {
+		if ( value instanceof Boolean ) {
+			return (Boolean) value;
+		}
+		return value != null && ( "Y".equalsIgnoreCase( value.toString() ) || CoalesceMeta.getBooleanFromString( value.toString() ) );
+	}
+}
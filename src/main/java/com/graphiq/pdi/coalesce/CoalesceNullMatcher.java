@@ -0,0 +1,341 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Decides whether a candidate value counts as null.
+ *
+ * Matchers are created once per candidate when the plan is built: sentinel values are converted to the
+ * candidate's own data type up front, so checking a row is a plain comparison against native values and
+ * never formats the value as a string. Sentinels that can't be converted to the candidate's type are dropped,
+ * since no value of that candidate can ever be equal to them.
+ */
+abstract class CoalesceNullMatcher {
+
+	/**
+	 * small sentinel sets are scanned, larger ones are binary searched
+	 */
+	private static final int LINEAR_SCAN_LIMIT = 8;
+
+	static final CoalesceNullMatcher NULL_ONLY = new CoalesceNullMatcher() {
+		@Override
+		boolean isNull( Object value ) {
+			return value == null;
+		}
+	};
+
+	abstract boolean isNull( Object value ) throws KettleValueException;
+
+	/**
+	 * @param valueMeta   the candidate's value meta
+	 * @param sentinels   values that are treated like null, in string form
+	 * @param emptyIsNull whether empty strings are treated like null
+	 * @param trim        whether leading and trailing whitespace of strings is ignored
+	 */
+	static CoalesceNullMatcher create( ValueMetaInterface valueMeta, String[] sentinels, boolean emptyIsNull, boolean trim ) {
+		if ( !valueMeta.isStorageNormal() ) {
+			// lazy conversion, the checks work on the converted value
+			ValueMetaInterface normalMeta = valueMeta.clone();
+			normalMeta.setStorageType( ValueMetaInterface.STORAGE_TYPE_NORMAL );
+			return new StorageConvertingMatcher( valueMeta, create( normalMeta, sentinels, emptyIsNull, trim ) );
+		}
+
+		switch ( valueMeta.getType() ) {
+			case ValueMetaInterface.TYPE_STRING:
+				if ( sentinels.length == 0 && !emptyIsNull ) {
+					return NULL_ONLY;
+				}
+				return new StringMatcher( sentinels, emptyIsNull, trim );
+
+			case ValueMetaInterface.TYPE_INTEGER: {
+				List<Object> values = convertSentinels( valueMeta, sentinels );
+				if ( values.isEmpty() ) {
+					return NULL_ONLY;
+				}
+				long[] longs = new long[values.size()];
+				for ( int i = 0; i < longs.length; i++ ) {
+					longs[i] = (Long) values.get( i );
+				}
+				return new IntegerMatcher( longs );
+			}
+
+			case ValueMetaInterface.TYPE_NUMBER: {
+				List<Object> values = convertSentinels( valueMeta, sentinels );
+				if ( values.isEmpty() ) {
+					return NULL_ONLY;
+				}
+				double[] doubles = new double[values.size()];
+				for ( int i = 0; i < doubles.length; i++ ) {
+					doubles[i] = (Double) values.get( i );
+				}
+				return new NumberMatcher( doubles );
+			}
+
+			case ValueMetaInterface.TYPE_BIGNUMBER: {
+				List<Object> values = convertSentinels( valueMeta, sentinels );
+				if ( values.isEmpty() ) {
+					return NULL_ONLY;
+				}
+				return new BigNumberMatcher( values.toArray( new BigDecimal[values.size()] ) );
+			}
+
+			case ValueMetaInterface.TYPE_DATE:
+			case ValueMetaInterface.TYPE_TIMESTAMP: {
+				List<Object> values = convertSentinels( valueMeta, sentinels );
+				if ( values.isEmpty() ) {
+					return NULL_ONLY;
+				}
+				long[] times = new long[values.size()];
+				for ( int i = 0; i < times.length; i++ ) {
+					times[i] = ( (Date) values.get( i ) ).getTime();
+				}
+				return new DateMatcher( times );
+			}
+
+			case ValueMetaInterface.TYPE_BOOLEAN: {
+				List<Object> values = convertSentinels( valueMeta, sentinels );
+				if ( values.isEmpty() ) {
+					return NULL_ONLY;
+				}
+				return new BooleanMatcher( values.contains( Boolean.TRUE ), values.contains( Boolean.FALSE ) );
+			}
+
+			default:
+				return NULL_ONLY;
+		}
+	}
+
+	/**
+	 * Splits a comma separated list of sentinel values, blanks around the separators are ignored.
+	 */
+	static String[] parseSentinels( String sentinels ) {
+		List<String> values = new ArrayList<String>();
+		if ( sentinels != null ) {
+			for ( String value : sentinels.split( "," ) ) {
+				value = value.trim();
+				if ( !value.isEmpty() && !values.contains( value ) ) {
+					values.add( value );
+				}
+			}
+		}
+		return values.toArray( new String[values.size()] );
+	}
+
+	private static List<Object> convertSentinels( ValueMetaInterface valueMeta, String[] sentinels ) {
+		ValueMetaInterface stringMeta = new ValueMeta( valueMeta.getName(), ValueMetaInterface.TYPE_STRING );
+		List<Object> values = new ArrayList<Object>();
+		for ( String sentinel : sentinels ) {
+			try {
+				Object value = valueMeta.convertData( stringMeta, sentinel );
+				if ( value != null ) {
+					values.add( value );
+				}
+			} catch ( KettleValueException e ) {
+				// not a value of this type, so it can never match
+			}
+		}
+		return values;
+	}
+
+	private static class StorageConvertingMatcher extends CoalesceNullMatcher {
+		private final ValueMetaInterface valueMeta;
+		private final CoalesceNullMatcher matcher;
+
+		StorageConvertingMatcher( ValueMetaInterface valueMeta, CoalesceNullMatcher matcher ) {
+			this.valueMeta = valueMeta;
+			this.matcher = matcher;
+		}
+
+		@Override
+		boolean isNull( Object value ) throws KettleValueException {
+			return value == null || matcher.isNull( valueMeta.convertToNormalStorageType( value ) );
+		}
+	}
+
+	/**
+	 * Trimming only moves two bounds over the string, nothing is allocated.
+	 */
+	private static class StringMatcher extends CoalesceNullMatcher {
+		private final String[] sentinels;
+		private final Set<String> sentinelSet;
+		private final boolean emptyIsNull;
+		private final boolean trim;
+
+		StringMatcher( String[] sentinels, boolean emptyIsNull, boolean trim ) {
+			this.sentinels = sentinels;
+			this.sentinelSet = new HashSet<String>( Arrays.asList( sentinels ) );
+			this.emptyIsNull = emptyIsNull;
+			this.trim = trim;
+		}
+
+		@Override
+		boolean isNull( Object value ) {
+			if ( value == null ) {
+				return true;
+			}
+			String s = (String) value;
+			int start = 0;
+			int end = s.length();
+			if ( trim ) {
+				while ( start < end && s.charAt( start ) <= ' ' ) {
+					start++;
+				}
+				while ( end > start && s.charAt( end - 1 ) <= ' ' ) {
+					end--;
+				}
+			}
+			if ( start == end ) {
+				return emptyIsNull;
+			}
+			if ( start == 0 && end == s.length() ) {
+				return sentinelSet.contains( s );
+			}
+			int length = end - start;
+			for ( String sentinel : sentinels ) {
+				if ( sentinel.length() == length && s.regionMatches( start, sentinel, 0, length ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class IntegerMatcher extends CoalesceNullMatcher {
+		private final long[] sentinels;
+
+		IntegerMatcher( long[] sentinels ) {
+			Arrays.sort( sentinels );
+			this.sentinels = sentinels;
+		}
+
+		@Override
+		boolean isNull( Object value ) {
+			if ( value == null ) {
+				return true;
+			}
+			return contains( sentinels, ( (Long) value ).longValue() );
+		}
+	}
+
+	private static class NumberMatcher extends CoalesceNullMatcher {
+		private final double[] sentinels;
+
+		NumberMatcher( double[] sentinels ) {
+			Arrays.sort( sentinels );
+			this.sentinels = sentinels;
+		}
+
+		@Override
+		boolean isNull( Object value ) {
+			if ( value == null ) {
+				return true;
+			}
+			double v = ( (Double) value ).doubleValue();
+			if ( sentinels.length <= LINEAR_SCAN_LIMIT ) {
+				for ( double sentinel : sentinels ) {
+					if ( sentinel == v ) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return Arrays.binarySearch( sentinels, v ) >= 0;
+		}
+	}
+
+	private static class BigNumberMatcher extends CoalesceNullMatcher {
+		private final BigDecimal[] sentinels;
+
+		BigNumberMatcher( BigDecimal[] sentinels ) {
+			this.sentinels = sentinels;
+		}
+
+		@Override
+		boolean isNull( Object value ) {
+			if ( value == null ) {
+				return true;
+			}
+			BigDecimal v = (BigDecimal) value;
+			for ( BigDecimal sentinel : sentinels ) {
+				// compareTo ignores the scale, 1.0 matches 1
+				if ( sentinel.compareTo( v ) == 0 ) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class DateMatcher extends CoalesceNullMatcher {
+		private final long[] sentinels;
+
+		DateMatcher( long[] sentinels ) {
+			Arrays.sort( sentinels );
+			this.sentinels = sentinels;
+		}
+
+		@Override
+		boolean isNull( Object value ) {
+			if ( value == null ) {
+				return true;
+			}
+			return contains( sentinels, ( (Date) value ).getTime() );
+		}
+	}
+
+	private static class BooleanMatcher extends CoalesceNullMatcher {
+		private final boolean matchTrue;
+		private final boolean matchFalse;
+
+		BooleanMatcher( boolean matchTrue, boolean matchFalse ) {
+			this.matchTrue = matchTrue;
+			this.matchFalse = matchFalse;
+		}
+
+		@Override
+		boolean isNull( Object value ) {
+			if ( value == null ) {
+				return true;
+			}
+			return ( (Boolean) value ).booleanValue() ? matchTrue : matchFalse;
+		}
+	}
+
+	private static boolean contains( long[] sortedValues, long v ) {
+		if ( sortedValues.length <= LINEAR_SCAN_LIMIT ) {
+			for ( long value : sortedValues ) {
+				if ( value == v ) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return Arrays.binarySearch( sortedValues, v ) >= 0;
+	}
+}
@@ -0,0 +1,545 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.VariableSpace;
+
+/**
+ * The coalesce configuration compiled against one input row layout.
+ *
+ * Everything that only depends on the step settings and the layout is resolved here once, field names
+ * to indexes, sentinel values to the candidates' data types, strategies to their reducers, so that the row
+ * loop only works with array indexes and prepared objects. Candidates checked by several output fields are
+ * checked once per row by a shared scan. Expression candidates are parsed here and get indexes after the
+ * input fields, their values are evaluated into the extended row at these indexes.
+ */
+class CoalescePlan {
+
+	final RowMetaInterface inputRowMeta;
+	final RowMetaInterface outputRowMeta;
+
+	/**
+	 * input index of every field passed on to the output, in output order
+	 */
+	final int[] passThroughIndexes;
+	final OutputField[] outputFields;
+
+	/**
+	 * the null checks shared by the output fields, null when no two fields check the same candidate the same way
+	 */
+	final CoalesceScan scan;
+
+	/**
+	 * default values converted to this layout's output types
+	 */
+	final Object[] defaultValues;
+	final int dictionaryKeyIndex;
+
+	/**
+	 * when unchanged rows are suppressed, the input indexes and metas of the change keys and the output
+	 * indexes and metas of the compared output fields; null otherwise
+	 */
+	final int[] changeKeyIndexes;
+	final ValueMetaInterface[] changeKeyMetas;
+	final int[] changeOutputIndexes;
+	final ValueMetaInterface[] changeOutputMetas;
+
+	/**
+	 * the String metas of the expression candidates, by index after the input fields
+	 */
+	private final ValueMetaInterface[] expressionMetas;
+
+	/**
+	 * the values of the expression candidates of the current row, and of all candidates of fields whose
+	 * strategy evaluates every candidate; the input indexes are followed by the expressions
+	 */
+	final Object[] extendedRow;
+
+	/**
+	 * the output field whose winner routes the row, -1 if rows aren't routed, and the route of every
+	 * candidate index that can win it
+	 */
+	final int routedField;
+	final int[] routes;
+
+	CoalescePlan( CoalesceMeta meta, RowMetaInterface inputRowMeta, RowMetaInterface outputRowMeta, Object[] defaultValues,
+		VariableSpace space ) throws KettleException {
+		this.inputRowMeta = inputRowMeta;
+		this.outputRowMeta = outputRowMeta;
+		this.defaultValues = defaultValues;
+		this.dictionaryKeyIndex = inputRowMeta.indexOfValue( meta.getDictionaryKeyField() );
+
+		int nrOutputFields = meta.getOutputFields().length;
+		int firstOutputIndex = outputRowMeta.size() - nrOutputFields - meta.getNrProvenanceFields();
+
+		passThroughIndexes = new int[firstOutputIndex];
+		for ( int i = 0; i < firstOutputIndex; i++ ) {
+			passThroughIndexes[i] = inputRowMeta.indexOfValue( outputRowMeta.getValueMeta( i ).getName() );
+		}
+
+		// equal candidate checks of different output fields become one column of the shared scan
+		Map<String, Integer> columnIds = new HashMap<String, Integer>();
+		List<Integer> columnIndexes = new ArrayList<Integer>();
+		List<CoalesceNullMatcher> columnMatchers = new ArrayList<CoalesceNullMatcher>();
+		List<ValueMetaInterface> expressions = new ArrayList<ValueMetaInterface>();
+		int nrCandidates = 0;
+
+		outputFields = new OutputField[nrOutputFields];
+		for ( int i = 0; i < nrOutputFields; i++ ) {
+			outputFields[i] = new OutputField( meta, i, firstOutputIndex + i, inputRowMeta, outputRowMeta, space,
+				columnIds, columnIndexes, columnMatchers, expressions );
+			if ( outputFields[i].expressions == null ) {
+				nrCandidates += outputFields[i].candidateIndexes.length;
+			}
+		}
+		expressionMetas = expressions.toArray( new ValueMetaInterface[expressions.size()] );
+		extendedRow = new Object[inputRowMeta.size() + expressionMetas.length];
+
+		if ( columnIndexes.size() < nrCandidates ) {
+			int[] indexes = new int[columnIndexes.size()];
+			for ( int i = 0; i < indexes.length; i++ ) {
+				indexes[i] = columnIndexes.get( i );
+			}
+			scan = new CoalesceScan( indexes, columnMatchers.toArray( new CoalesceNullMatcher[indexes.length] ) );
+		} else {
+			scan = null;
+		}
+
+		int provenanceIndex = firstOutputIndex + nrOutputFields;
+		for ( int i = 0; i < nrOutputFields; i++ ) {
+			outputFields[i].createReducer( meta.getStrategies()[i], scan, extendedRow );
+			if ( !Const.isEmpty( meta.getWinnerFields()[i] ) ) {
+				outputFields[i].setWinnerIndex( provenanceIndex++, extendedRow.length );
+			}
+			if ( !Const.isEmpty( meta.getNonNullMaskFields()[i] ) ) {
+				outputFields[i].nonNullMaskIndex = provenanceIndex++;
+			}
+			if ( !Const.isEmpty( meta.getConflictFields()[i] ) ) {
+				outputFields[i].conflictIndex = provenanceIndex++;
+			}
+			if ( meta.isDetectingConflicts( i ) ) {
+				outputFields[i].prepareConflictCheck();
+			}
+		}
+
+		if ( meta.isSuppressingUnchanged() ) {
+			String[] keys = meta.getChangeKeyFields();
+			changeKeyIndexes = new int[keys.length];
+			changeKeyMetas = new ValueMetaInterface[keys.length];
+			for ( int k = 0; k < keys.length; k++ ) {
+				changeKeyIndexes[k] = inputRowMeta.indexOfValue( keys[k] );
+				changeKeyMetas[k] = inputRowMeta.getValueMeta( changeKeyIndexes[k] );
+			}
+			// the output metas, encoded fields are compared by their codes
+			changeOutputIndexes = new int[nrOutputFields];
+			changeOutputMetas = new ValueMetaInterface[nrOutputFields];
+			for ( int i = 0; i < nrOutputFields; i++ ) {
+				changeOutputIndexes[i] = outputFields[i].outputIndex;
+				changeOutputMetas[i] = outputRowMeta.getValueMeta( outputFields[i].outputIndex );
+			}
+		} else {
+			changeKeyIndexes = null;
+			changeKeyMetas = null;
+			changeOutputIndexes = null;
+			changeOutputMetas = null;
+		}
+
+		routedField = meta.isRouting() ? Const.indexOfString( meta.getRouteField(), meta.getOutputFields() ) : -1;
+		if ( routedField >= 0 ) {
+			// backwards, so a field named in two slots takes the route of the first one
+			OutputField field = outputFields[routedField];
+			routes = new int[extendedRow.length];
+			for ( int j = field.candidateIndexes.length - 1; j >= 0; j-- ) {
+				routes[field.candidateIndexes[j]] = field.candidateRoutes[j];
+			}
+		} else {
+			routes = null;
+		}
+	}
+
+	/**
+	 * @param winner the candidate index the routed field's reducer returned, -1 if all candidates were null
+	 * @return the route of the row
+	 */
+	int getRoute( int winner ) {
+		return winner < 0 ? CoalesceMeta.ROUTE_NULL : routes[winner];
+	}
+
+	/**
+	 * @return the meta of a winning candidate, an input field or an expression
+	 */
+	ValueMetaInterface getCandidateMeta( int index ) {
+		int inputSize = inputRowMeta.size();
+		return index < inputSize ? inputRowMeta.getValueMeta( index ) : expressionMetas[index - inputSize];
+	}
+
+	/**
+	 * @return the value of a winning candidate in the current row
+	 */
+	Object getCandidateValue( Object[] r, int index ) {
+		return index < inputRowMeta.size() ? r[index] : extendedRow[index];
+	}
+
+	static class OutputField {
+
+		/**
+		 * how conflicting candidates are told apart from the winner
+		 */
+		private static final int CONVERTED_EQUALS = 0;
+		private static final int EQUALS = 1;
+		private static final int NUMBER_EQUALS = 2;
+		private static final int BIGNUMBER_EQUALS = 3;
+		private static final int BINARY_EQUALS = 4;
+		private static final int TRIMMED_EQUALS = 5;
+
+		final int outputIndex;
+		final ValueMetaInterface valueMeta;
+
+		/**
+		 * input indexes of the candidates present in the layout, in coalesce order
+		 */
+		final int[] candidateIndexes;
+
+		/**
+		 * the route of every candidate, its slot in Field A-C or the pattern route
+		 */
+		final int[] candidateRoutes;
+		final ValueMetaInterface[] candidateMetas;
+		final CoalesceNullMatcher[] nullMatchers;
+
+		/**
+		 * the scan column of every candidate, unused for fields with expressions
+		 */
+		final int[] columns;
+
+		/**
+		 * the expression of every candidate, null for field candidates; null if the field has no expressions
+		 */
+		final CoalesceExpression[] expressions;
+		CoalesceReducer reducer;
+		private int strategy;
+
+		/**
+		 * whether the null checks ignore the blanks around Strings
+		 */
+		private final boolean trim;
+
+		/**
+		 * output indexes of the provenance fields, -1 if the field has none, and the position of every candidate
+		 * by its index for the winner field
+		 */
+		int winnerIndex = -1;
+		int nonNullMaskIndex = -1;
+		int[] positions;
+
+		/**
+		 * conflict detection: whether the field checks for conflicts, the output index of its flag, -1 if it has
+		 * none, and how candidate values are compared with the winner
+		 */
+		boolean detectConflicts;
+		int conflictIndex = -1;
+		private int equality;
+
+		OutputField( CoalesceMeta meta, int transIndex, int outputIndex, RowMetaInterface inputRowMeta,
+			RowMetaInterface outputRowMeta, VariableSpace space, Map<String, Integer> columnIds, List<Integer> columnIndexes,
+			List<CoalesceNullMatcher> columnMatchers, List<ValueMetaInterface> expressionMetas ) throws KettleException {
+			this.outputIndex = outputIndex;
+			// encoded fields are coalesced as Strings, the step replaces them by their code
+			this.valueMeta = meta.isEncoding( transIndex )
+				? new ValueMetaString( outputRowMeta.getValueMeta( outputIndex ).getName() ) : outputRowMeta.getValueMeta( outputIndex );
+
+			String[] sentinels = CoalesceNullMatcher.parseSentinels( space.environmentSubstitute( meta.getNullSentinels()[transIndex] ) );
+			trim = meta.getTrimBeforeNullCheck()[transIndex];
+			String checkKey = trim + "|" + Arrays.toString( sentinels );
+			String delimiter = space.environmentSubstitute( meta.getValueDelimiters()[transIndex] );
+
+			List<Integer> indexes = new ArrayList<Integer>();
+			List<Integer> routes = new ArrayList<Integer>();
+			Map<Integer, CoalesceExpression> parsed = new HashMap<Integer, CoalesceExpression>();
+			for ( int j = 0; j < CoalesceMeta.noInputFields; j++ ) {
+				String name = meta.getInputFields()[transIndex][j];
+				if ( CoalesceExpression.isExpression( name ) ) {
+					CoalesceExpression expression = CoalesceExpression.parse( name );
+					if ( !Const.isEmpty( delimiter ) ) {
+						expression = CoalesceExpression.firstElement( expression, delimiter, sentinels, trim );
+					}
+					addExpression( expression, name, inputRowMeta, expressionMetas, parsed, indexes );
+					routes.add( j );
+					continue;
+				}
+				int index = Const.isEmpty( name ) ? -1 : inputRowMeta.indexOfValue( name );
+				if ( index >= 0 ) {
+					addCandidate( index, delimiter, sentinels, trim, inputRowMeta, expressionMetas, parsed, indexes );
+					routes.add( j );
+				}
+			}
+			// the candidate pattern is expanded against this layout once, its matches follow the explicit candidates
+			for ( int index : meta.getPatternCandidateIndexes( inputRowMeta, transIndex, space ) ) {
+				addCandidate( index, delimiter, sentinels, trim, inputRowMeta, expressionMetas, parsed, indexes );
+				routes.add( CoalesceMeta.ROUTE_PATTERN );
+			}
+
+			candidateIndexes = new int[indexes.size()];
+			candidateRoutes = new int[indexes.size()];
+			candidateMetas = new ValueMetaInterface[indexes.size()];
+			nullMatchers = new CoalesceNullMatcher[indexes.size()];
+			columns = new int[indexes.size()];
+			expressions = parsed.isEmpty() ? null : new CoalesceExpression[indexes.size()];
+			for ( int j = 0; j < candidateIndexes.length; j++ ) {
+				candidateIndexes[j] = indexes.get( j );
+				candidateRoutes[j] = routes.get( j );
+				if ( expressions != null ) {
+					// the checks of fields with expressions aren't shared, their values don't all come from the row
+					expressions[j] = parsed.get( candidateIndexes[j] );
+					candidateMetas[j] = expressions[j] == null
+						? inputRowMeta.getValueMeta( candidateIndexes[j] ) : expressionMetas.get( candidateIndexes[j] - inputRowMeta.size() );
+					nullMatchers[j] = CoalesceNullMatcher.create( candidateMetas[j], sentinels, meta.isTreatEmptyStringsAsNulls(), trim );
+					columns[j] = -1;
+					continue;
+				}
+				candidateMetas[j] = inputRowMeta.getValueMeta( candidateIndexes[j] );
+
+				String key = candidateIndexes[j] + "|" + checkKey;
+				Integer column = columnIds.get( key );
+				if ( column == null ) {
+					column = columnIndexes.size();
+					columnIds.put( key, column );
+					columnIndexes.add( candidateIndexes[j] );
+					columnMatchers.add( CoalesceNullMatcher.create( candidateMetas[j], sentinels, meta.isTreatEmptyStringsAsNulls(), trim ) );
+				}
+				columns[j] = column;
+				nullMatchers[j] = columnMatchers.get( column );
+			}
+		}
+
+		void setWinnerIndex( int winnerIndex, int nrIndexes ) {
+			this.winnerIndex = winnerIndex;
+			positions = new int[nrIndexes];
+			// backwards, so a field named in two slots has the position of the first one
+			for ( int j = candidateIndexes.length - 1; j >= 0; j-- ) {
+				positions[candidateIndexes[j]] = j;
+			}
+		}
+
+		/**
+		 * @return the position of the winning candidate in the candidate list, null if all were null
+		 */
+		Long getWinnerPosition( int winner ) {
+			return winner < 0 ? null : Long.valueOf( positions[winner] );
+		}
+
+		/**
+		 * Bit j is set when candidate j isn't null, for the first 63 candidates. Candidates in the shared scan
+		 * are answered by its bits, the first and last strategies stop at the winner so the others are checked here.
+		 */
+		long getNonNullMask( Object[] r, CoalesceScan scan ) throws KettleValueException {
+			long mask = 0;
+			int n = Math.min( candidateIndexes.length, 63 );
+			for ( int j = 0; j < n; j++ ) {
+				boolean isNull;
+				if ( expressions != null && expressions[j] != null ) {
+					isNull = nullMatchers[j].isNull( expressions[j].evaluate( r ) );
+				} else if ( scan != null && columns[j] >= 0 ) {
+					isNull = scan.isNull( columns[j] );
+				} else {
+					isNull = nullMatchers[j].isNull( r[candidateIndexes[j]] );
+				}
+				if ( !isNull ) {
+					mask |= 1L << j;
+				}
+			}
+			return mask;
+		}
+
+		/**
+		 * Picks the comparison once: candidates sharing a type compare their raw values with the type's own
+		 * equality, others are converted to the output type and compared with the output value. Strings are
+		 * compared without their surrounding blanks when the null checks ignore them as well.
+		 */
+		void prepareConflictCheck() {
+			detectConflicts = true;
+			switch ( CoalesceReducer.getCommonType( candidateMetas ) ) {
+				case ValueMetaInterface.TYPE_STRING:
+					equality = trim ? TRIMMED_EQUALS : EQUALS;
+					break;
+				case ValueMetaInterface.TYPE_INTEGER:
+				case ValueMetaInterface.TYPE_DATE:
+				case ValueMetaInterface.TYPE_TIMESTAMP:
+				case ValueMetaInterface.TYPE_BOOLEAN:
+					equality = EQUALS;
+					break;
+				case ValueMetaInterface.TYPE_NUMBER:
+					equality = NUMBER_EQUALS;
+					break;
+				case ValueMetaInterface.TYPE_BIGNUMBER:
+					equality = BIGNUMBER_EQUALS;
+					break;
+				case ValueMetaInterface.TYPE_BINARY:
+					equality = BINARY_EQUALS;
+					break;
+				default:
+					equality = CONVERTED_EQUALS;
+			}
+		}
+
+		/**
+		 * @param winner      the index of the winning candidate
+		 * @param outputValue the winning value converted to the output type
+		 * @return true if another non null candidate has a different value than the winner
+		 */
+		boolean hasConflict( Object[] r, int winner, Object outputValue, CoalescePlan plan ) throws KettleValueException {
+			Object winnerValue = plan.getCandidateValue( r, winner );
+			boolean last = strategy == CoalesceMeta.STRATEGY_LAST;
+			// first and last found the candidates before the winner null, the other strategies looked at all of them
+			boolean reached = strategy != CoalesceMeta.STRATEGY_FIRST && !last;
+			int n = candidateIndexes.length;
+			for ( int k = 0; k < n; k++ ) {
+				int j = last ? n - 1 - k : k;
+				int index = candidateIndexes[j];
+				if ( index == winner ) {
+					reached = true;
+					continue;
+				}
+				if ( !reached ) {
+					continue;
+				}
+				Object value;
+				if ( expressions == null || expressions[j] == null ) {
+					value = r[index];
+				} else if ( strategy == CoalesceMeta.STRATEGY_FIRST || last ) {
+					// first and last stop at the winner, so the expressions after it haven't been evaluated yet
+					value = expressions[j].evaluate( r );
+				} else {
+					// the other strategies evaluated every expression into the extended row
+					value = plan.extendedRow[index];
+				}
+				boolean isNull = expressions == null && plan.scan != null ? plan.scan.isNull( columns[j] )
+					: nullMatchers[j].isNull( value );
+				if ( isNull ) {
+					continue;
+				}
+				switch ( equality ) {
+					case EQUALS:
+						if ( !value.equals( winnerValue ) ) {
+							return true;
+						}
+						break;
+					case TRIMMED_EQUALS:
+						if ( !equalsTrimmed( (String) value, (String) winnerValue ) ) {
+							return true;
+						}
+						break;
+					case NUMBER_EQUALS:
+						// unlike !=, NaN equals NaN
+						if ( Double.compare( (Double) value, (Double) winnerValue ) != 0 ) {
+							return true;
+						}
+						break;
+					case BIGNUMBER_EQUALS:
+						if ( ( (BigDecimal) value ).compareTo( (BigDecimal) winnerValue ) != 0 ) {
+							return true;
+						}
+						break;
+					case BINARY_EQUALS:
+						if ( !Arrays.equals( (byte[]) value, (byte[]) winnerValue ) ) {
+							return true;
+						}
+						break;
+					default:
+						if ( valueMeta.compare( valueMeta.convertData( candidateMetas[j], value ), outputValue ) != 0 ) {
+							return true;
+						}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Compares two Strings without their leading and trailing blanks, as the null matchers see them.
+		 */
+		private static boolean equalsTrimmed( String a, String b ) {
+			int aStart = 0;
+			int aEnd = a.length();
+			while ( aStart < aEnd && a.charAt( aStart ) <= ' ' ) {
+				aStart++;
+			}
+			while ( aEnd > aStart && a.charAt( aEnd - 1 ) <= ' ' ) {
+				aEnd--;
+			}
+			int bStart = 0;
+			int bEnd = b.length();
+			while ( bStart < bEnd && b.charAt( bStart ) <= ' ' ) {
+				bStart++;
+			}
+			while ( bEnd > bStart && b.charAt( bEnd - 1 ) <= ' ' ) {
+				bEnd--;
+			}
+			return aEnd - aStart == bEnd - bStart && a.regionMatches( aStart, b, bStart, aEnd - aStart );
+		}
+
+		/**
+		 * String fields holding a delimited list are read through an expression picking their first element.
+		 */
+		private static void addCandidate( int index, String delimiter, String[] sentinels, boolean trim,
+			RowMetaInterface inputRowMeta, List<ValueMetaInterface> expressionMetas, Map<Integer, CoalesceExpression> parsed,
+			List<Integer> indexes ) {
+			ValueMetaInterface candidateMeta = inputRowMeta.getValueMeta( index );
+			if ( Const.isEmpty( delimiter ) || candidateMeta.getType() != ValueMetaInterface.TYPE_STRING ) {
+				indexes.add( index );
+				return;
+			}
+			CoalesceExpression expression =
+				CoalesceExpression.firstElement( CoalesceExpression.field( candidateMeta.getName() ), delimiter, sentinels, trim );
+			addExpression( expression, candidateMeta.getName(), inputRowMeta, expressionMetas, parsed, indexes );
+		}
+
+		/**
+		 * Expressions are numbered after the input fields across all output fields.
+		 */
+		private static void addExpression( CoalesceExpression expression, String name, RowMetaInterface inputRowMeta,
+			List<ValueMetaInterface> expressionMetas, Map<Integer, CoalesceExpression> parsed, List<Integer> indexes ) {
+			expression.bind( inputRowMeta );
+			int index = inputRowMeta.size() + expressionMetas.size();
+			expressionMetas.add( new ValueMetaString( name ) );
+			parsed.put( index, expression );
+			indexes.add( index );
+		}
+
+		void createReducer( int strategy, CoalesceScan scan, Object[] extendedRow ) {
+			this.strategy = strategy;
+			if ( expressions != null ) {
+				reducer = CoalesceReducer.create( strategy, candidateIndexes, nullMatchers, candidateMetas, valueMeta, expressions,
+					extendedRow );
+			} else {
+				reducer = CoalesceReducer.create( strategy, candidateIndexes, nullMatchers, candidateMetas, valueMeta, scan, columns );
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+import org.pentaho.di.trans.steps.injector.InjectorMeta;
+
+/**
+ * Runs a coalesce configuration over sample rows, for the preview and profile action of the dialog.
+ *
+ * The throughput is measured by pushing the sample through an injector, a coalesce and a dummy step in
+ * process, repeated until the run is long enough to measure. The allocation per row is taken from the
+ * coalesce step's thread where the JVM reports it. The winning candidates, the rows where all candidates
+ * are null and the fields converting values for every row are taken from the compiled plan.
+ */
+class CoalesceProfiler {
+
+	private static Class<?> PKG = CoalesceMeta.class; // for i18n purposes
+
+	private static final long MIN_RUN_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+	private static final int MAX_ROUNDS = 10000;
+
+	private static final String INJECTOR_STEP = "sample rows";
+	private static final String COALESCE_STEP = "coalesce";
+	private static final String OUTPUT_STEP = "output";
+
+	private final CoalesceMeta meta;
+	private final VariableSpace space;
+
+	private int sampleSize;
+	private long rows;
+	private long nanos;
+	private long bytesPerRow = -1;
+	private String[] outputFields;
+	private long[] allNullCounts;
+	private List<Map<String, long[]>> winners;
+	private List<List<String>> conversions;
+
+	CoalesceProfiler( CoalesceMeta meta, VariableSpace space ) {
+		this.meta = (CoalesceMeta) meta.clone();
+		this.space = space;
+
+		// a profile run must not write dictionary or encoding files
+		this.meta.setBuildDictionaries( false );
+		this.meta.setEncodingFiles( new String[this.meta.getOutputFields().length] );
+		Arrays.fill( this.meta.getEncodingFiles(), "" );
+		// the measuring transformation has a single previous and a single next step
+		this.meta.setRouteField( "" );
+		this.meta.setMergeKeys( "" );
+		// grouped rows would only be written at the end of every measured run, repeated rows would be suppressed
+		this.meta.setGroupKeys( "" );
+		this.meta.setChangeKeys( "" );
+	}
+
+	void profile( RowMetaInterface inputRowMeta, List<Object[]> sample ) throws KettleException {
+		sampleSize = sample.size();
+		analyzeSample( inputRowMeta, sample );
+		measureThroughput( inputRowMeta, sample );
+	}
+
+	/**
+	 * Resolves the winner of every output field for each sample row with the plan the step compiles.
+	 */
+	private void analyzeSample( RowMetaInterface inputRowMeta, List<Object[]> sample ) throws KettleException {
+		RowMetaInterface outputRowMeta = inputRowMeta.clone();
+		meta.getFields( outputRowMeta, COALESCE_STEP, null, null, space, null, null );
+		CoalescePlan plan = new CoalescePlan( meta, inputRowMeta, outputRowMeta, new Object[meta.getOutputFields().length], space );
+
+		int nrOutputFields = plan.outputFields.length;
+		outputFields = new String[nrOutputFields];
+		allNullCounts = new long[nrOutputFields];
+		winners = new ArrayList<Map<String, long[]>>( nrOutputFields );
+		conversions = new ArrayList<List<String>>( nrOutputFields );
+
+		for ( int i = 0; i < nrOutputFields; i++ ) {
+			CoalescePlan.OutputField field = plan.outputFields[i];
+			outputFields[i] = field.valueMeta.getName();
+			winners.add( new LinkedHashMap<String, long[]>() );
+
+			List<String> fieldConversions = new ArrayList<String>();
+			if ( field.reducer.isConverting() ) {
+				fieldConversions.add( BaseMessages.getString( PKG, "CoalesceProfiler.Report.ComparesConverted",
+					field.valueMeta.getTypeDesc() ) );
+			}
+			for ( ValueMetaInterface candidateMeta : field.candidateMetas ) {
+				if ( candidateMeta.getType() != field.valueMeta.getType() || !candidateMeta.isStorageNormal() ) {
+					fieldConversions.add( BaseMessages.getString( PKG, "CoalesceProfiler.Report.ConvertsCandidate",
+						candidateMeta.getName(), candidateMeta.getTypeDesc(), field.valueMeta.getTypeDesc() ) );
+				}
+			}
+			conversions.add( fieldConversions );
+		}
+
+		for ( Object[] r : sample ) {
+			if ( plan.scan != null ) {
+				plan.scan.scan( r );
+			}
+			for ( int i = 0; i < nrOutputFields; i++ ) {
+				int inputIndex = plan.outputFields[i].reducer.reduce( r );
+				if ( inputIndex < 0 ) {
+					allNullCounts[i]++;
+					continue;
+				}
+				String name = plan.getCandidateMeta( inputIndex ).getName();
+				long[] count = winners.get( i ).get( name );
+				if ( count == null ) {
+					winners.get( i ).put( name, new long[] { 1 } );
+				} else {
+					count[0]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs injector, coalesce and dummy step like the unit tests do, feeding the sample over and over.
+	 */
+	private void measureThroughput( RowMetaInterface inputRowMeta, List<Object[]> sample ) throws KettleException {
+		if ( sample.isEmpty() ) {
+			return;
+		}
+
+		TransMeta transMeta = new TransMeta();
+		transMeta.setName( "coalesce profile" );
+		transMeta.initializeVariablesFrom( space );
+
+		PluginRegistry registry = PluginRegistry.getInstance();
+		StepMeta injectorStep = createStep( registry, INJECTOR_STEP, new InjectorMeta() );
+		StepMeta coalesceStep = createStep( registry, COALESCE_STEP, meta );
+		StepMeta outputStep = createStep( registry, OUTPUT_STEP, new DummyTransMeta() );
+		transMeta.addStep( injectorStep );
+		transMeta.addStep( coalesceStep );
+		transMeta.addStep( outputStep );
+		transMeta.addTransHop( new TransHopMeta( injectorStep, coalesceStep ) );
+		transMeta.addTransHop( new TransHopMeta( coalesceStep, outputStep ) );
+
+		Trans trans = new Trans( transMeta );
+		trans.prepareExecution( null );
+
+		AllocationMeter meter = new AllocationMeter();
+		trans.getStepInterface( COALESCE_STEP, 0 ).addRowListener( meter );
+		RowProducer rowProducer = trans.addRowProducer( INJECTOR_STEP, 0 );
+
+		long start = System.nanoTime();
+		trans.startThreads();
+		int rounds = 0;
+		do {
+			for ( Object[] r : sample ) {
+				// the step may write into the rows it gets
+				rowProducer.putRow( inputRowMeta, r.clone() );
+			}
+			rounds++;
+		} while ( rounds < MAX_ROUNDS && System.nanoTime() - start < MIN_RUN_NANOS && !trans.isStopped() );
+		rowProducer.finished();
+		trans.waitUntilFinished();
+		nanos = System.nanoTime() - start;
+
+		if ( trans.getErrors() > 0 ) {
+			throw new KettleException( BaseMessages.getString( PKG, "CoalesceProfiler.Exception.RunFailed" ) );
+		}
+
+		rows = meter.rows;
+		if ( meter.firstAllocated >= 0 && meter.rows > 1 ) {
+			bytesPerRow = ( meter.lastAllocated - meter.firstAllocated ) / ( meter.rows - 1 );
+		}
+	}
+
+	private static StepMeta createStep( PluginRegistry registry, String name, StepMetaInterface stepMeta ) {
+		return new StepMeta( registry.getPluginId( StepPluginType.class, stepMeta ), name, stepMeta );
+	}
+
+	/**
+	 * Counts the rows written by the coalesce step and reads the bytes allocated by its thread, the
+	 * listener is called on that thread. The first row is left out, it includes compiling the plan.
+	 */
+	private static class AllocationMeter extends RowAdapter {
+		private final com.sun.management.ThreadMXBean threadBean;
+		private volatile long rows;
+		private volatile long firstAllocated = -1;
+		private volatile long lastAllocated;
+
+		AllocationMeter() {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if ( bean instanceof com.sun.management.ThreadMXBean
+				&& ( (com.sun.management.ThreadMXBean) bean ).isThreadAllocatedMemorySupported()
+				&& ( (com.sun.management.ThreadMXBean) bean ).isThreadAllocatedMemoryEnabled() ) {
+				threadBean = (com.sun.management.ThreadMXBean) bean;
+			} else {
+				threadBean = null;
+			}
+		}
+
+		@Override
+		public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+			rows++;
+			if ( threadBean == null ) {
+				return;
+			}
+			long allocated = threadBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+			if ( firstAllocated < 0 ) {
+				firstAllocated = allocated;
+			}
+			lastAllocated = allocated;
+		}
+	}
+
+	long getAllNullCount( int field ) {
+		return allNullCounts[field];
+	}
+
+	Map<String, long[]> getWinners( int field ) {
+		return winners.get( field );
+	}
+
+	List<String> getConversions( int field ) {
+		return conversions.get( field );
+	}
+
+	long getRows() {
+		return rows;
+	}
+
+	String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append( BaseMessages.getString( PKG, "CoalesceProfiler.Report.Sample", String.valueOf( sampleSize ) ) ).append( Const.CR );
+		if ( rows > 0 ) {
+			report.append( BaseMessages.getString( PKG, "CoalesceProfiler.Report.Throughput",
+				String.valueOf( Math.round( rows / ( nanos / 1e9 ) ) ), String.valueOf( rows ),
+				String.valueOf( TimeUnit.NANOSECONDS.toMillis( nanos ) ) ) ).append( Const.CR );
+			report.append( bytesPerRow < 0
+				? BaseMessages.getString( PKG, "CoalesceProfiler.Report.AllocationUnknown" )
+				: BaseMessages.getString( PKG, "CoalesceProfiler.Report.Allocation", String.valueOf( bytesPerRow ) ) ).append( Const.CR );
+		}
+
+		for ( int i = 0; i < outputFields.length; i++ ) {
+			report.append( Const.CR ).append( BaseMessages.getString( PKG, "CoalesceProfiler.Report.Field", outputFields[i] ) ).append( Const.CR );
+			report.append( "  " ).append( BaseMessages.getString( PKG, "CoalesceProfiler.Report.AllNull", percent( allNullCounts[i] ) ) )
+				.append( Const.CR );
+
+			List<Map.Entry<String, long[]>> fieldWinners = new ArrayList<Map.Entry<String, long[]>>( winners.get( i ).entrySet() );
+			Collections.sort( fieldWinners, new Comparator<Map.Entry<String, long[]>>() {
+				@Override
+				public int compare( Map.Entry<String, long[]> a, Map.Entry<String, long[]> b ) {
+					return a.getValue()[0] < b.getValue()[0] ? 1 : a.getValue()[0] > b.getValue()[0] ? -1 : 0;
+				}
+			} );
+			for ( Map.Entry<String, long[]> winner : fieldWinners ) {
+				report.append( "  " ).append( BaseMessages.getString( PKG, "CoalesceProfiler.Report.Winner", winner.getKey(),
+					percent( winner.getValue()[0] ) ) ).append( Const.CR );
+			}
+
+			for ( String conversion : conversions.get( i ) ) {
+				report.append( "  " ).append( BaseMessages.getString( PKG, "CoalesceProfiler.Report.Conversion", conversion ) )
+					.append( Const.CR );
+			}
+		}
+		return report.toString();
+	}
+
+	private String percent( long count ) {
+		return sampleSize == 0 ? "0" : String.format( "%.1f", 100.0 * count / sampleSize );
+	}
+}
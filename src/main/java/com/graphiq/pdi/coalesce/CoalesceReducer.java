@@ -0,0 +1,626 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Picks the winning candidate of an output field.
+ *
+ * One implementation per strategy, and for min and max per data type, is chosen when the plan is built.
+ * Integer, Number and Date candidates are compared as primitives; other types, and candidates of mixed
+ * types, are compared in the output type. When several candidates qualify the earliest one wins.
+ */
+abstract class CoalesceReducer {
+
+	/**
+	 * above this number of candidates the majority vote counts with a hash map instead of pairwise comparisons
+	 */
+	private static final int PAIRWISE_LIMIT = 16;
+
+	/**
+	 * from this number of candidates on first and last non null scan the candidates in blocks of 64
+	 */
+	private static final int BLOCK_SCAN_MIN = 64;
+
+	final int[] candidateIndexes;
+	final CoalesceNullMatcher[] nullMatchers;
+
+	CoalesceReducer( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers ) {
+		this.candidateIndexes = candidateIndexes;
+		this.nullMatchers = nullMatchers;
+	}
+
+	/**
+	 * @return the input index of the winning candidate, -1 if all candidates are null
+	 */
+	abstract int reduce( Object[] r ) throws KettleValueException;
+
+	/**
+	 * @return true if the candidates are converted to the output type for every row to be compared
+	 */
+	boolean isConverting() {
+		return false;
+	}
+
+	/**
+	 * @param scan    the shared scan of the plan, null if there is none
+	 * @param columns the scan column of every candidate
+	 */
+	static CoalesceReducer create( int strategy, int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers,
+		ValueMetaInterface[] candidateMetas, ValueMetaInterface outputMeta, CoalesceScan scan, int[] columns ) {
+		int commonType = getCommonType( candidateMetas );
+
+		if ( scan != null ) {
+			// the null checks are answered by the scan, candidates in column order resolve with bit operations
+			if ( ( strategy == CoalesceMeta.STRATEGY_FIRST || strategy == CoalesceMeta.STRATEGY_LAST )
+				&& isAscending( columns ) && columns.length > 0 ) {
+				return new MaskedScan( candidateIndexes, nullMatchers, scan, columns, strategy == CoalesceMeta.STRATEGY_LAST );
+			}
+			nullMatchers = new CoalesceNullMatcher[columns.length];
+			for ( int i = 0; i < columns.length; i++ ) {
+				nullMatchers[i] = scan.getMatcher( columns[i] );
+			}
+		}
+
+		switch ( strategy ) {
+			case CoalesceMeta.STRATEGY_LAST:
+				if ( candidateIndexes.length >= BLOCK_SCAN_MIN ) {
+					return new BlockScan( candidateIndexes, nullMatchers, true );
+				}
+				return new LastNonNull( candidateIndexes, nullMatchers );
+
+			case CoalesceMeta.STRATEGY_MIN:
+			case CoalesceMeta.STRATEGY_MAX:
+				boolean max = strategy == CoalesceMeta.STRATEGY_MAX;
+				switch ( commonType ) {
+					case ValueMetaInterface.TYPE_INTEGER:
+						return new IntegerExtreme( candidateIndexes, nullMatchers, max );
+					case ValueMetaInterface.TYPE_NUMBER:
+						return new NumberExtreme( candidateIndexes, nullMatchers, max );
+					case ValueMetaInterface.TYPE_DATE:
+					case ValueMetaInterface.TYPE_TIMESTAMP:
+						return new DateExtreme( candidateIndexes, nullMatchers, max );
+					default:
+						return new ConvertingExtreme( candidateIndexes, nullMatchers, candidateMetas, outputMeta, max );
+				}
+
+			case CoalesceMeta.STRATEGY_LONGEST:
+				if ( commonType == ValueMetaInterface.TYPE_STRING ) {
+					return new LongestString( candidateIndexes, nullMatchers, null );
+				}
+				return new LongestString( candidateIndexes, nullMatchers, candidateMetas );
+
+			case CoalesceMeta.STRATEGY_MAJORITY:
+				if ( commonType != ValueMetaInterface.TYPE_NONE && commonType != ValueMetaInterface.TYPE_BIGNUMBER ) {
+					// values of one type can be compared with equals, BigDecimal.equals would tell 1.0 and 1 apart
+					return new Majority( candidateIndexes, nullMatchers, null, null );
+				}
+				return new Majority( candidateIndexes, nullMatchers, candidateMetas, outputMeta );
+
+			default:
+				if ( candidateIndexes.length >= BLOCK_SCAN_MIN ) {
+					return new BlockScan( candidateIndexes, nullMatchers, false );
+				}
+				return new FirstNonNull( candidateIndexes, nullMatchers );
+		}
+	}
+
+	/**
+	 * For candidates including expressions. First and last non null evaluate an expression only when it is
+	 * reached, the other strategies need all values and reduce the extended row once every candidate is in it.
+	 *
+	 * @param expressions the expression of every candidate, null for field candidates
+	 * @param extendedRow the plan's row receiving the expression values at their indexes
+	 */
+	static CoalesceReducer create( int strategy, int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers,
+		ValueMetaInterface[] candidateMetas, ValueMetaInterface outputMeta, CoalesceExpression[] expressions,
+		Object[] extendedRow ) {
+		switch ( strategy ) {
+			case CoalesceMeta.STRATEGY_FIRST:
+			case CoalesceMeta.STRATEGY_LAST:
+				return new LazyExpressions( candidateIndexes, nullMatchers, expressions, extendedRow,
+					strategy == CoalesceMeta.STRATEGY_LAST );
+			default:
+				return new EagerExpressions( candidateIndexes, nullMatchers, expressions, extendedRow,
+					create( strategy, candidateIndexes, nullMatchers, candidateMetas, outputMeta, (CoalesceScan) null, null ) );
+		}
+	}
+
+	/**
+	 * @return the data type shared by all candidates with normal storage, TYPE_NONE if there is none
+	 */
+	static int getCommonType( ValueMetaInterface[] candidateMetas ) {
+		int type = ValueMetaInterface.TYPE_NONE;
+		for ( int i = 0; i < candidateMetas.length; i++ ) {
+			if ( !candidateMetas[i].isStorageNormal() || ( i > 0 && candidateMetas[i].getType() != type ) ) {
+				return ValueMetaInterface.TYPE_NONE;
+			}
+			type = candidateMetas[i].getType();
+		}
+		return type;
+	}
+
+	private static boolean isAscending( int[] values ) {
+		for ( int i = 1; i < values.length; i++ ) {
+			if ( values[i] <= values[i - 1] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * First or last non null from the bits of the shared scan: the scan's non null bits are masked with
+	 * the field's columns and the lowest or highest remaining bit is the winner.
+	 */
+	private static class MaskedScan extends CoalesceReducer {
+		private final CoalesceScan scan;
+		private final long[] mask;
+		private final int firstWord;
+		private final boolean last;
+
+		MaskedScan( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, CoalesceScan scan, int[] columns, boolean last ) {
+			super( candidateIndexes, nullMatchers );
+			this.scan = scan;
+			this.last = last;
+			this.firstWord = columns[0] >>> 6;
+			this.mask = new long[( columns[columns.length - 1] >>> 6 ) - firstWord + 1];
+			for ( int column : columns ) {
+				mask[( column >>> 6 ) - firstWord] |= 1L << column;
+			}
+		}
+
+		@Override
+		int reduce( Object[] r ) {
+			long[] nonNull = scan.nonNull;
+			for ( int n = 0; n < mask.length; n++ ) {
+				int word = last ? mask.length - 1 - n : n;
+				long bits = nonNull[firstWord + word] & mask[word];
+				if ( bits != 0 ) {
+					int bit = last ? 63 - Long.numberOfLeadingZeros( bits ) : Long.numberOfTrailingZeros( bits );
+					return scan.columnIndexes[( ( firstWord + word ) << 6 ) + bit];
+				}
+			}
+			return -1;
+		}
+	}
+
+	static class FirstNonNull extends CoalesceReducer {
+		FirstNonNull( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers ) {
+			super( candidateIndexes, nullMatchers );
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				if ( !nullMatchers[i].isNull( r[index] ) ) {
+					return index;
+				}
+			}
+			return -1;
+		}
+	}
+
+	static class LastNonNull extends CoalesceReducer {
+		LastNonNull( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers ) {
+			super( candidateIndexes, nullMatchers );
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			for ( int i = candidateIndexes.length - 1; i >= 0; i-- ) {
+				int index = candidateIndexes[i];
+				if ( !nullMatchers[i].isNull( r[index] ) ) {
+					return index;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * First or last non null over wide candidate lists. The candidates are checked in blocks of 64, the ones
+	 * that are only null when they are null (no sentinels, no empty strings) with a plain reference test
+	 * instead of a call through their matcher. The non null candidates of a block are collected in a bitset
+	 * and the winner is found with a single bit scan.
+	 */
+	private static class BlockScan extends CoalesceReducer {
+		private final long[] plainNullCheck;
+		private final boolean last;
+
+		BlockScan( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, boolean last ) {
+			super( candidateIndexes, nullMatchers );
+			this.last = last;
+			this.plainNullCheck = new long[( candidateIndexes.length + 63 ) >>> 6];
+			for ( int i = 0; i < nullMatchers.length; i++ ) {
+				if ( nullMatchers[i] == CoalesceNullMatcher.NULL_ONLY ) {
+					plainNullCheck[i >>> 6] |= 1L << i;
+				}
+			}
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int blocks = plainNullCheck.length;
+			for ( int n = 0; n < blocks; n++ ) {
+				int block = last ? blocks - 1 - n : n;
+				long nonNull = scanBlock( r, block );
+				if ( nonNull != 0 ) {
+					int bit = last ? 63 - Long.numberOfLeadingZeros( nonNull ) : Long.numberOfTrailingZeros( nonNull );
+					return candidateIndexes[( block << 6 ) + bit];
+				}
+			}
+			return -1;
+		}
+
+		private long scanBlock( Object[] r, int block ) throws KettleValueException {
+			int start = block << 6;
+			int end = Math.min( start + 64, candidateIndexes.length );
+			long plain = plainNullCheck[block];
+			long nonNull = 0;
+			for ( int i = start; i < end; i++ ) {
+				long bit = 1L << i;
+				Object value = r[candidateIndexes[i]];
+				if ( ( plain & bit ) != 0 ? value != null : !nullMatchers[i].isNull( value ) ) {
+					nonNull |= bit;
+				}
+			}
+			return nonNull;
+		}
+	}
+
+	private static class IntegerExtreme extends CoalesceReducer {
+		private final boolean max;
+
+		IntegerExtreme( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, boolean max ) {
+			super( candidateIndexes, nullMatchers );
+			this.max = max;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int winner = -1;
+			long best = 0;
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				if ( nullMatchers[i].isNull( r[index] ) ) {
+					continue;
+				}
+				long value = ( (Long) r[index] ).longValue();
+				if ( winner < 0 || ( max ? value > best : value < best ) ) {
+					winner = index;
+					best = value;
+				}
+			}
+			return winner;
+		}
+	}
+
+	private static class NumberExtreme extends CoalesceReducer {
+		private final boolean max;
+
+		NumberExtreme( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, boolean max ) {
+			super( candidateIndexes, nullMatchers );
+			this.max = max;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int winner = -1;
+			double best = 0;
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				if ( nullMatchers[i].isNull( r[index] ) ) {
+					continue;
+				}
+				double value = ( (Double) r[index] ).doubleValue();
+				if ( winner < 0 || ( max ? value > best : value < best ) ) {
+					winner = index;
+					best = value;
+				}
+			}
+			return winner;
+		}
+	}
+
+	private static class DateExtreme extends CoalesceReducer {
+		private final boolean max;
+
+		DateExtreme( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, boolean max ) {
+			super( candidateIndexes, nullMatchers );
+			this.max = max;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int winner = -1;
+			long best = 0;
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				if ( nullMatchers[i].isNull( r[index] ) ) {
+					continue;
+				}
+				long value = ( (Date) r[index] ).getTime();
+				if ( winner < 0 || ( max ? value > best : value < best ) ) {
+					winner = index;
+					best = value;
+				}
+			}
+			return winner;
+		}
+	}
+
+	/**
+	 * First or last non null over fields and expressions, an expression is evaluated when it is reached.
+	 */
+	private static class LazyExpressions extends CoalesceReducer {
+		private final CoalesceExpression[] expressions;
+		private final Object[] extendedRow;
+		private final boolean last;
+
+		LazyExpressions( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, CoalesceExpression[] expressions,
+			Object[] extendedRow, boolean last ) {
+			super( candidateIndexes, nullMatchers );
+			this.expressions = expressions;
+			this.extendedRow = extendedRow;
+			this.last = last;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int n = candidateIndexes.length;
+			for ( int k = 0; k < n; k++ ) {
+				int i = last ? n - 1 - k : k;
+				int index = candidateIndexes[i];
+				Object value;
+				if ( expressions[i] == null ) {
+					value = r[index];
+				} else {
+					value = expressions[i].evaluate( r );
+					extendedRow[index] = value;
+				}
+				if ( !nullMatchers[i].isNull( value ) ) {
+					return index;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Copies the field candidates and the expression values into the extended row and lets the strategy's
+	 * reducer pick from it.
+	 */
+	private static class EagerExpressions extends CoalesceReducer {
+		private final CoalesceExpression[] expressions;
+		private final Object[] extendedRow;
+		private final CoalesceReducer reducer;
+
+		EagerExpressions( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, CoalesceExpression[] expressions,
+			Object[] extendedRow, CoalesceReducer reducer ) {
+			super( candidateIndexes, nullMatchers );
+			this.expressions = expressions;
+			this.extendedRow = extendedRow;
+			this.reducer = reducer;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				extendedRow[index] = expressions[i] == null ? r[index] : expressions[i].evaluate( r );
+			}
+			return reducer.reduce( extendedRow );
+		}
+
+		@Override
+		boolean isConverting() {
+			return reducer.isConverting();
+		}
+	}
+
+	/**
+	 * Compares in the output type, used for strings, big numbers and candidates of mixed types.
+	 */
+	private static class ConvertingExtreme extends CoalesceReducer {
+		private final ValueMetaInterface[] candidateMetas;
+		private final ValueMetaInterface outputMeta;
+		private final boolean max;
+
+		ConvertingExtreme( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, ValueMetaInterface[] candidateMetas,
+			ValueMetaInterface outputMeta, boolean max ) {
+			super( candidateIndexes, nullMatchers );
+			this.candidateMetas = candidateMetas;
+			this.outputMeta = outputMeta;
+			this.max = max;
+		}
+
+		@Override
+		boolean isConverting() {
+			return true;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int winner = -1;
+			Object best = null;
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				if ( nullMatchers[i].isNull( r[index] ) ) {
+					continue;
+				}
+				Object value = outputMeta.isStorageNormal() && candidateMetas[i].getType() == outputMeta.getType()
+					&& candidateMetas[i].isStorageNormal() ? r[index] : outputMeta.convertData( candidateMetas[i], r[index] );
+				if ( winner < 0 ) {
+					winner = index;
+					best = value;
+					continue;
+				}
+				int comparison = outputMeta.compare( value, best );
+				if ( max ? comparison > 0 : comparison < 0 ) {
+					winner = index;
+					best = value;
+				}
+			}
+			return winner;
+		}
+	}
+
+	/**
+	 * Longest string representation, string candidates are measured without any conversion.
+	 */
+	private static class LongestString extends CoalesceReducer {
+		private final ValueMetaInterface[] candidateMetas;
+
+		LongestString( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, ValueMetaInterface[] candidateMetas ) {
+			super( candidateIndexes, nullMatchers );
+			this.candidateMetas = candidateMetas;
+		}
+
+		@Override
+		boolean isConverting() {
+			return candidateMetas != null;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			int winner = -1;
+			int best = -1;
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				int index = candidateIndexes[i];
+				if ( nullMatchers[i].isNull( r[index] ) ) {
+					continue;
+				}
+				int length = candidateMetas == null ? ( (String) r[index] ).length() : candidateMetas[i].getString( r[index] ).length();
+				if ( length > best ) {
+					winner = index;
+					best = length;
+				}
+			}
+			return winner;
+		}
+	}
+
+	/**
+	 * Most frequent value, the earliest candidate wins a tie. Without value metas the raw values are
+	 * compared with equals, otherwise they are converted to the output type first.
+	 */
+	private static class Majority extends CoalesceReducer {
+		private final ValueMetaInterface[] candidateMetas;
+		private final ValueMetaInterface outputMeta;
+		private final Object[] values;
+		private final Map<Object, int[]> counts;
+
+		Majority( int[] candidateIndexes, CoalesceNullMatcher[] nullMatchers, ValueMetaInterface[] candidateMetas,
+			ValueMetaInterface outputMeta ) {
+			super( candidateIndexes, nullMatchers );
+			this.candidateMetas = candidateMetas;
+			this.outputMeta = outputMeta;
+			this.values = new Object[candidateIndexes.length];
+			this.counts = candidateIndexes.length > PAIRWISE_LIMIT ? new HashMap<Object, int[]>() : null;
+		}
+
+		@Override
+		boolean isConverting() {
+			return candidateMetas != null;
+		}
+
+		@Override
+		int reduce( Object[] r ) throws KettleValueException {
+			for ( int i = 0; i < candidateIndexes.length; i++ ) {
+				Object value = r[candidateIndexes[i]];
+				if ( nullMatchers[i].isNull( value ) ) {
+					values[i] = null;
+				} else {
+					values[i] = candidateMetas == null ? value : outputMeta.convertData( candidateMetas[i], value );
+				}
+			}
+			return counts == null ? reducePairwise() : reduceCounting();
+		}
+
+		private int reducePairwise() throws KettleValueException {
+			int winner = -1;
+			int best = 0;
+			for ( int i = 0; i < values.length; i++ ) {
+				if ( values[i] == null ) {
+					continue;
+				}
+				int count = 1;
+				for ( int j = i + 1; j < values.length; j++ ) {
+					if ( values[j] != null && isEqual( values[i], values[j] ) ) {
+						count++;
+					}
+				}
+				if ( count > best ) {
+					winner = candidateIndexes[i];
+					best = count;
+				}
+			}
+			return winner;
+		}
+
+		private int reduceCounting() {
+			counts.clear();
+			int winner = -1;
+			int best = 0;
+			int bestPosition = 0;
+			for ( int i = 0; i < values.length; i++ ) {
+				if ( values[i] == null ) {
+					continue;
+				}
+				// count[0] is the number of occurrences, count[1] the position of the first one
+				Object key = getCountingKey( values[i] );
+				int[] count = counts.get( key );
+				if ( count == null ) {
+					count = new int[] { 0, i };
+					counts.put( key, count );
+				}
+				count[0]++;
+				if ( count[0] > best || ( count[0] == best && count[1] < bestPosition ) ) {
+					winner = candidateIndexes[count[1]];
+					best = count[0];
+					bestPosition = count[1];
+				}
+			}
+			return winner;
+		}
+
+		/**
+		 * Values equal by compare() have to be equal keys: BigDecimal.equals would tell 1.0 and 1 apart, the
+		 * key drops their trailing zeros. Zero is the exception, older JDKs keep its trailing zeros.
+		 */
+		private static Object getCountingKey( Object value ) {
+			if ( value instanceof BigDecimal ) {
+				BigDecimal number = (BigDecimal) value;
+				return number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+			}
+			return value;
+		}
+
+		private boolean isEqual( Object a, Object b ) throws KettleValueException {
+			return outputMeta == null ? a.equals( b ) : outputMeta.compare( a, b ) == 0;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import org.pentaho.di.core.exception.KettleValueException;
+
+/**
+ * Null checks shared by output fields with overlapping candidates.
+ *
+ * Every distinct candidate check, an input field together with its null matcher, is a column of the scan.
+ * The scan runs once per row and stores a bit per column that is set when the value isn't null, output fields
+ * then resolve their winner from these bits instead of checking the values again. A scan holds the bits of
+ * the current row, so it belongs to one step copy.
+ */
+class CoalesceScan {
+
+	/**
+	 * input index of every column
+	 */
+	final int[] columnIndexes;
+	private final CoalesceNullMatcher[] nullMatchers;
+	private final long[] plainNullCheck;
+
+	/**
+	 * the non null bits of the current row, bit i of word i / 64 for column i
+	 */
+	final long[] nonNull;
+
+	CoalesceScan( int[] columnIndexes, CoalesceNullMatcher[] nullMatchers ) {
+		this.columnIndexes = columnIndexes;
+		this.nullMatchers = nullMatchers;
+		this.nonNull = new long[( columnIndexes.length + 63 ) >>> 6];
+		this.plainNullCheck = new long[nonNull.length];
+		for ( int i = 0; i < nullMatchers.length; i++ ) {
+			if ( nullMatchers[i] == CoalesceNullMatcher.NULL_ONLY ) {
+				plainNullCheck[i >>> 6] |= 1L << i;
+			}
+		}
+	}
+
+	void scan( Object[] r ) throws KettleValueException {
+		for ( int word = 0; word < nonNull.length; word++ ) {
+			int start = word << 6;
+			int end = Math.min( start + 64, columnIndexes.length );
+			long plain = plainNullCheck[word];
+			long bits = 0;
+			for ( int i = start; i < end; i++ ) {
+				long bit = 1L << i;
+				Object value = r[columnIndexes[i]];
+				if ( ( plain & bit ) != 0 ? value != null : !nullMatchers[i].isNull( value ) ) {
+					bits |= bit;
+				}
+			}
+			nonNull[word] = bits;
+		}
+	}
+
+	boolean isNull( int column ) {
+		return ( nonNull[column >>> 6] & ( 1L << column ) ) == 0;
+	}
+
+	/**
+	 * @return a matcher answering from the bits of the current row, it ignores the value it's given
+	 */
+	CoalesceNullMatcher getMatcher( final int column ) {
+		return new CoalesceNullMatcher() {
+			@Override
+			boolean isNull( Object value ) {
+				return CoalesceScan.this.isNull( column );
+			}
+		};
+	}
+}
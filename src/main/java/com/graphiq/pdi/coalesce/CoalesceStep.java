@@ -17,11 +17,15 @@
 package com.graphiq.pdi.coalesce;
 
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -31,8 +35,13 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 public class CoalesceStep extends BaseStep implements StepInterface {
@@ -51,7 +60,457 @@ public class CoalesceStep extends BaseStep implements StepInterface {
 
 		first = true;
 
-		return super.init( meta, data );
+		if ( !super.init( meta, data ) ) {
+			return false;
+		}
+		if ( !initDictionaries( meta, data ) || !initEncoders( meta, data ) || !initDefaultValues( meta, data )
+			|| !initRoutes( meta, data ) || !initMerge( meta, data ) || !initGrouping( meta ) || !initChangeFilter( meta, data ) ) {
+			return false;
+		}
+		initTypeInference( meta, data );
+		data.conflictCounts = new long[meta.getOutputFields().length];
+		initInternPools( meta, data );
+		// merged streams are validated against the layouts of both merged steps
+		return meta.isMerging() ? initMergePlans( meta ) : initPlan( meta, data );
+	}
+
+	/**
+	 * Looks up the row sets of the merged streams. A merged row comes from up to two input rows, so the
+	 * settings that describe a single input row can't be combined with merging.
+	 */
+	private boolean initMerge( CoalesceMeta meta, CoalesceData data ) {
+		if ( !meta.isMerging() ) {
+			return true;
+		}
+		if ( meta.hasSingleRowSettings() || meta.isGrouping() ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.MergeUnsupported" ) );
+			return false;
+		}
+
+		data.mergeRowSets = new RowSet[CoalesceMeta.nrMergeStreams];
+		for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+			String step = meta.getMergeStep( i );
+			try {
+				data.mergeRowSets[i] = Const.isEmpty( step ) ? null : findInputRowSet( step );
+			} catch ( KettleStepException e ) {
+				logError( e.getMessage(), e );
+				return false;
+			}
+			if ( data.mergeRowSets[i] == null ) {
+				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.UnknownMergeStep", step,
+					CoalesceMeta.mergeDescriptions[i] ) );
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A row is only unchanged against the last row of its key if all rows of the key reach this step copy.
+	 */
+	private boolean initChangeFilter( CoalesceMeta meta, CoalesceData data ) {
+		if ( !meta.isSuppressingUnchanged() ) {
+			return true;
+		}
+		if ( meta.isMerging() || meta.isGrouping() ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.ChangeUnsupported" ) );
+			return false;
+		}
+		if ( getStepMeta().getCopies() > 1 && !getStepMeta().isPartitioned() ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.ChangeCopies" ) );
+			return false;
+		}
+		data.changeFilter = new CoalesceChangeFilter();
+		return true;
+	}
+
+	/**
+	 * A grouped row comes from all rows of its key, so they must all reach this step copy, and the settings
+	 * that describe a single input row can't be combined with grouping. The workers fill a group's fields with
+	 * the first non null candidate over its rows, other strategies would need all of a group's candidates.
+	 * The workers start with the first row.
+	 */
+	private boolean initGrouping( CoalesceMeta meta ) {
+		if ( !meta.isGrouping() ) {
+			return true;
+		}
+		if ( meta.hasSingleRowSettings() ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.GroupUnsupported" ) );
+			return false;
+		}
+		int strategyField = meta.getNonFirstStrategyField();
+		if ( strategyField >= 0 ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.GroupStrategy", meta.getOutputFields()[strategyField],
+				CoalesceMeta.strategyDescriptions[meta.getStrategies()[strategyField]] ) );
+			return false;
+		}
+		if ( getStepMeta().getCopies() > 1 && !getStepMeta().isPartitioned() ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.GroupCopies" ) );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The pools live as long as the step copy, so values stay shared when the input layout changes.
+	 */
+	private void initInternPools( CoalesceMeta meta, CoalesceData data ) {
+		data.internPools = new CoalesceInternPool[meta.getOutputFields().length];
+		for ( int i = 0; i < data.internPools.length; i++ ) {
+			if ( meta.getInternPoolSizes()[i] > 0 && !meta.isEncoding( i ) ) {
+				data.internPools[i] = new CoalesceInternPool( meta.getInternPoolSizes()[i] );
+			}
+		}
+	}
+
+	/**
+	 * Fields without a value type would be Strings when their candidates' types differ, or are Strings
+	 * already. With type inference on their type is taken from the first rows instead.
+	 */
+	private void initTypeInference( CoalesceMeta meta, CoalesceData data ) {
+		if ( !meta.isInferTypes() ) {
+			return;
+		}
+		boolean[] inferred = new boolean[meta.getOutputFields().length];
+		boolean inferAny = false;
+		for ( int i = 0; i < inferred.length; i++ ) {
+			inferred[i] = meta.getValueType()[i] == ValueMetaInterface.TYPE_NONE && !meta.isEncoding( i );
+			inferAny |= inferred[i];
+		}
+		if ( inferAny ) {
+			data.typeInference = new CoalesceTypeInference( inferred );
+			data.sampleRows = new ArrayList<Object[]>();
+			data.sampleLayouts = new ArrayList<RowMetaInterface>();
+		}
+	}
+
+	/**
+	 * Holds a row back and samples the winning values of the fields whose type is inferred.
+	 */
+	private void sampleRow( CoalesceData data, Object[] r ) throws KettleException {
+		CoalescePlan plan = data.plan;
+		if ( plan.scan != null ) {
+			plan.scan.scan( r );
+		}
+		for ( int i = 0; i < plan.outputFields.length; i++ ) {
+			// fields with a non String type from their candidates keep it
+			if ( data.typeInference.isInferred( i )
+				&& plan.outputFields[i].valueMeta.getType() == ValueMetaInterface.TYPE_STRING ) {
+				int inputIndex = plan.outputFields[i].reducer.reduce( r );
+				if ( inputIndex >= 0 ) {
+					data.typeInference.sample( i, plan.getCandidateMeta( inputIndex ), plan.getCandidateValue( r, inputIndex ) );
+				}
+			}
+		}
+		data.sampleRows.add( r );
+		data.sampleLayouts.add( getInputRowMeta() );
+	}
+
+	/**
+	 * Fixes the inferred types, recompiles the plans with them and writes the rows held back. From here on
+	 * the output types don't change, values that can't be converted to them are errors like with a value type.
+	 */
+	private void flushSample( CoalesceMeta meta, CoalesceData data ) throws KettleException {
+		List<Object[]> rows = data.sampleRows;
+		List<RowMetaInterface> layouts = data.sampleLayouts;
+		data.sampleRows = null;
+		data.sampleLayouts = null;
+
+		data.inferredTypes = data.typeInference.getTypes();
+		for ( int i = 0; i < data.inferredTypes.length; i++ ) {
+			if ( data.inferredTypes[i] != ValueMetaInterface.TYPE_NONE && data.plan != null ) {
+				// only Strings are narrowed, fields typed by their candidates keep their type
+				int type = data.plan.outputFields[i].valueMeta.getType();
+				if ( type != ValueMetaInterface.TYPE_STRING ) {
+					data.inferredTypes[i] = type;
+				}
+				logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.InferredType", meta.getOutputFields()[i],
+					ValueMetaFactory.getValueMetaName( data.inferredTypes[i] ), String.valueOf( rows.size() ) ) );
+			}
+		}
+
+		// the plans compiled so far have the types from before the sampling
+		data.plansByLayout.clear();
+		data.plansByFingerprint.clear();
+		data.plan = null;
+
+		for ( int i = 0; i < rows.size(); i++ ) {
+			if ( data.plan == null || data.plan.inputRowMeta != layouts.get( i ) ) {
+				data.plan = getPlan( meta, data, layouts.get( i ) );
+				data.outputRowMeta = data.plan.outputRowMeta;
+			}
+			buildResult( meta, data, rows.get( i ) );
+			if ( isChanged( data, rows.get( i ) ) ) {
+				writeRow( data );
+			}
+		}
+	}
+
+	/**
+	 * Validates the step against the layout announced by the previous steps by compiling a plan for it, so a
+	 * misconfigured step fails before any upstream step starts reading. The plan isn't kept: the rows come
+	 * with their own instance of the layout, and its metas are the ones to convert with, so the plan of the
+	 * rows is compiled on the first row. When the previous steps can't tell their layout, the first row is
+	 * also where the step is validated.
+	 */
+	private boolean initPlan( CoalesceMeta meta, CoalesceData data ) {
+		RowMetaInterface prev;
+		try {
+			prev = getTransMeta().getPrevStepFields( getStepMeta() );
+		} catch ( KettleStepException e ) {
+			if ( log.isDetailed() ) {
+				logDetailed( BaseMessages.getString( PKG, "CoalesceStep.Log.UnknownInputLayout", e.getMessage() ) );
+			}
+			return true;
+		}
+		if ( prev == null || prev.isEmpty() ) {
+			return true;
+		}
+
+		try {
+			compilePlan( meta, data, prev );
+		} catch ( KettleException e ) {
+			logError( e.getMessage(), e );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Validates the step against the layouts announced by the merged steps like initPlan(), both streams must
+	 * hold the candidates and the merge keys. The plans are compiled from the first rows of the streams.
+	 */
+	private boolean initMergePlans( CoalesceMeta meta ) {
+		List<String> missingFields = new ArrayList<String>();
+		List<RowMetaInterface> layouts = new ArrayList<RowMetaInterface>();
+		try {
+			for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+				String step = meta.getMergeStep( i );
+				RowMetaInterface fields;
+				try {
+					fields = getTransMeta().getStepFields( step );
+				} catch ( KettleStepException e ) {
+					if ( log.isDetailed() ) {
+						logDetailed( BaseMessages.getString( PKG, "CoalesceStep.Log.UnknownInputLayout", e.getMessage() ) );
+					}
+					continue;
+				}
+				if ( fields == null || fields.isEmpty() ) {
+					continue;
+				}
+				addMissingNames( meta.getMergeKeyFields(), fields,
+					BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamField.MergeKey", step ), missingFields );
+				addMissingFields( meta, fields, missingFields );
+				layouts.add( fields );
+			}
+			throwMissingFields( missingFields );
+
+			CoalesceData data = (CoalesceData) getStepDataInterface();
+			for ( RowMetaInterface layout : layouts ) {
+				compilePlan( meta, data, layout );
+			}
+		} catch ( KettleException e ) {
+			logError( e.getMessage(), e );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up the row sets of the route targets once, so routing a row is an array lookup.
+	 */
+	private boolean initRoutes( CoalesceMeta meta, CoalesceData data ) {
+		if ( !meta.isRouting() ) {
+			return true;
+		}
+		if ( Const.indexOfString( meta.getRouteField(), meta.getOutputFields() ) < 0 ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.UnknownRouteField", meta.getRouteField() ) );
+			return false;
+		}
+
+		data.routeRowSets = new RowSet[CoalesceMeta.nrRoutes];
+		for ( int i = 0; i < CoalesceMeta.nrRoutes; i++ ) {
+			String target = meta.getRouteTarget( i );
+			if ( Const.isEmpty( target ) ) {
+				continue;
+			}
+			try {
+				data.routeRowSets[i] = findOutputRowSet( target );
+			} catch ( KettleStepException e ) {
+				logError( e.getMessage(), e );
+				return false;
+			}
+			if ( data.routeRowSets[i] == null ) {
+				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.UnknownRouteTarget", target,
+					CoalesceMeta.routeDescriptions[i] ) );
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the current output row is to be written, false if its output values are the ones last
+	 * written for its change keys
+	 */
+	private boolean isChanged( CoalesceData data, Object[] r ) throws KettleValueException {
+		if ( data.changeFilter == null ) {
+			return true;
+		}
+		CoalescePlan plan = data.plan;
+		return data.changeFilter.isChanged( r, plan.changeKeyIndexes, plan.changeKeyMetas, data.outputRowValues,
+			plan.changeOutputIndexes, plan.changeOutputMetas );
+	}
+
+	/**
+	 * @return the number of rows dropped because their output values didn't change, -1 if none are dropped
+	 */
+	long getSuppressedRows() {
+		CoalesceChangeFilter changeFilter = ( (CoalesceData) getStepDataInterface() ).changeFilter;
+		return changeFilter == null ? -1 : changeFilter.getSuppressed();
+	}
+
+	/**
+	 * Writes the current output row, to the target of its route when rows are routed. Rows of a route without
+	 * a target go to the default target, and are dropped if there is none either.
+	 */
+	private void writeRow( CoalesceData data ) throws KettleStepException {
+		if ( data.routeRowSets == null ) {
+			putRow( data.outputRowMeta, data.outputRowValues );
+			return;
+		}
+		RowSet rowSet = data.routeRowSets[data.plan.getRoute( data.routeWinner )];
+		if ( rowSet == null ) {
+			rowSet = data.routeRowSets[CoalesceMeta.ROUTE_DEFAULT];
+		}
+		if ( rowSet != null ) {
+			putRowTo( data.outputRowMeta, data.outputRowValues, rowSet );
+		}
+	}
+
+	/**
+	 * Converts the default values to their output type once so the row loop only has to store a reference.
+	 * Fields without a value type get their output type from the input layout, so their defaults are
+	 * converted together with the output row structure on the first row.
+	 */
+	private boolean initDefaultValues( CoalesceMeta meta, CoalesceData data ) {
+		int nrFields = meta.getOutputFields().length;
+		data.defaultValues = new Object[nrFields];
+
+		for ( int i = 0; i < nrFields; i++ ) {
+			if ( meta.getValueType()[i] == ValueMetaInterface.TYPE_NONE && !meta.isEncoding( i ) ) {
+				continue;
+			}
+			try {
+				// encoded fields are coalesced as Strings
+				ValueMetaInterface vm = ValueMetaFactory.createValueMeta( meta.getOutputFields()[i],
+					meta.isEncoding( i ) ? ValueMetaInterface.TYPE_STRING : meta.getValueType()[i] );
+				data.defaultValues[i] = convertDefaultValue( meta, vm, i );
+			} catch ( KettleException e ) {
+				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.InvalidDefaultValue",
+					environmentSubstitute( meta.getDefaultValues()[i] ), meta.getOutputFields()[i] ), e );
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Object convertDefaultValue( CoalesceMeta meta, ValueMetaInterface vm, int transIndex ) throws KettleValueException {
+		String defaultValue = environmentSubstitute( meta.getDefaultValues()[transIndex] );
+		if ( Const.isEmpty( defaultValue ) ) {
+			return null;
+		}
+		return vm.convertData( new ValueMeta( vm.getName(), ValueMetaInterface.TYPE_STRING ), defaultValue );
+	}
+
+	/**
+	 * Maps the fallback dictionaries, or creates their builders when the step runs in build mode.
+	 * Mapping a dictionary only reads its header, so this is cheap even for very large files.
+	 */
+	private boolean initDictionaries( CoalesceMeta meta, CoalesceData data ) {
+		int nrFields = meta.getOutputFields().length;
+		data.dictionaries = new CoalesceDictionary[nrFields];
+		data.dictionaryBuilders = new CoalesceDictionaryBuilder[nrFields];
+
+		if ( !meta.hasDictionaries() ) {
+			return true;
+		}
+		if ( Const.isEmpty( meta.getDictionaryKeyField() ) ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.NoDictionaryKeyField" ) );
+			return false;
+		}
+		if ( meta.isBuildDictionaries() && getStepMeta().getCopies() > 1 ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.DictionaryBuildCopies" ) );
+			return false;
+		}
+		if ( meta.isBuildDictionaries() && !checkDistinctDictionaryTargets( meta ) ) {
+			return false;
+		}
+		data.dictionaryValueMeta = new ValueMeta( meta.getDictionaryKeyField(), ValueMetaInterface.TYPE_STRING );
+
+		for ( int i = 0; i < nrFields; i++ ) {
+			String filename = environmentSubstitute( meta.getDictionaryFiles()[i] );
+			if ( Const.isEmpty( filename ) ) {
+				continue;
+			}
+			try {
+				if ( meta.isBuildDictionaries() ) {
+					data.dictionaryBuilders[i] = new CoalesceDictionaryBuilder( filename );
+				} else {
+					data.dictionaries[i] = CoalesceDictionary.open( filename );
+					if ( log.isDetailed() ) {
+						logDetailed( BaseMessages.getString( PKG, "CoalesceStep.Log.OpenedDictionary",
+							data.dictionaries[i].getPath(), String.valueOf( data.dictionaries[i].size() ) ) );
+					}
+				}
+			} catch ( IOException e ) {
+				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.UnableToOpenDictionary", filename ), e );
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Output fields built into the same file would write the same temporary file and corrupt each other.
+	 */
+	private boolean checkDistinctDictionaryTargets( CoalesceMeta meta ) {
+		Map<String, String> targets = new HashMap<String, String>();
+		boolean distinct = true;
+		for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
+			String filename = environmentSubstitute( meta.getDictionaryFiles()[i] );
+			if ( Const.isEmpty( filename ) ) {
+				continue;
+			}
+			String path = new File( filename ).getAbsoluteFile().toURI().normalize().getPath();
+			String outputField = targets.put( path, meta.getOutputFields()[i] );
+			if ( outputField != null ) {
+				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.DuplicateDictionaryTarget", filename,
+					outputField, meta.getOutputFields()[i] ) );
+				distinct = false;
+			}
+		}
+		return distinct;
+	}
+
+	/**
+	 * Creates the encoders of the fields whose values are replaced by codes. The codes must be the same for
+	 * all rows, so only a single step copy can hand them out.
+	 */
+	private boolean initEncoders( CoalesceMeta meta, CoalesceData data ) {
+		int nrFields = meta.getOutputFields().length;
+		data.encoders = new CoalesceEncoder[nrFields];
+		for ( int i = 0; i < nrFields; i++ ) {
+			if ( !meta.isEncoding( i ) ) {
+				continue;
+			}
+			if ( getStepMeta().getCopies() > 1 ) {
+				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.EncodingCopies" ) );
+				return false;
+			}
+			data.encoders[i] = new CoalesceEncoder( environmentSubstitute( meta.getEncodingFiles()[i] ) );
+		}
+		return true;
 	}
 
 	@Override
@@ -61,11 +520,29 @@ public class CoalesceStep extends BaseStep implements StepInterface {
 		CoalesceMeta meta = (CoalesceMeta) smi;
 		CoalesceData data = (CoalesceData) sdi;
 
+		if ( meta.isMerging() ) {
+			return processMergeRow( meta, data );
+		}
+
 		// get incoming row, getRow() potentially blocks waiting for more rows, returns null if no more rows expected
 		Object[] r = getRow();
 
 		// if no more rows are expected, indicate step is finished and processRow() should not be called again
 		if ( r == null ) {
+			if ( data.sampleRows != null ) {
+				flushSample( meta, data );
+			}
+			finishDictionaries( meta, data );
+			if ( data.grouper != null ) {
+				writeGroups( data );
+			}
+			finishEncoders( meta, data );
+			logConflicts( meta, data );
+			logInternPools( meta, data );
+			if ( data.changeFilter != null ) {
+				logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.Suppressed", String.valueOf( data.changeFilter.getSuppressed() ),
+					String.valueOf( getLinesRead() ), String.valueOf( data.changeFilter.size() ) ) );
+			}
 			setOutputDone();
 			return false;
 		}
@@ -79,18 +556,39 @@ public class CoalesceStep extends BaseStep implements StepInterface {
 			}
 
 			first = false;
-			// clone the input row structure and place it in our data object
-			data.outputRowMeta = getInputRowMeta().clone();
-			// use meta.getFields() to change it, so it reflects the output row structure
-			meta.getFields( data.outputRowMeta, getStepname(), null, null, this, null, null );
+		}
+
+		// grouped rows are coalesced by the workers with plans of their own, and written once all rows are in
+		if ( meta.isGrouping() ) {
+			groupRow( meta, data, r );
+			return true;
+		}
 
-			checkFieldsExistUpstream( meta );
+		// rows of the layout the current plan was compiled for take the fast path, other layouts switch plans.
+		// The first row compiles the plan of the runtime layout, which is validated like in init().
+		if ( data.plan == null || data.plan.inputRowMeta != getInputRowMeta() ) {
+			data.plan = getPlan( meta, data, getInputRowMeta() );
+			data.outputRowMeta = data.plan.outputRowMeta;
+		}
+
+		// while output types are inferred the rows are held back, they are written with the inferred types
+		if ( data.sampleRows != null ) {
+			sampleRow( data, r );
+			if ( data.sampleRows.size() >= Math.min( meta.getInferSampleSize(), CoalesceData.MAX_SAMPLE_ROWS ) ) {
+				flushSample( meta, data );
+			}
+			return true;
 		}
 
 		buildResult( meta, data, r );
 
-		// put the row to the output row stream
-		putRow( data.outputRowMeta, data.outputRowValues );
+		// rows with the output values last written for their key are dropped
+		if ( !isChanged( data, r ) ) {
+			return true;
+		}
+
+		// put the row to the output row stream, or to the target of its route
+		writeRow( data );
 
 		if ( log.isRowLevel() ) {
 			logRowlevel( BaseMessages.getString( PKG, "CoalesceStep.Log.WroteRowToNextStep", data.outputRowValues ) );
@@ -105,80 +603,597 @@ public class CoalesceStep extends BaseStep implements StepInterface {
 		return true;
 	}
 
-	private void checkFieldsExistUpstream( CoalesceMeta meta ) throws KettleException {
-		RowMetaInterface prev = getInputRowMeta();
+	/**
+	 * Writes one merged row. Both streams are sorted on the merge keys, so the row with the lower key has no
+	 * partner left in the other stream and is written on its own, rows with equal keys are written as one.
+	 * Only the current row of every stream is held, no matter how many rows the streams have.
+	 */
+	private boolean processMergeRow( CoalesceMeta meta, CoalesceData data ) throws KettleException {
+		if ( first ) {
+			first = false;
+			startMerge( meta, data );
+		}
 
-		for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
+		Object[] primaryRow = data.mergeRows[CoalesceMeta.MERGE_PRIMARY];
+		Object[] secondaryRow = data.mergeRows[CoalesceMeta.MERGE_SECONDARY];
+		if ( primaryRow == null && secondaryRow == null ) {
+			finishEncoders( meta, data );
+			logInternPools( meta, data );
+			setOutputDone();
+			return false;
+		}
 
+		int comparison;
+		if ( primaryRow == null ) {
+			comparison = 1;
+		} else if ( secondaryRow == null ) {
+			comparison = -1;
+		} else {
+			comparison = compareMergeKeys( data, primaryRow, secondaryRow );
+		}
+
+		buildMergedResult( data, comparison <= 0 ? primaryRow : null, comparison >= 0 ? secondaryRow : null );
+		putRow( data.outputRowMeta, data.outputRowValues );
+
+		if ( comparison <= 0 ) {
+			nextMergeRow( meta, data, CoalesceMeta.MERGE_PRIMARY );
+		}
+		if ( comparison >= 0 ) {
+			nextMergeRow( meta, data, CoalesceMeta.MERGE_SECONDARY );
+		}
+
+		if ( log.isRowLevel() ) {
+			logRowlevel( BaseMessages.getString( PKG, "CoalesceStep.Log.WroteRowToNextStep", data.outputRowValues ) );
+		}
+		if ( checkFeedback( getLinesRead() ) ) {
+			logBasic( "Line nr " + getLinesRead() );
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the first row of both streams and compiles the plans of their layouts. A stream without rows
+	 * has the layout its step announces.
+	 */
+	private void startMerge( CoalesceMeta meta, CoalesceData data ) throws KettleException {
+		String[] keys = meta.getMergeKeyFields();
+		int nrStreams = CoalesceMeta.nrMergeStreams;
+		data.mergeRows = new Object[nrStreams][];
+		data.mergeRowMetas = new RowMetaInterface[nrStreams];
+		data.mergePlans = new CoalescePlan[nrStreams];
+		data.mergeKeyIndexes = new int[nrStreams][keys.length];
+
+		for ( int i = 0; i < nrStreams; i++ ) {
+			RowSet rowSet = data.mergeRowSets[i];
+			data.mergeRows[i] = getRowFrom( rowSet );
+			data.mergeRowMetas[i] = data.mergeRows[i] != null ? rowSet.getRowMeta()
+				: getTransMeta().getStepFields( rowSet.getOriginStepName() );
 			List<String> missingFields = new ArrayList<String>();
+			addMissingNames( keys, data.mergeRowMetas[i], BaseMessages.getString( PKG,
+				"CoalesceStep.Log.MissingInStreamField.MergeKey", rowSet.getOriginStepName() ), missingFields );
+			throwMissingFields( missingFields );
+			for ( int k = 0; k < keys.length; k++ ) {
+				data.mergeKeyIndexes[i][k] = data.mergeRowMetas[i].indexOfValue( keys[k] );
+			}
+			data.mergePlans[i] = getPlan( meta, data, data.mergeRowMetas[i] );
+		}
+
+		data.plan = data.mergePlans[CoalesceMeta.MERGE_PRIMARY];
+		data.outputRowMeta = data.plan.outputRowMeta;
+		data.mergeKeyOutputIndexes = new int[keys.length];
+		for ( int k = 0; k < keys.length; k++ ) {
+			data.mergeKeyOutputIndexes[k] = data.outputRowMeta.indexOfValue( keys[k] );
+		}
+		data.mergeFound = new boolean[data.plan.outputFields.length];
+	}
+
+	/**
+	 * Reads the next row of a stream and makes sure the stream is still sorted on the merge keys.
+	 */
+	private void nextMergeRow( CoalesceMeta meta, CoalesceData data, int stream ) throws KettleException {
+		Object[] previous = data.mergeRows[stream];
+		Object[] next = getRowFrom( data.mergeRowSets[stream] );
+		if ( next != null && data.mergeRowMetas[stream].compare( previous, next, data.mergeKeyIndexes[stream] ) > 0 ) {
+			throw new KettleException( BaseMessages.getString( PKG, "CoalesceStep.Log.MergeNotSorted",
+				data.mergeRowSets[stream].getOriginStepName(), meta.getMergeKeys() ) );
+		}
+		data.mergeRows[stream] = next;
+	}
+
+	private int compareMergeKeys( CoalesceData data, Object[] primaryRow, Object[] secondaryRow ) throws KettleValueException {
+		RowMetaInterface primaryMeta = data.mergeRowMetas[CoalesceMeta.MERGE_PRIMARY];
+		RowMetaInterface secondaryMeta = data.mergeRowMetas[CoalesceMeta.MERGE_SECONDARY];
+		int[] primaryKeys = data.mergeKeyIndexes[CoalesceMeta.MERGE_PRIMARY];
+		int[] secondaryKeys = data.mergeKeyIndexes[CoalesceMeta.MERGE_SECONDARY];
+		for ( int k = 0; k < primaryKeys.length; k++ ) {
+			int comparison = primaryMeta.getValueMeta( primaryKeys[k] ).compare( primaryRow[primaryKeys[k]],
+				secondaryMeta.getValueMeta( secondaryKeys[k] ), secondaryRow[secondaryKeys[k]] );
+			if ( comparison != 0 ) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Builds the output row of a primary and a secondary row with equal keys, either may be null. The row has
+	 * the layout of the primary stream, a secondary row on its own only passes down its keys. Every output
+	 * field takes its winner from the primary row and only looks at the secondary row when that has none.
+	 * The primary row is reduced for all fields first, so plans shared by both streams don't mix the rows.
+	 */
+	private void buildMergedResult( CoalesceData data, Object[] primaryRow, Object[] secondaryRow ) throws KettleException {
+		CoalescePlan plan = data.plan;
+		CoalescePlan secondaryPlan = data.mergePlans[CoalesceMeta.MERGE_SECONDARY];
+
+		data.outputRowValues = RowDataUtil.allocateRowData( plan.outputRowMeta.size() );
+		if ( primaryRow != null ) {
+			for ( int i = 0; i < plan.passThroughIndexes.length; i++ ) {
+				data.outputRowValues[i] = primaryRow[plan.passThroughIndexes[i]];
+			}
+		} else {
+			int[] secondaryKeys = data.mergeKeyIndexes[CoalesceMeta.MERGE_SECONDARY];
+			for ( int k = 0; k < secondaryKeys.length; k++ ) {
+				int outputIndex = data.mergeKeyOutputIndexes[k];
+				if ( outputIndex >= 0 ) {
+					data.outputRowValues[outputIndex] = plan.outputRowMeta.getValueMeta( outputIndex ).convertData(
+						secondaryPlan.inputRowMeta.getValueMeta( secondaryKeys[k] ), secondaryRow[secondaryKeys[k]] );
+				}
+			}
+		}
+
+		boolean[] found = data.mergeFound;
+		Arrays.fill( found, false );
+		if ( primaryRow != null ) {
+			reduceMergedRow( plan, primaryRow, plan, data.outputRowValues, found );
+		}
+		if ( secondaryRow != null ) {
+			reduceMergedRow( secondaryPlan, secondaryRow, plan, data.outputRowValues, found );
+		}
+
+		for ( int i = 0; i < plan.outputFields.length; i++ ) {
+			int outputIndex = plan.outputFields[i].outputIndex;
+			if ( !found[i] ) {
+				data.outputRowValues[outputIndex] = plan.defaultValues[i];
+			}
+			CoalesceInternPool internPool = data.internPools[i];
+			if ( internPool != null && data.outputRowValues[outputIndex] instanceof String ) {
+				data.outputRowValues[outputIndex] = internPool.intern( (String) data.outputRowValues[outputIndex] );
+			}
+			if ( data.encoders[i] != null ) {
+				data.outputRowValues[outputIndex] = data.encoders[i].encode(
+					plan.outputFields[i].valueMeta.getString( data.outputRowValues[outputIndex] ) );
+			}
+		}
+	}
+
+	/**
+	 * Sets the output fields that have no value yet to the winner of a row, converted to the output type.
+	 */
+	private void reduceMergedRow( CoalescePlan rowPlan, Object[] r, CoalescePlan plan, Object[] outputRowValues,
+		boolean[] found ) throws KettleException {
+		if ( rowPlan.scan != null ) {
+			rowPlan.scan.scan( r );
+		}
+		for ( int i = 0; i < plan.outputFields.length; i++ ) {
+			if ( found[i] ) {
+				continue;
+			}
+			int inputIndex = rowPlan.outputFields[i].reducer.reduce( r );
+			if ( inputIndex >= 0 ) {
+				outputRowValues[plan.outputFields[i].outputIndex] = convertWinner( rowPlan, r, inputIndex,
+					plan.outputFields[i].valueMeta );
+				found[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the value of a winning candidate converted to the output type
+	 */
+	private Object convertWinner( CoalescePlan plan, Object[] r, int inputIndex, ValueMetaInterface vm ) throws KettleValueException {
+		// expression candidates have their value in the plan's extended row
+		Object value = plan.getCandidateValue( r, inputIndex );
+		ValueMetaInterface candidateMeta = plan.getCandidateMeta( inputIndex );
+		try {
+			return vm.convertData( candidateMeta, value );
+		} catch ( KettleValueException e ) {
+			logError( BaseMessages.getString( PKG, "CoalesceStep.Log.DataIncompatibleError",
+				value.toString(), candidateMeta.toString(), vm.toString() ) );
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands a row to the partition of its keys. Every partition gets its own plan of the row's layout,
+	 * compiled for a copy of the layout, so the workers share no state.
+	 */
+	private void groupRow( CoalesceMeta meta, CoalesceData data, Object[] r ) throws KettleException {
+		if ( data.grouper == null ) {
+			int threads = meta.getGroupThreads() > 0 ? meta.getGroupThreads() : Runtime.getRuntime().availableProcessors();
+			data.grouper = new CoalesceGrouper( getStepname(), threads );
+			if ( log.isDetailed() ) {
+				logDetailed( BaseMessages.getString( PKG, "CoalesceStep.Log.GroupThreads", String.valueOf( threads ) ) );
+			}
+		}
+
+		RowMetaInterface inputRowMeta = getInputRowMeta();
+		int[] keyIndexes = data.groupKeyIndexes.get( inputRowMeta );
+		CoalescePlan[] plans = data.groupPlans.get( inputRowMeta );
+		if ( keyIndexes == null ) {
+			// compiling the plans makes sure the group keys exist
+			plans = new CoalescePlan[data.grouper.getNrPartitions()];
+			for ( int i = 0; i < plans.length; i++ ) {
+				plans[i] = compilePlan( meta, data, inputRowMeta.clone() );
+			}
+			String[] keys = meta.getGroupKeyFields();
+			keyIndexes = new int[keys.length];
+			for ( int k = 0; k < keys.length; k++ ) {
+				keyIndexes[k] = inputRowMeta.indexOfValue( keys[k] );
+			}
+			data.groupKeyIndexes.put( inputRowMeta, keyIndexes );
+			data.groupPlans.put( inputRowMeta, plans );
+		}
+
+		int hash = CoalesceGrouper.hashKeys( inputRowMeta, r, keyIndexes );
+		int partition = data.grouper.getPartition( hash );
+		data.grouper.add( partition, hash, keyIndexes, plans[partition], r );
+	}
+
+	/**
+	 * Waits for the workers and writes the groups partition by partition. Fields without a non null candidate
+	 * in any row of their key get the default value, values are interned and encoded here on the step's thread.
+	 */
+	private void writeGroups( CoalesceData data ) throws KettleException {
+		CoalesceGrouper grouper = data.grouper;
+		grouper.finish();
+
+		long groups = 0;
+		for ( int p = 0; p < grouper.getNrPartitions(); p++ ) {
+			for ( int g = 0; g < grouper.getNrGroups( p ); g++ ) {
+				Object[] row = grouper.getGroupRow( p, g );
+				CoalescePlan plan = grouper.getGroupPlan( p, g );
+				for ( int i = 0; i < plan.outputFields.length; i++ ) {
+					int outputIndex = plan.outputFields[i].outputIndex;
+					if ( row[outputIndex] == null ) {
+						row[outputIndex] = plan.defaultValues[i];
+					}
+					CoalesceInternPool internPool = data.internPools[i];
+					if ( internPool != null && row[outputIndex] instanceof String ) {
+						row[outputIndex] = internPool.intern( (String) row[outputIndex] );
+					}
+					if ( data.encoders[i] != null ) {
+						row[outputIndex] = data.encoders[i].encode( plan.outputFields[i].valueMeta.getString( row[outputIndex] ) );
+					}
+				}
+				putRow( plan.outputRowMeta, row );
+				groups++;
+			}
+		}
+		data.grouper = null;
+
+		logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.Grouped", String.valueOf( getLinesRead() ),
+			String.valueOf( groups ), String.valueOf( grouper.getNrPartitions() ) ) );
+	}
+
+	/**
+	 * Looks up the plan of an input layout, first by identity and then by the layout's fingerprint, and only
+	 * compiles a new plan for a layout that wasn't seen before.
+	 */
+	private CoalescePlan getPlan( CoalesceMeta meta, CoalesceData data, RowMetaInterface inputRowMeta ) throws KettleException {
+		data.planLookups++;
+		CoalescePlan plan = data.plansByLayout.get( inputRowMeta );
+		if ( plan != null ) {
+			return plan;
+		}
+
+		String fingerprint = CoalesceMeta.getLayoutFingerprint( inputRowMeta );
+		plan = data.plansByFingerprint.get( fingerprint );
+		if ( plan == null ) {
+			plan = compilePlan( meta, data, inputRowMeta );
+			data.plansByFingerprint.put( fingerprint, plan );
+			if ( data.planCompilations++ > 0 ) {
+				data.planRecompilations++;
+			}
+			if ( log.isDetailed() ) {
+				logDetailed( BaseMessages.getString( PKG, "CoalesceStep.Log.CompiledPlan", inputRowMeta.toStringMeta() ) );
+			}
+		}
+
+		if ( data.plansByLayout.size() >= CoalesceData.MAX_CACHED_PLANS ) {
+			data.plansByLayout.clear();
+		}
+		data.plansByLayout.put( inputRowMeta, plan );
+		return plan;
+	}
+
+	private CoalescePlan compilePlan( CoalesceMeta meta, CoalesceData data, RowMetaInterface inputRowMeta ) throws KettleException {
+		// clone the input row structure and use meta.getFields() to change it, so it reflects the output row structure
+		RowMetaInterface outputRowMeta = inputRowMeta.clone();
+		meta.getFields( outputRowMeta, getStepname(), null, null, this, null, null );
+
+		checkFieldsExistUpstream( meta, inputRowMeta );
+
+		// the output type of fields without a value type is only known now
+		Object[] defaultValues = data.defaultValues.clone();
+		int firstOutputIndex = outputRowMeta.size() - meta.getOutputFields().length - meta.getNrProvenanceFields();
+		if ( data.inferredTypes != null ) {
+			for ( int i = 0; i < data.inferredTypes.length; i++ ) {
+				if ( data.inferredTypes[i] != ValueMetaInterface.TYPE_NONE ) {
+					ValueMetaInterface v = ValueMetaFactory.createValueMeta( meta.getOutputFields()[i], data.inferredTypes[i] );
+					v.setOrigin( getStepname() );
+					outputRowMeta.setValueMeta( firstOutputIndex + i, v );
+				}
+			}
+		}
+		for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
+			if ( meta.getValueType()[i] == ValueMetaInterface.TYPE_NONE && !meta.isEncoding( i ) ) {
+				defaultValues[i] = convertDefaultValue( meta, outputRowMeta.getValueMeta( firstOutputIndex + i ), i );
+			}
+		}
+
+		return new CoalescePlan( meta, inputRowMeta, outputRowMeta, defaultValues, this );
+	}
+
+	/**
+	 * @return how often the plan of a row's input layout had to be looked up, instead of taking the current one
+	 */
+	public long getPlanLookups() {
+		return ( (CoalesceData) getStepDataInterface() ).planLookups;
+	}
+
+	/**
+	 * @return how often a plan had to be compiled for an input layout after the first one
+	 */
+	public long getPlanRecompilations() {
+		return ( (CoalesceData) getStepDataInterface() ).planRecompilations;
+	}
+
+	/**
+	 * Collects the missing fields of all output fields and keys, so they can be fixed in one go.
+	 */
+	private void checkFieldsExistUpstream( CoalesceMeta meta, RowMetaInterface prev ) throws KettleException {
+		List<String> missingFields = new ArrayList<String>();
+		addMissingFields( meta, prev, missingFields );
+		throwMissingFields( missingFields );
+	}
+
+	private void addMissingFields( CoalesceMeta meta, RowMetaInterface prev, List<String> missingFields ) throws KettleException {
+		for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
+			String usage = BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamField.OutputField",
+				meta.getOutputFields()[i] );
 			for ( int j = 0; j < CoalesceMeta.noInputFields; j++ ) {
-				ValueMetaInterface vmi = prev.searchValueMeta( meta.getInputFields()[i][j] );
-				if ( !meta.getInputFields()[i][j].isEmpty() && vmi == null ) {
-					missingFields.add( meta.getInputFields()[i][j] );
+				if ( CoalesceExpression.isExpression( meta.getInputFields()[i][j] ) ) {
+					// the fields an expression reads must exist, parsing also reports syntax errors before any row
+					List<String> fieldNames = CoalesceExpression.parse( meta.getInputFields()[i][j] ).getFieldNames();
+					addMissingNames( fieldNames.toArray( new String[fieldNames.size()] ), prev, usage, missingFields );
+				} else if ( !meta.getInputFields()[i][j].isEmpty() ) {
+					addMissingNames( new String[] { meta.getInputFields()[i][j] }, prev, usage, missingFields );
 				}
 			}
-			if ( !missingFields.isEmpty() ) {
-				String errorText = BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamFields", missingFields );
-				throw new KettleException( errorText );
+		}
+
+		if ( meta.hasDictionaries() ) {
+			addMissingNames( new String[] { meta.getDictionaryKeyField() }, prev,
+				BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamField.DictionaryKey" ), missingFields );
+		}
+		if ( meta.isSuppressingUnchanged() ) {
+			addMissingNames( meta.getChangeKeyFields(), prev,
+				BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamField.ChangeKey" ), missingFields );
+		}
+		if ( meta.isGrouping() ) {
+			addMissingNames( meta.getGroupKeyFields(), prev,
+				BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamField.GroupKey" ), missingFields );
+		}
+	}
+
+	/**
+	 * Adds the fields not found in the layout, each with what it's used for and only once.
+	 */
+	private static void addMissingNames( String[] fieldNames, RowMetaInterface prev, String usage,
+		List<String> missingFields ) {
+		for ( String fieldName : fieldNames ) {
+			if ( prev.searchValueMeta( fieldName ) == null ) {
+				String missingField = BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamField", fieldName, usage );
+				if ( !missingFields.contains( missingField ) ) {
+					missingFields.add( missingField );
+				}
 			}
 		}
 	}
 
+	private static void throwMissingFields( List<String> missingFields ) throws KettleException {
+		if ( !missingFields.isEmpty() ) {
+			throw new KettleException( BaseMessages.getString( PKG, "CoalesceStep.Log.MissingInStreamFields", missingFields ) );
+		}
+	}
+
 	/**
 	 * Builds a result row and stores it into outputRowValues array in CoalesceData
 	 * To avoid repeatedly resizing and copying of arrays using RowDataUtil the output array
 	 * is allocated a fixed size from the beginning.
-	 * The first loop checks if fields from the input stream are present in the output and if so passes down the values
+	 * The first loop passes down the values of the input fields that live on, at the positions resolved by the plan.
 	 * The second loop calculates the coalesce value for each extra output field and also converts its value to
 	 * reflect the Value Type option, or in case it was None to reflect on the default data type logic.
 	 */
 	private void buildResult( CoalesceMeta meta, CoalesceData data, Object[] r ) throws KettleException {
 
-		RowMetaInterface inputRowMeta = getInputRowMeta();
+		CoalescePlan plan = data.plan;
 
 		// Creates a new row and copies the fields that will live on into the array
-		data.outputRowValues = RowDataUtil.allocateRowData(data.outputRowMeta.size());
-		for ( int i = 0; i < inputRowMeta.size(); i++ ) {
-			int outputIndex = data.outputRowMeta.indexOfValue(inputRowMeta.getFieldNames()[i]);
-			if (outputIndex >= 0) {
-				data.outputRowValues[outputIndex] = r[i];
-			}
+		data.outputRowValues = RowDataUtil.allocateRowData( plan.outputRowMeta.size() );
+		int[] passThroughIndexes = plan.passThroughIndexes;
+		for ( int i = 0; i < passThroughIndexes.length; i++ ) {
+			data.outputRowValues[i] = r[passThroughIndexes[i]];
+		}
+
+		// check the candidates shared by several output fields once
+		if ( plan.scan != null ) {
+			plan.scan.scan( r );
 		}
 
 		//add extra field values to the output
+		for ( int i = 0; i < plan.outputFields.length; i++ ) {
+			CoalescePlan.OutputField field = plan.outputFields[i];
+			// the reducer picks the winning candidate according to the field's strategy, -1 if all are null
+			int inputIndex = field.reducer.reduce( r );
+			int outputIndex = field.outputIndex;
+			if ( i == plan.routedField ) {
+				data.routeWinner = inputIndex;
+			}
+			if ( field.winnerIndex >= 0 ) {
+				data.outputRowValues[field.winnerIndex] = field.getWinnerPosition( inputIndex );
+			}
+			if ( field.nonNullMaskIndex >= 0 ) {
+				data.outputRowValues[field.nonNullMaskIndex] = field.getNonNullMask( r, plan.scan );
+			}
+
+			ValueMetaInterface vm = field.valueMeta;
+			if ( inputIndex < 0 ) {
+				// all candidates are null, fall back to the dictionary and then to the precomputed default
+				Object value = data.dictionaries[i] == null ? null : lookupDictionary( data, plan, vm, r, i );
+				data.outputRowValues[outputIndex] = value == null ? plan.defaultValues[i] : value;
+			} else {
+				data.outputRowValues[outputIndex] = convertWinner( plan, r, inputIndex, vm );
+
+				if ( data.dictionaryBuilders[i] != null ) {
+					addToDictionary( meta, data, plan, vm, r, i, data.outputRowValues[outputIndex] );
+				}
+			}
+
+			// equal Strings share the pooled instance, the default value is one instance already
+			CoalesceInternPool internPool = data.internPools[i];
+			if ( internPool != null && data.outputRowValues[outputIndex] instanceof String ) {
+				data.outputRowValues[outputIndex] = internPool.intern( (String) data.outputRowValues[outputIndex] );
+			}
+
+			// the other non null candidates are compared with the winner, rows without one have no conflict
+			if ( field.detectConflicts ) {
+				boolean conflict = inputIndex >= 0 && field.hasConflict( r, inputIndex, data.outputRowValues[outputIndex], plan );
+				if ( conflict ) {
+					data.conflictCounts[i]++;
+				}
+				if ( field.conflictIndex >= 0 ) {
+					data.outputRowValues[field.conflictIndex] = Boolean.valueOf( conflict );
+				}
+			}
+
+			// encoded fields leave the step as the code of their String value
+			if ( data.encoders[i] != null ) {
+				data.outputRowValues[outputIndex] = data.encoders[i].encode( vm.getString( data.outputRowValues[outputIndex] ) );
+			}
+		}
+	}
+
+	/**
+	 * Logs the number of rows with conflicting candidates of every output field that detects conflicts.
+	 */
+	private void logConflicts( CoalesceMeta meta, CoalesceData data ) {
 		for ( int i = 0; i < meta.getOutputFields().length; i++ ) {
-			int inputIndex = getFirstNonNullValueIndex( meta, inputRowMeta, r, i );
-			int outputIndex = data.outputRowMeta.size() - meta.getOutputFields().length + i;
+			if ( meta.isDetectingConflicts( i ) ) {
+				logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.Conflicts", meta.getOutputFields()[i],
+					String.valueOf( data.conflictCounts[i] ), String.valueOf( getLinesRead() ) ) );
+			}
+		}
+	}
 
-			ValueMetaInterface vm = data.outputRowMeta.getValueMeta( outputIndex );
-			try {
-				data.outputRowValues[outputIndex] = inputIndex < 0 ? null : vm.convertData( inputRowMeta.getValueMeta( inputIndex ), r[inputIndex] );
-			} catch ( KettleValueException e ) {
-				logError( BaseMessages.getString( PKG, "CoalesceStep.Log.DataIncompatibleError",
-					r[inputIndex].toString(), inputRowMeta.getValueMeta( inputIndex ).toString(), vm.toString() ) );
-				throw e;
+	/**
+	 * @return the number of rows in which another non null candidate of an output field disagreed with the winner
+	 */
+	public long getConflictCount( int field ) {
+		return ( (CoalesceData) getStepDataInterface() ).conflictCounts[field];
+	}
+
+	/**
+	 * Logs how well the values of every interned output field were shared.
+	 */
+	private void logInternPools( CoalesceMeta meta, CoalesceData data ) {
+		for ( int i = 0; i < data.internPools.length; i++ ) {
+			CoalesceInternPool internPool = data.internPools[i];
+			if ( internPool != null ) {
+				logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.InternPool", meta.getOutputFields()[i],
+					String.valueOf( internPool.getHits() ), String.valueOf( internPool.getLookups() ),
+					String.valueOf( Math.round( internPool.getHitRate() * 100 ) ), String.valueOf( internPool.size() ),
+					String.valueOf( internPool.getEvictions() ) ) );
 			}
 		}
 	}
 
 	/**
-	 * The actual coalesce logic, returns the index of the first non null value
+	 * @return the pool of an output field, null if its values aren't interned
 	 */
-	private int getFirstNonNullValueIndex( CoalesceMeta meta, RowMetaInterface inputRowMeta, Object[] r, int transIndex ) {
+	CoalesceInternPool getInternPool( int field ) {
+		return ( (CoalesceData) getStepDataInterface() ).internPools[field];
+	}
 
-		for ( int i = 0; i < CoalesceMeta.noInputFields; i++ ) {
-			int index = inputRowMeta.indexOfValue( meta.getInputFields()[transIndex][i] );
-			if ( index >= 0 ) {
-				if ( !meta.isTreatEmptyStringsAsNulls() && r[index] != null ) {
-					return index;
-				} else if ( meta.isTreatEmptyStringsAsNulls() && r[index] != null && !Const.isEmpty( r[index].toString() ) ) {
-					return index;
-				}
+	private Object lookupDictionary( CoalesceData data, CoalescePlan plan, ValueMetaInterface vm, Object[] r,
+		int transIndex ) throws KettleValueException {
+		String key = plan.inputRowMeta.getString( r, plan.dictionaryKeyIndex );
+		if ( key == null ) {
+			return null;
+		}
+		String value = data.dictionaries[transIndex].get( key );
+		return value == null ? null : vm.convertData( data.dictionaryValueMeta, value );
+	}
+
+	private void addToDictionary( CoalesceMeta meta, CoalesceData data, CoalescePlan plan, ValueMetaInterface vm,
+		Object[] r, int transIndex, Object value ) throws KettleException {
+		String key = plan.inputRowMeta.getString( r, plan.dictionaryKeyIndex );
+		if ( key == null || value == null ) {
+			return;
+		}
+		try {
+			data.dictionaryBuilders[transIndex].add( key, vm.getString( value ) );
+		} catch ( IOException e ) {
+			throw new KettleException( BaseMessages.getString( PKG, "CoalesceStep.Log.UnableToWriteDictionary",
+				environmentSubstitute( meta.getDictionaryFiles()[transIndex] ) ), e );
+		}
+	}
+
+	/**
+	 * Called once all rows are read, moves the dictionaries built by this step into place.
+	 */
+	private void finishDictionaries( CoalesceMeta meta, CoalesceData data ) throws KettleException {
+		for ( int i = 0; i < data.dictionaryBuilders.length; i++ ) {
+			if ( data.dictionaryBuilders[i] == null ) {
+				continue;
+			}
+			String filename = environmentSubstitute( meta.getDictionaryFiles()[i] );
+			try {
+				int entries = data.dictionaryBuilders[i].finish();
+				logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.WroteDictionary", filename, String.valueOf( entries ) ) );
+			} catch ( IOException e ) {
+				throw new KettleException( BaseMessages.getString( PKG, "CoalesceStep.Log.UnableToWriteDictionary", filename ), e );
+			}
+			data.dictionaryBuilders[i] = null;
+		}
+	}
+
+	/**
+	 * Called once all rows are read, writes the dictionaries of the encoded fields.
+	 */
+	private void finishEncoders( CoalesceMeta meta, CoalesceData data ) throws KettleException {
+		for ( int i = 0; i < data.encoders.length; i++ ) {
+			if ( data.encoders[i] == null ) {
+				continue;
 			}
+			String filename = environmentSubstitute( meta.getEncodingFiles()[i] );
+			try {
+				data.encoders[i].finish();
+				logBasic( BaseMessages.getString( PKG, "CoalesceStep.Log.WroteEncoding", filename,
+					String.valueOf( data.encoders[i].size() ), meta.getOutputFields()[i] ) );
+			} catch ( IOException e ) {
+				throw new KettleException( BaseMessages.getString( PKG, "CoalesceStep.Log.UnableToWriteEncoding", filename ), e );
+			}
+			data.encoders[i] = null;
 		}
+	}
 
-		//signifies a null value
-		return -1;
+	/**
+	 * @return the number of distinct values an encoded output field had so far, -1 if it isn't encoded
+	 */
+	int getEncodedValueCount( int field ) {
+		CoalesceEncoder encoder = ( (CoalesceData) getStepDataInterface() ).encoders[field];
+		return encoder == null ? -1 : encoder.size();
 	}
 
 	/**
@@ -194,6 +1209,26 @@ public class CoalesceStep extends BaseStep implements StepInterface {
 		CoalesceMeta meta = (CoalesceMeta) smi;
 		CoalesceData data = (CoalesceData) sdi;
 
+		// stop the workers of a step that didn't finish
+		if ( data.grouper != null ) {
+			data.grouper.abort();
+			data.grouper = null;
+		}
+
+		// release the shared mappings, unfinished dictionaries are discarded
+		if ( data.dictionaries != null ) {
+			for ( int i = 0; i < data.dictionaries.length; i++ ) {
+				if ( data.dictionaries[i] != null ) {
+					data.dictionaries[i].release();
+					data.dictionaries[i] = null;
+				}
+				if ( data.dictionaryBuilders[i] != null ) {
+					data.dictionaryBuilders[i].abort();
+					data.dictionaryBuilders[i] = null;
+				}
+			}
+		}
+
 		super.dispose( meta, data );
 	}
 }
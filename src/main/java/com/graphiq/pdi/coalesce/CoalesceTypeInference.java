@@ -0,0 +1,168 @@
+/*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.pdi.coalesce;
+
+import java.text.ParsePosition;
+import java.util.regex.Pattern;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Infers output types from the winning values of sampled rows.
+ *
+ * Every field starts out as possibly Integer, Number and Date, each sampled value rules out the types it
+ * doesn't fit. Strings only fit a type when they have its plain form and the candidate's own converter,
+ * which also converts them later on, reads them back to the same value. The narrowest remaining type
+ * wins, Integer before Number before Date, and fields without any type left or without samples are Strings.
+ */
+class CoalesceTypeInference {
+
+	private static final int INTEGER = 1;
+	private static final int NUMBER = 2;
+	private static final int DATE = 4;
+
+	private static final Pattern INTEGER_PATTERN = Pattern.compile( "[+-]?\\d+" );
+	private static final Pattern NUMBER_PATTERN = Pattern.compile( "[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?" );
+
+	private final boolean[] inferred;
+	private final int[] possibleTypes;
+	private final boolean[] sampled;
+
+	/**
+	 * @param inferred the output fields whose type is inferred
+	 */
+	CoalesceTypeInference( boolean[] inferred ) {
+		this.inferred = inferred;
+		this.possibleTypes = new int[inferred.length];
+		this.sampled = new boolean[inferred.length];
+		for ( int i = 0; i < inferred.length; i++ ) {
+			possibleTypes[i] = inferred[i] ? INTEGER | NUMBER | DATE : 0;
+		}
+	}
+
+	boolean isInferred( int field ) {
+		return inferred[field];
+	}
+
+	/**
+	 * Rules out the types the winning value of a field doesn't fit.
+	 */
+	void sample( int field, ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+		if ( value == null ) {
+			return;
+		}
+		sampled[field] = true;
+		int possible = possibleTypes[field];
+		if ( possible == 0 ) {
+			return;
+		}
+
+		switch ( valueMeta.getType() ) {
+			case ValueMetaInterface.TYPE_INTEGER:
+				possible &= INTEGER | NUMBER;
+				break;
+			case ValueMetaInterface.TYPE_NUMBER:
+			case ValueMetaInterface.TYPE_BIGNUMBER:
+				possible &= NUMBER;
+				break;
+			case ValueMetaInterface.TYPE_DATE:
+			case ValueMetaInterface.TYPE_TIMESTAMP:
+				possible &= DATE;
+				break;
+			case ValueMetaInterface.TYPE_STRING:
+				String s = valueMeta.getString( value );
+				if ( ( possible & INTEGER ) != 0 && !isInteger( valueMeta, value, s ) ) {
+					possible &= ~INTEGER;
+				}
+				if ( ( possible & NUMBER ) != 0 && !isNumber( valueMeta, value, s ) ) {
+					possible &= ~NUMBER;
+				}
+				if ( ( possible & DATE ) != 0 && !isDate( valueMeta, value, s ) ) {
+					possible &= ~DATE;
+				}
+				break;
+			default:
+				possible = 0;
+		}
+		possibleTypes[field] = possible;
+	}
+
+	/**
+	 * @return the inferred type of every output field, TYPE_NONE for fields that aren't inferred
+	 */
+	int[] getTypes() {
+		int[] types = new int[inferred.length];
+		for ( int i = 0; i < types.length; i++ ) {
+			int possible = possibleTypes[i];
+			if ( !inferred[i] ) {
+				types[i] = ValueMetaInterface.TYPE_NONE;
+			} else if ( !sampled[i] || possible == 0 ) {
+				types[i] = ValueMetaInterface.TYPE_STRING;
+			} else if ( ( possible & INTEGER ) != 0 ) {
+				types[i] = ValueMetaInterface.TYPE_INTEGER;
+			} else if ( ( possible & NUMBER ) != 0 ) {
+				types[i] = ValueMetaInterface.TYPE_NUMBER;
+			} else {
+				types[i] = ValueMetaInterface.TYPE_DATE;
+			}
+		}
+		return types;
+	}
+
+	private static boolean isInteger( ValueMetaInterface valueMeta, Object value, String s ) {
+		if ( s == null || s.length() > 18 || !INTEGER_PATTERN.matcher( s ).matches() ) {
+			return false;
+		}
+		try {
+			Long converted = valueMeta.getInteger( value );
+			return converted != null && converted.longValue() == Long.parseLong( s.startsWith( "+" ) ? s.substring( 1 ) : s );
+		} catch ( KettleValueException e ) {
+			return false;
+		}
+	}
+
+	private static boolean isNumber( ValueMetaInterface valueMeta, Object value, String s ) {
+		if ( s == null || !NUMBER_PATTERN.matcher( s ).matches() ) {
+			return false;
+		}
+		try {
+			Double converted = valueMeta.getNumber( value );
+			return converted != null && converted.doubleValue() == Double.parseDouble( s );
+		} catch ( KettleValueException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * The date format parses any string starting with a date, only strings it consumes up to the end fit.
+	 */
+	private static boolean isDate( ValueMetaInterface valueMeta, Object value, String s ) {
+		if ( s == null ) {
+			return false;
+		}
+		ParsePosition position = new ParsePosition( 0 );
+		if ( valueMeta.getDateFormat().parse( s, position ) == null || position.getIndex() != s.length() ) {
+			return false;
+		}
+		try {
+			return valueMeta.getDate( value ) != null;
+		} catch ( KettleValueException e ) {
+			return false;
+		}
+	}
+}
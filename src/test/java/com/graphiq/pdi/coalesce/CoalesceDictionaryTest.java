@@ -0,0 +1,96 @@
+package com.graphiq.pdi.coalesce;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class CoalesceDictionaryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLookup() throws Exception {
+		String filename = new File( folder.getRoot(), "phones.cdic" ).getPath();
+
+		CoalesceDictionaryBuilder builder = new CoalesceDictionaryBuilder( filename );
+		for ( int i = 0; i < 5000; i++ ) {
+			builder.add( "key" + i, "value" + i );
+		}
+		builder.add( "", "empty key" );
+		Assert.assertFalse( builder.add( "key42", "duplicate" ) );
+		Assert.assertEquals( 5001, builder.finish() );
+
+		CoalesceDictionary dictionary = CoalesceDictionary.open( filename );
+		try {
+			Assert.assertEquals( 5001, dictionary.size() );
+			Assert.assertEquals( "value0", dictionary.get( "key0" ) );
+			Assert.assertEquals( "value4999", dictionary.get( "key4999" ) );
+			Assert.assertEquals( "value42", dictionary.get( "key42" ) );
+			Assert.assertEquals( "empty key", dictionary.get( "" ) );
+			Assert.assertNull( dictionary.get( "key5000" ) );
+		} finally {
+			dictionary.release();
+		}
+	}
+
+	@Test
+	public void testRepeatedKeys() throws Exception {
+		String filename = new File( folder.getRoot(), "repeated.cdic" ).getPath();
+
+		// far more rows than keys, every key comes back after the others and right after itself
+		CoalesceDictionaryBuilder builder = new CoalesceDictionaryBuilder( filename );
+		for ( int row = 0; row < 100000; row++ ) {
+			int key = row % 1000;
+			Assert.assertEquals( row < 1000, builder.add( "key" + key, "value" + row ) );
+			Assert.assertFalse( builder.add( "key" + key, "again" + row ) );
+		}
+		Assert.assertEquals( 1000, builder.finish() );
+
+		CoalesceDictionary dictionary = CoalesceDictionary.open( filename );
+		try {
+			Assert.assertEquals( 1000, dictionary.size() );
+			Assert.assertEquals( "value0", dictionary.get( "key0" ) );
+			Assert.assertEquals( "value999", dictionary.get( "key999" ) );
+			Assert.assertNull( dictionary.get( "key1000" ) );
+		} finally {
+			dictionary.release();
+		}
+	}
+
+	@Test
+	public void testSharedBetweenUsers() throws Exception {
+		String filename = new File( folder.getRoot(), "shared.cdic" ).getPath();
+
+		CoalesceDictionaryBuilder builder = new CoalesceDictionaryBuilder( filename );
+		builder.add( "a", "1" );
+		builder.finish();
+
+		CoalesceDictionary first = CoalesceDictionary.open( filename );
+		CoalesceDictionary second = CoalesceDictionary.open( filename );
+		Assert.assertSame( first, second );
+		first.release();
+		second.release();
+	}
+
+	@Test
+	public void testAbortKeepsExistingFile() throws Exception {
+		String filename = new File( folder.getRoot(), "kept.cdic" ).getPath();
+
+		CoalesceDictionaryBuilder builder = new CoalesceDictionaryBuilder( filename );
+		builder.add( "a", "1" );
+		builder.finish();
+
+		builder = new CoalesceDictionaryBuilder( filename );
+		builder.add( "a", "2" );
+		builder.abort();
+
+		CoalesceDictionary dictionary = CoalesceDictionary.open( filename );
+		Assert.assertEquals( "1", dictionary.get( "a" ) );
+		dictionary.release();
+		Assert.assertFalse( new File( filename + ".tmp" ).exists() );
+	}
+}
@@ -0,0 +1,37 @@
+package com.graphiq.pdi.coalesce;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class CoalesceExpressionTest {
+
+	@Test
+	public void testSubstr() throws Exception {
+		Assert.assertEquals( "9021", evaluate( "=substr(zip, 2, 4)", "90210-1234" ) );
+		Assert.assertEquals( "0210-1234", evaluate( "=substr(zip, 2)", "90210-1234" ) );
+		Assert.assertEquals( "", evaluate( "=substr(zip, 2, 0)", "90210-1234" ) );
+	}
+
+	@Test
+	public void testNegativeSubstrLengthRejected() throws Exception {
+		try {
+			CoalesceExpression.parse( "=substr(zip, 1, -3)" );
+			Assert.fail( "a negative length should not parse" );
+		} catch ( KettleException e ) {
+			Assert.assertTrue( e.getMessage(), e.getMessage().contains( "at position 17" ) );
+		}
+	}
+
+	private static String evaluate( String candidate, String zip ) throws Exception {
+		RowMetaInterface rowMeta = new RowMeta();
+		rowMeta.addValueMeta( new ValueMeta( "zip", ValueMetaInterface.TYPE_STRING ) );
+		CoalesceExpression expression = CoalesceExpression.parse( candidate );
+		expression.bind( rowMeta );
+		return expression.evaluate( new Object[] { zip } );
+	}
+}
@@ -0,0 +1,92 @@
+package com.graphiq.pdi.coalesce;
+
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.TransMeta;
+
+import java.util.Random;
+
+/**
+ * Measures how grouped coalescing scales with the number of grouping threads, from 1 to the given maximum.
+ * Not a unit test, run it with the test classpath:
+ *
+ * <pre>
+ *   java com.graphiq.pdi.coalesce.CoalesceGroupBenchmark [rows] [keys] [max threads]
+ * </pre>
+ *
+ * The rows have an Integer key and three String candidates that are null half of the time each, the same
+ * rows are grouped with every number of threads. The time covers handing the rows to the grouper and waiting
+ * for it, like the step does between its first and its last row.
+ */
+public class CoalesceGroupBenchmark {
+
+	public static void main( String[] args ) throws Exception {
+		int nrRows = args.length > 0 ? Integer.parseInt( args[0] ) : 5000000;
+		int nrKeys = args.length > 1 ? Integer.parseInt( args[1] ) : 1000000;
+		int maxThreads = args.length > 2 ? Integer.parseInt( args[2] ) : Runtime.getRuntime().availableProcessors();
+
+		KettleEnvironment.init();
+
+		RowMetaInterface inputRowMeta = new RowMeta();
+		inputRowMeta.addValueMeta( new ValueMeta( "id", ValueMetaInterface.TYPE_INTEGER ) );
+		inputRowMeta.addValueMeta( new ValueMeta( "a", ValueMetaInterface.TYPE_STRING ) );
+		inputRowMeta.addValueMeta( new ValueMeta( "b", ValueMetaInterface.TYPE_STRING ) );
+		inputRowMeta.addValueMeta( new ValueMeta( "c", ValueMetaInterface.TYPE_STRING ) );
+
+		CoalesceMeta meta = new CoalesceMeta();
+		meta.allocate( 1 );
+		meta.setOutputFields( new String[] { "out" } );
+		meta.setInputFields( new String[][] { { "a", "b", "c" } } );
+		meta.setValueType( new int[] { ValueMetaInterface.TYPE_STRING } );
+		meta.setDoRemoveInputFields( new boolean[] { true } );
+		meta.setGroupKeys( "id" );
+
+		Random random = new Random( 42 );
+		Object[][] rows = new Object[nrRows][];
+		for ( int i = 0; i < nrRows; i++ ) {
+			rows[i] = new Object[] { Long.valueOf( random.nextInt( nrKeys ) ),
+				random.nextBoolean() ? null : "a" + i, random.nextBoolean() ? null : "b" + i,
+				random.nextBoolean() ? null : "c" + i };
+		}
+		int[] keyIndexes = new int[] { 0 };
+
+		double singleThreaded = 0;
+		for ( int threads = 1; threads <= maxThreads; threads++ ) {
+			CoalesceGrouper grouper = new CoalesceGrouper( "benchmark", threads );
+			CoalescePlan[] plans = new CoalescePlan[threads];
+			for ( int i = 0; i < threads; i++ ) {
+				plans[i] = compilePlan( meta, inputRowMeta.clone() );
+			}
+
+			long start = System.nanoTime();
+			for ( Object[] r : rows ) {
+				int hash = CoalesceGrouper.hashKeys( inputRowMeta, r, keyIndexes );
+				int partition = grouper.getPartition( hash );
+				grouper.add( partition, hash, keyIndexes, plans[partition], r );
+			}
+			grouper.finish();
+			long nanos = System.nanoTime() - start;
+
+			long groups = 0;
+			for ( int i = 0; i < threads; i++ ) {
+				groups += grouper.getNrGroups( i );
+			}
+			double rowsPerSecond = nrRows * 1e9 / nanos;
+			if ( threads == 1 ) {
+				singleThreaded = rowsPerSecond;
+			}
+			System.out.println( String.format( "%2d threads: %,12.0f rows/s, speedup %5.2f, %,d groups", threads,
+				rowsPerSecond, rowsPerSecond / singleThreaded, groups ) );
+		}
+	}
+
+	private static CoalescePlan compilePlan( CoalesceMeta meta, RowMetaInterface inputRowMeta ) throws Exception {
+		TransMeta space = new TransMeta();
+		RowMetaInterface outputRowMeta = inputRowMeta.clone();
+		meta.getFields( outputRowMeta, "benchmark", null, null, space, null, null );
+		return new CoalescePlan( meta, inputRowMeta, outputRowMeta, new Object[meta.getOutputFields().length], space );
+	}
+}
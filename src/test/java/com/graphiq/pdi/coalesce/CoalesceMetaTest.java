@@ -0,0 +1,320 @@
+package com.graphiq.pdi.coalesce;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.repository.StringObjectId;
+import org.pentaho.di.trans.step.StepInjectionMetaEntry;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CoalesceMetaTest {
+
+	@BeforeClass
+	public static void init() throws Exception {
+		KettleEnvironment.init();
+	}
+
+	@Test
+	public void testXMLRoundTrip() throws Exception {
+		CoalesceMeta coalesceMeta = createCoalesceMeta();
+		String xml = coalesceMeta.getXML();
+
+		Node stepNode = XMLHandler.getSubNode( XMLHandler.loadXMLString( "<step>" + xml + "</step>" ), "step" );
+		CoalesceMeta loadedMeta = new CoalesceMeta();
+		loadedMeta.setDefault();
+		loadedMeta.loadXML( stepNode, null, null );
+
+		assertSameSettings( coalesceMeta, loadedMeta );
+		Assert.assertEquals( xml, loadedMeta.getXML() );
+	}
+
+	@Test
+	public void testRepositoryRoundTrip() throws Exception {
+		CoalesceMeta coalesceMeta = createCoalesceMeta();
+		RepositoryAttributes attributes = new RepositoryAttributes();
+		Repository rep = Mockito.mock( Repository.class, attributes );
+		ObjectId idTransformation = new StringObjectId( "1" );
+		ObjectId idStep = new StringObjectId( "2" );
+
+		coalesceMeta.saveRep( rep, null, idTransformation, idStep );
+		CoalesceMeta loadedMeta = new CoalesceMeta();
+		loadedMeta.setDefault();
+		loadedMeta.readRep( rep, null, idStep, null );
+
+		assertSameSettings( coalesceMeta, loadedMeta );
+
+		// the settings of the second field all hold their defaults and aren't saved
+		Assert.assertFalse( attributes.contains( "default_value", 1 ) );
+		Assert.assertFalse( attributes.contains( "strategy", 1 ) );
+		Assert.assertTrue( attributes.contains( "strategy", 0 ) );
+	}
+
+	@Test
+	public void testRepositoryRoundTripOfDefaults() throws Exception {
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.setDefault();
+		coalesceMeta.allocate( 1 );
+		coalesceMeta.setOutputFields( new String[] { "out" } );
+		coalesceMeta.setInputFields( new String[][] { { "a", "b", "c" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING } );
+
+		Repository rep = Mockito.mock( Repository.class, new RepositoryAttributes() );
+		coalesceMeta.saveRep( rep, null, new StringObjectId( "1" ), new StringObjectId( "2" ) );
+		CoalesceMeta loadedMeta = new CoalesceMeta();
+		loadedMeta.setDefault();
+		loadedMeta.readRep( rep, null, new StringObjectId( "2" ), null );
+
+		assertSameSettings( coalesceMeta, loadedMeta );
+	}
+
+	@Test
+	public void testInjectionRoundTrip() throws Exception {
+		CoalesceMeta coalesceMeta = createCoalesceMeta();
+		List<StepInjectionMetaEntry> entries = coalesceMeta.getStepMetaInjectionInterface().extractStepMetadataEntries();
+
+		CoalesceMeta injectedMeta = new CoalesceMeta();
+		injectedMeta.setDefault();
+		injectedMeta.getStepMetaInjectionInterface().injectStepMetadataEntries( entries );
+
+		assertSameSettings( coalesceMeta, injectedMeta );
+	}
+
+	@Test
+	public void testInjectionKeepsTemplateSettings() throws Exception {
+		CoalesceMeta coalesceMeta = createCoalesceMeta();
+
+		List<StepInjectionMetaEntry> entries = new ArrayList<StepInjectionMetaEntry>();
+		entries.add( createEntry( "MERGE_PRIMARY_STEP", "left" ) );
+		entries.add( createEntry( "MERGE_SECONDARY_STEP", "right" ) );
+		entries.add( createEntry( "INFER_SAMPLE_SIZE", 50L ) );
+		StepInjectionMetaEntry fields = createEntry( "FIELDS", null );
+		fields.getDetails().add( createField( createEntry( "OUTPUT_FIELD", "plain" ), createEntry( "INPUT_FIELD_A", "x" ) ) );
+		fields.getDetails().add( createField( createEntry( "OUTPUT_FIELD", "phone & fax" ), createEntry( "STRATEGY", "max" ) ) );
+		fields.getDetails().add( createField( createEntry( "OUTPUT_FIELD", "new" ) ) );
+		entries.add( fields );
+		coalesceMeta.getStepMetaInjectionInterface().injectStepMetadataEntries( entries );
+
+		// the step settings not injected keep their values
+		Assert.assertEquals( "left", coalesceMeta.getMergeStep( CoalesceMeta.MERGE_PRIMARY ) );
+		Assert.assertEquals( "right", coalesceMeta.getMergeStep( CoalesceMeta.MERGE_SECONDARY ) );
+		Assert.assertEquals( "id, region", coalesceMeta.getMergeKeys() );
+		Assert.assertEquals( 50, coalesceMeta.getInferSampleSize() );
+		Assert.assertEquals( "phone & fax", coalesceMeta.getRouteField() );
+
+		// injected fields start from the template's field of their name
+		Assert.assertArrayEquals( new String[] { "plain", "phone & fax", "new" }, coalesceMeta.getOutputFields() );
+		Assert.assertArrayEquals( new String[] { "x", "", "" }, coalesceMeta.getInputFields()[0] );
+		Assert.assertArrayEquals( new String[] { "home", "<cell>", "work" }, coalesceMeta.getInputFields()[1] );
+		Assert.assertArrayEquals( new String[] { "", "N/A, -", "" }, coalesceMeta.getNullSentinels() );
+		Assert.assertEquals( "[false, true, false]", Arrays.toString( coalesceMeta.getTrimBeforeNullCheck() ) );
+		Assert.assertArrayEquals( new int[] { CoalesceMeta.STRATEGY_FIRST, CoalesceMeta.STRATEGY_MAX,
+			CoalesceMeta.STRATEGY_FIRST }, coalesceMeta.getStrategies() );
+		Assert.assertArrayEquals( new int[] { CoalesceMeta.ORDER_INPUT, CoalesceMeta.ORDER_NAME_DESC,
+			CoalesceMeta.ORDER_INPUT }, coalesceMeta.getCandidateOrders() );
+		Assert.assertArrayEquals( new String[] { "", "<n/a> & \"none\" 'x'", "" }, coalesceMeta.getDefaultValues() );
+		Assert.assertArrayEquals( new String[] { "", "${DIR}/phones.cdic", "" }, coalesceMeta.getDictionaryFiles() );
+		// a field new to the template gets the defaults
+		Assert.assertArrayEquals( new String[] { "", "", "" }, coalesceMeta.getInputFields()[2] );
+	}
+
+	private static StepInjectionMetaEntry createEntry( String key, Object value ) {
+		return new StepInjectionMetaEntry( key, value, ValueMetaInterface.TYPE_STRING, key );
+	}
+
+	private static StepInjectionMetaEntry createField( StepInjectionMetaEntry... attributes ) {
+		StepInjectionMetaEntry field = createEntry( "FIELD", null );
+		field.getDetails().addAll( Arrays.asList( attributes ) );
+		return field;
+	}
+
+	@Test
+	public void testGetFieldsFollowsSettings() throws Exception {
+		RowMetaInterface inputRowMeta = new RowMeta();
+		inputRowMeta.addValueMeta( new ValueMeta( "a", ValueMeta.TYPE_INTEGER ) );
+		inputRowMeta.addValueMeta( new ValueMeta( "b", ValueMeta.TYPE_INTEGER ) );
+
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.setDefault();
+		coalesceMeta.allocate( 1 );
+		coalesceMeta.setOutputFields( new String[] { "out" } );
+		coalesceMeta.setInputFields( new String[][] { { "a", "b", "" } } );
+		Assert.assertEquals( ValueMeta.TYPE_INTEGER, getOutputType( coalesceMeta, inputRowMeta ) );
+		Assert.assertEquals( ValueMeta.TYPE_INTEGER, getOutputType( coalesceMeta, inputRowMeta ) );
+
+		// a setter and an edit in place marked as a change both invalidate the layouts resolved before
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING } );
+		Assert.assertEquals( ValueMeta.TYPE_STRING, getOutputType( coalesceMeta, inputRowMeta ) );
+		coalesceMeta.getValueType()[0] = ValueMeta.TYPE_NUMBER;
+		coalesceMeta.setChanged();
+		Assert.assertEquals( ValueMeta.TYPE_NUMBER, getOutputType( coalesceMeta, inputRowMeta ) );
+
+		// a layout differing in a type resolves on its own
+		RowMetaInterface otherRowMeta = new RowMeta();
+		otherRowMeta.addValueMeta( new ValueMeta( "a", ValueMeta.TYPE_INTEGER ) );
+		otherRowMeta.addValueMeta( new ValueMeta( "b", ValueMeta.TYPE_STRING ) );
+		coalesceMeta.getValueType()[0] = ValueMeta.TYPE_NONE;
+		coalesceMeta.setChanged();
+		Assert.assertEquals( ValueMeta.TYPE_INTEGER, getOutputType( coalesceMeta, inputRowMeta ) );
+		Assert.assertEquals( ValueMeta.TYPE_STRING, getOutputType( coalesceMeta, otherRowMeta ) );
+	}
+
+	private static int getOutputType( CoalesceMeta coalesceMeta, RowMetaInterface inputRowMeta ) throws Exception {
+		RowMetaInterface outputRowMeta = inputRowMeta.clone();
+		coalesceMeta.getFields( outputRowMeta, "coalesce", null, null, null, null, null );
+		return outputRowMeta.searchValueMeta( "out" ).getType();
+	}
+
+	/**
+	 * A step with every setting off its default in the first field and on it in the second, values that have
+	 * to be escaped in XML included.
+	 */
+	private CoalesceMeta createCoalesceMeta() {
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.setDefault();
+		coalesceMeta.allocate( 2 );
+
+		coalesceMeta.setOutputFields( new String[] { "phone & fax", "plain" } );
+		coalesceMeta.setInputFields( new String[][] { { "home", "<cell>", "work" }, { "a", "", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_INTEGER, ValueMeta.TYPE_NONE } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { true, false } );
+		coalesceMeta.setDictionaryFiles( new String[] { "${DIR}/phones.cdic", "" } );
+		coalesceMeta.setDefaultValues( new String[] { "<n/a> & \"none\" 'x'", "" } );
+		coalesceMeta.setNullSentinels( new String[] { "N/A, -", "" } );
+		coalesceMeta.setTrimBeforeNullCheck( new boolean[] { true, false } );
+		coalesceMeta.setStrategies( new int[] { CoalesceMeta.STRATEGY_MAJORITY, CoalesceMeta.STRATEGY_FIRST } );
+		coalesceMeta.setCandidatePatterns( new String[] { "regex:^(home|cell)_phone$", "" } );
+		coalesceMeta.setCandidateOrders( new int[] { CoalesceMeta.ORDER_NAME_DESC, CoalesceMeta.ORDER_INPUT } );
+		coalesceMeta.setWinnerFields( new String[] { "winner", "" } );
+		coalesceMeta.setNonNullMaskFields( new String[] { "non_null", "" } );
+		coalesceMeta.setDetectConflicts( new boolean[] { true, false } );
+		coalesceMeta.setConflictFields( new String[] { "conflict", "" } );
+		coalesceMeta.setInternPoolSizes( new int[] { 500, 0 } );
+		coalesceMeta.setEncodingFiles( new String[] { "codes.csv", "" } );
+		coalesceMeta.setValueDelimiters( new String[] { "|", "" } );
+
+		coalesceMeta.setTreatEmptyStringsAsNulls( true );
+		coalesceMeta.setDictionaryKeyField( "id" );
+		coalesceMeta.setBuildDictionaries( true );
+		coalesceMeta.setInferTypes( true );
+		coalesceMeta.setInferSampleSize( 250 );
+		coalesceMeta.setRouteField( "phone & fax" );
+		for ( int i = 0; i < CoalesceMeta.nrRoutes; i++ ) {
+			coalesceMeta.setRouteTarget( i, i == CoalesceMeta.ROUTE_NULL ? "" : "target " + i );
+		}
+		coalesceMeta.setMergeKeys( "id, region" );
+		coalesceMeta.setMergeStep( CoalesceMeta.MERGE_PRIMARY, "primary <step>" );
+		coalesceMeta.setMergeStep( CoalesceMeta.MERGE_SECONDARY, "secondary step" );
+		coalesceMeta.setGroupKeys( "id" );
+		coalesceMeta.setGroupThreads( 4 );
+		coalesceMeta.setChangeKeys( "id" );
+		return coalesceMeta;
+	}
+
+	private static void assertSameSettings( CoalesceMeta expected, CoalesceMeta actual ) {
+		Assert.assertArrayEquals( expected.getOutputFields(), actual.getOutputFields() );
+		Assert.assertEquals( expected.getInputFields().length, actual.getInputFields().length );
+		for ( int i = 0; i < expected.getInputFields().length; i++ ) {
+			Assert.assertArrayEquals( expected.getInputFields()[i], actual.getInputFields()[i] );
+		}
+		Assert.assertArrayEquals( expected.getValueType(), actual.getValueType() );
+		Assert.assertEquals( Arrays.toString( expected.getDoRemoveInputFields() ), Arrays.toString( actual.getDoRemoveInputFields() ) );
+		Assert.assertArrayEquals( expected.getDictionaryFiles(), actual.getDictionaryFiles() );
+		Assert.assertArrayEquals( expected.getDefaultValues(), actual.getDefaultValues() );
+		Assert.assertArrayEquals( expected.getNullSentinels(), actual.getNullSentinels() );
+		Assert.assertEquals( Arrays.toString( expected.getTrimBeforeNullCheck() ), Arrays.toString( actual.getTrimBeforeNullCheck() ) );
+		Assert.assertArrayEquals( expected.getStrategies(), actual.getStrategies() );
+		Assert.assertArrayEquals( expected.getCandidatePatterns(), actual.getCandidatePatterns() );
+		Assert.assertArrayEquals( expected.getCandidateOrders(), actual.getCandidateOrders() );
+		Assert.assertArrayEquals( expected.getWinnerFields(), actual.getWinnerFields() );
+		Assert.assertArrayEquals( expected.getNonNullMaskFields(), actual.getNonNullMaskFields() );
+		Assert.assertEquals( Arrays.toString( expected.getDetectConflicts() ), Arrays.toString( actual.getDetectConflicts() ) );
+		Assert.assertArrayEquals( expected.getConflictFields(), actual.getConflictFields() );
+		Assert.assertArrayEquals( expected.getInternPoolSizes(), actual.getInternPoolSizes() );
+		Assert.assertArrayEquals( expected.getEncodingFiles(), actual.getEncodingFiles() );
+		Assert.assertArrayEquals( expected.getValueDelimiters(), actual.getValueDelimiters() );
+
+		Assert.assertEquals( expected.isTreatEmptyStringsAsNulls(), actual.isTreatEmptyStringsAsNulls() );
+		Assert.assertEquals( expected.getDictionaryKeyField(), actual.getDictionaryKeyField() );
+		Assert.assertEquals( expected.isBuildDictionaries(), actual.isBuildDictionaries() );
+		Assert.assertEquals( expected.isInferTypes(), actual.isInferTypes() );
+		Assert.assertEquals( expected.getInferSampleSize(), actual.getInferSampleSize() );
+		Assert.assertEquals( expected.getRouteField(), actual.getRouteField() );
+		for ( int i = 0; i < CoalesceMeta.nrRoutes; i++ ) {
+			Assert.assertEquals( expected.getRouteTarget( i ), actual.getRouteTarget( i ) );
+		}
+		Assert.assertEquals( expected.getMergeKeys(), actual.getMergeKeys() );
+		for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+			Assert.assertEquals( expected.getMergeStep( i ), actual.getMergeStep( i ) );
+		}
+		Assert.assertEquals( expected.getGroupKeys(), actual.getGroupKeys() );
+		Assert.assertEquals( expected.getGroupThreads(), actual.getGroupThreads() );
+		Assert.assertEquals( expected.getChangeKeys(), actual.getChangeKeys() );
+	}
+
+	/**
+	 * Keeps the step attributes saved to a mocked repository and answers the reads from them, attributes never
+	 * saved read like a database repository reads them: null, 0 or false.
+	 */
+	private static class RepositoryAttributes implements Answer<Object> {
+
+		private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		boolean contains( String code, int nr ) {
+			return attributes.containsKey( code + "#" + nr );
+		}
+
+		public Object answer( InvocationOnMock invocation ) throws Throwable {
+			String method = invocation.getMethod().getName();
+			Object[] args = invocation.getArguments();
+			if ( "saveStepAttribute".equals( method ) ) {
+				// ( id_transformation, id_step, [nr,] code, value )
+				int nr = args.length == 5 ? (Integer) args[2] : 0;
+				attributes.put( args[args.length - 2] + "#" + nr, args[args.length - 1] );
+				return null;
+			}
+			if ( "countNrStepAttributes".equals( method ) ) {
+				int count = 0;
+				for ( String key : attributes.keySet() ) {
+					if ( key.startsWith( args[1] + "#" ) ) {
+						count++;
+					}
+				}
+				return count;
+			}
+			if ( method.startsWith( "getStepAttribute" ) ) {
+				// ( id_step, [nr,] code, [default] )
+				int nr = args.length >= 3 ? (Integer) args[1] : 0;
+				Object value = attributes.get( args[args.length >= 3 ? 2 : 1] + "#" + nr );
+				Class<?> type = invocation.getMethod().getReturnType();
+				if ( type == boolean.class ) {
+					return value instanceof Boolean ? value : "Y".equalsIgnoreCase( (String) value );
+				}
+				if ( type == long.class ) {
+					return value == null ? 0L : Long.valueOf( value.toString() );
+				}
+				if ( value instanceof Boolean ) {
+					return (Boolean) value ? "Y" : "N";
+				}
+				return value == null ? null : value.toString();
+			}
+			return Mockito.RETURNS_DEFAULTS.answer( invocation );
+		}
+	}
+}
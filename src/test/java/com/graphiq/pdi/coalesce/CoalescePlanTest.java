@@ -0,0 +1,78 @@
+package com.graphiq.pdi.coalesce;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.TransMeta;
+
+public class CoalescePlanTest {
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		KettleEnvironment.init();
+	}
+
+	@Test
+	public void testNaNIsNoConflict() throws Exception {
+		CoalescePlan plan = compilePlan( ValueMetaInterface.TYPE_NUMBER, CoalesceMeta.STRATEGY_FIRST, false, "a", "b" );
+
+		Assert.assertFalse( hasConflict( plan, Double.NaN, Double.NaN ) );
+		Assert.assertTrue( hasConflict( plan, Double.NaN, 1.0 ) );
+		Assert.assertFalse( hasConflict( plan, 1.0, 1.0 ) );
+	}
+
+	@Test
+	public void testTrimmedStringsAreNoConflict() throws Exception {
+		CoalescePlan trimmed = compilePlan( ValueMetaInterface.TYPE_STRING, CoalesceMeta.STRATEGY_FIRST, true, "a", "b" );
+		Assert.assertFalse( hasConflict( trimmed, "555-1234", " 555-1234 " ) );
+		Assert.assertTrue( hasConflict( trimmed, "555-1234", " 555-9876 " ) );
+
+		CoalescePlan untrimmed = compilePlan( ValueMetaInterface.TYPE_STRING, CoalesceMeta.STRATEGY_FIRST, false, "a", "b" );
+		Assert.assertTrue( hasConflict( untrimmed, "555-1234", " 555-1234 " ) );
+	}
+
+	@Test
+	public void testConflictWithEvaluatedExpressions() throws Exception {
+		// the minimum evaluates the expression for every row, the check reads the value of the current row
+		CoalescePlan plan = compilePlan( ValueMetaInterface.TYPE_STRING, CoalesceMeta.STRATEGY_MIN, false, "a", "=trim(b)" );
+
+		Assert.assertTrue( hasConflict( plan, "5", " 6 " ) );
+		Assert.assertFalse( hasConflict( plan, "5", " 5 " ) );
+	}
+
+	private static boolean hasConflict( CoalescePlan plan, Object a, Object b ) throws Exception {
+		Object[] r = new Object[] { a, b };
+		if ( plan.scan != null ) {
+			plan.scan.scan( r );
+		}
+		CoalescePlan.OutputField field = plan.outputFields[0];
+		int winner = field.reducer.reduce( r );
+		return field.hasConflict( r, winner, plan.getCandidateValue( r, winner ), plan );
+	}
+
+	private static CoalescePlan compilePlan( int type, int strategy, boolean trim, String... candidates )
+		throws Exception {
+		RowMetaInterface inputRowMeta = new RowMeta();
+		inputRowMeta.addValueMeta( new ValueMeta( "a", type ) );
+		inputRowMeta.addValueMeta( new ValueMeta( "b", type ) );
+
+		CoalesceMeta meta = new CoalesceMeta();
+		meta.allocate( 1 );
+		meta.setOutputFields( new String[] { "out" } );
+		meta.setInputFields( new String[][] { { candidates[0], candidates[1], null } } );
+		meta.setValueType( new int[] { type } );
+		meta.setStrategies( new int[] { strategy } );
+		meta.setTrimBeforeNullCheck( new boolean[] { trim } );
+		meta.setDetectConflicts( new boolean[] { true } );
+
+		TransMeta space = new TransMeta();
+		RowMetaInterface outputRowMeta = inputRowMeta.clone();
+		meta.getFields( outputRowMeta, "plan", null, null, space, null, null );
+		return new CoalescePlan( meta, inputRowMeta, outputRowMeta, new Object[1], space );
+	}
+}
@@ -0,0 +1,48 @@
+package com.graphiq.pdi.coalesce;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+public class CoalesceReducerTest {
+
+	@Test
+	public void testBigNumberMajorityWithManyCandidates() throws Exception {
+		// more candidates than are compared pairwise, so the votes are counted by value
+		int nrCandidates = 20;
+		int[] candidateIndexes = new int[nrCandidates];
+		CoalesceNullMatcher[] nullMatchers = new CoalesceNullMatcher[nrCandidates];
+		ValueMetaInterface[] candidateMetas = new ValueMetaInterface[nrCandidates];
+		for ( int i = 0; i < nrCandidates; i++ ) {
+			candidateIndexes[i] = i;
+			nullMatchers[i] = CoalesceNullMatcher.NULL_ONLY;
+			candidateMetas[i] = new ValueMeta( "candidate" + i, ValueMetaInterface.TYPE_BIGNUMBER );
+		}
+		CoalesceReducer reducer = CoalesceReducer.create( CoalesceMeta.STRATEGY_MAJORITY, candidateIndexes, nullMatchers,
+			candidateMetas, new ValueMeta( "out", ValueMetaInterface.TYPE_BIGNUMBER ), (CoalesceScan) null, null );
+
+		// three votes for 2, four for 1 written with different scales
+		Object[] r = new Object[nrCandidates];
+		r[0] = new BigDecimal( "2" );
+		r[1] = new BigDecimal( "2" );
+		r[2] = new BigDecimal( "2" );
+		r[3] = new BigDecimal( "1.0" );
+		r[4] = new BigDecimal( "1" );
+		r[5] = new BigDecimal( "1.00" );
+		r[6] = new BigDecimal( "1.000" );
+		Assert.assertEquals( 3, reducer.reduce( r ) );
+
+		// zero with any scale is one value too
+		Arrays.fill( r, null );
+		r[0] = new BigDecimal( "5" );
+		r[1] = new BigDecimal( "0.0" );
+		r[2] = new BigDecimal( "5" );
+		r[3] = new BigDecimal( "0" );
+		r[4] = new BigDecimal( "0.00" );
+		Assert.assertEquals( 1, reducer.reduce( r ) );
+	}
+}
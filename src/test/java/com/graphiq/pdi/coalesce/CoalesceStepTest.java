@@ -7,6 +7,7 @@ import org.pentaho.di.TestUtilities;
 import org.pentaho.di.core.KettleEnvironment;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.KettleLogStore;
 import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.plugins.StepPluginType;
 import org.pentaho.di.core.row.RowMeta;
@@ -14,13 +15,19 @@ import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.trans.*;
+import org.pentaho.di.trans.step.StepInjectionMetaEntry;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.injector.InjectorMeta;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 public class CoalesceStepTest {
@@ -29,6 +36,7 @@ public class CoalesceStepTest {
 	private String[] fieldTypes;
 	ValueMetaInterface[] valuesMeta;
 	private List<List<Object>> inputRows;
+	private Trans trans;
 
 	@Test
 	public void testCoalesce() throws Exception {
@@ -72,7 +80,652 @@ public class CoalesceStepTest {
 		}
 	}
 
+	@Test
+	public void testDefaultValue() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setDefaultValues( new String[] { "n/a" } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 3 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testNullSentinels() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setNullSentinels( new String[] { "N/A, 248-0532" } );
+		coalesceMeta.setTrimBeforeNullCheck( new boolean[] { true } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 4 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testMaxStrategy() throws Exception {
+		processInputTestFile( "average_temperatures.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( false, ValueMeta.TYPE_NUMBER );
+		coalesceMeta.setStrategies( new int[] { CoalesceMeta.STRATEGY_MAX } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 5 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testCandidatePattern() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_NONE );
+		coalesceMeta.setInputFields( new String[][] { { "", "", "" } } );
+		coalesceMeta.setCandidatePatterns( new String[] { "glob:*_phone" } );
+		coalesceMeta.setCandidateOrders( new int[] { CoalesceMeta.ORDER_NAME_DESC } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 6 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testSharedCandidates() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 2 );
+		coalesceMeta.setOutputFields( new String[] { "out", "out2" } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING, ValueMeta.TYPE_STRING } );
+		coalesceMeta.setInputFields( new String[][] {
+			{ fieldNames[0], fieldNames[1], fieldNames[2] }, { fieldNames[1], fieldNames[2], "" } } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 7 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testExpressionCandidates() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_NONE );
+		coalesceMeta.setInputFields( new String[][] {
+			{ fieldNames[0], "=concat('555-', trim(" + fieldNames[1] + "))", "='n/a'" } } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 10 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testJsonCandidates() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		// the documents hold an empty phone where the field is null
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setTreatEmptyStringsAsNulls( true );
+		coalesceMeta.setInputFields( new String[][] { {
+			"=json(concat('{\"contact\": {\"id\": 1, \"phone\": \"', " + fieldNames[0] + ", '\"}}'), '$.contact.phone')",
+			"=json(concat('{\"alt\": [{\"phone\": \"', " + fieldNames[1] + ", '\"}]}'), '$.alt[0].phone')",
+			fieldNames[2] } } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 14 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testDelimitedCandidates() throws Exception {
+		processInputTestFile( "alternate_phones.txt" );
+
+		// blank elements and n/a are skipped, a list without a value is null
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setValueDelimiters( new String[] { "|" } );
+		coalesceMeta.setTrimBeforeNullCheck( new boolean[] { true } );
+		coalesceMeta.setNullSentinels( new String[] { "n/a" } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 1 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testRouting() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		// rows won by Field A or B reach the dummy step, the others have no target and are dropped
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setRouteField( "out" );
+		coalesceMeta.setRouteTarget( 0, "dummy step" );
+		coalesceMeta.setRouteTarget( 1, "dummy step" );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 1 ).subList( 0, 2 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testMergeSortedStreams() throws Exception {
+		RowMetaInterface rowMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "phone", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> primaryRows = new ArrayList<RowMetaAndData>();
+		primaryRows.add( new RowMetaAndData( rowMeta, new Object[] { 1L, null } ) );
+		primaryRows.add( new RowMetaAndData( rowMeta, new Object[] { 2L, "248-0532" } ) );
+		primaryRows.add( new RowMetaAndData( rowMeta, new Object[] { 4L, "125-2044" } ) );
+		List<RowMetaAndData> secondaryRows = new ArrayList<RowMetaAndData>();
+		secondaryRows.add( new RowMetaAndData( rowMeta, new Object[] { 1L, "742-1122" } ) );
+		secondaryRows.add( new RowMetaAndData( rowMeta, new Object[] { 3L, "311-8080" } ) );
+		secondaryRows.add( new RowMetaAndData( rowMeta, new Object[] { 4L, "555-0199" } ) );
+
+		// the primary row wins where it has a value, keys found in one stream only are written as well
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 1 );
+		coalesceMeta.setOutputFields( new String[] { "out" } );
+		coalesceMeta.setInputFields( new String[][] { { "phone", "", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { true } );
+		coalesceMeta.setMergeKeys( "id" );
+		coalesceMeta.setMergeStep( CoalesceMeta.MERGE_PRIMARY, "primary step" );
+		coalesceMeta.setMergeStep( CoalesceMeta.MERGE_SECONDARY, "secondary step" );
+
+		List<RowMetaAndData> transformationResults = testMerge( coalesceMeta, primaryRows, secondaryRows );
+
+		RowMetaInterface expectedMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "out", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> expectedResults = new ArrayList<RowMetaAndData>();
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 1L, "742-1122" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 2L, "248-0532" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 3L, "311-8080" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 4L, "125-2044" } ) );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testGroupedCoalesce() throws Exception {
+		RowMetaInterface rowMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "home", ValueMeta.TYPE_STRING ),
+			new ValueMeta( "cell", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> inputList = new ArrayList<RowMetaAndData>();
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 1L, null, "742-1122" } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 2L, null, null } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 3L, null, null } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 1L, "248-0532", null } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 2L, "125-2044", "311-8080" } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 2L, "555-0199", null } ) );
+
+		// the first row of a key with a non null candidate wins, keys without one get the default
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 1 );
+		coalesceMeta.setOutputFields( new String[] { "out" } );
+		coalesceMeta.setInputFields( new String[][] { { "home", "cell", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { true } );
+		coalesceMeta.setDefaultValues( new String[] { "none" } );
+		coalesceMeta.setGroupKeys( "id" );
+		coalesceMeta.setGroupThreads( 3 );
+
+		// the groups come partition by partition, compare them in key order
+		List<RowMetaAndData> transformationResults = new ArrayList<RowMetaAndData>( test( coalesceMeta, inputList ) );
+		Collections.sort( transformationResults, new Comparator<RowMetaAndData>() {
+			public int compare( RowMetaAndData o1, RowMetaAndData o2 ) {
+				return ( (Long) o1.getData()[0] ).compareTo( (Long) o2.getData()[0] );
+			}
+		} );
+
+		RowMetaInterface expectedMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "out", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> expectedResults = new ArrayList<RowMetaAndData>();
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 1L, "742-1122" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 2L, "125-2044" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 3L, "none" } ) );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testGroupedStrategyRejected() throws Exception {
+		processInputTestFile( "average_temperatures.txt" );
+
+		// a grouped max would only be the max of the first row of a key with a value
+		CoalesceMeta coalesceMeta = createCoalesceMeta( false, ValueMeta.TYPE_NUMBER );
+		coalesceMeta.setStrategies( new int[] { CoalesceMeta.STRATEGY_MAX } );
+		coalesceMeta.setGroupKeys( fieldNames[0] );
+
+		try {
+			test( coalesceMeta );
+			Assert.fail( "the step should fail to initialize" );
+		} catch ( KettleException e ) {
+			// the transformation can't start with the step failing init()
+		}
+		String logText = KettleLogStore.getAppender().getBuffer( trans.getLogChannelId(), false ).toString();
+		Assert.assertTrue( logText, logText.contains( "output field [out] uses the Maximum strategy" ) );
+	}
+
+	@Test
+	public void testSuppressUnchanged() throws Exception {
+		RowMetaInterface rowMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "home", ValueMeta.TYPE_STRING ),
+			new ValueMeta( "cell", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> inputList = new ArrayList<RowMetaAndData>();
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 1L, null, "742-1122" } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 2L, "248-0532", null } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 1L, "742-1122", "311-8080" } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 2L, "125-2044", null } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 2L, "248-0532", null } ) );
+		inputList.add( new RowMetaAndData( rowMeta, new Object[] { 1L, null, "742-1122" } ) );
+
+		// the third and the last row coalesce to the value last written for their key
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 1 );
+		coalesceMeta.setOutputFields( new String[] { "out" } );
+		coalesceMeta.setInputFields( new String[][] { { "home", "cell", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { true } );
+		coalesceMeta.setChangeKeys( "id" );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta, inputList );
+
+		RowMetaInterface expectedMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "out", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> expectedResults = new ArrayList<RowMetaAndData>();
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 1L, "742-1122" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 2L, "248-0532" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 2L, "125-2044" } ) );
+		expectedResults.add( new RowMetaAndData( expectedMeta, new Object[] { 2L, "248-0532" } ) );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+		CoalesceStep coalesceStep = (CoalesceStep) trans.getStepInterface( "coalesce step", 0 );
+		Assert.assertEquals( 2, coalesceStep.getSuppressedRows() );
+	}
+
+	@Test
+	public void testProvenanceFields() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setWinnerFields( new String[] { "winner" } );
+		coalesceMeta.setNonNullMaskFields( new String[] { "non_null" } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 11 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testConflictDetection() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setConflictFields( new String[] { "conflict" } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 12 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+		CoalesceStep coalesceStep = (CoalesceStep) trans.getStepInterface( "coalesce step", 0 );
+		Assert.assertEquals( 2, coalesceStep.getConflictCount( 0 ) );
+	}
+
+	@Test
+	public void testInternPool() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		// three distinct values in a pool of two, the first one is evicted by the third
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_STRING );
+		coalesceMeta.setInternPoolSizes( new int[] { 2 } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 1 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+		CoalesceInternPool internPool = ( (CoalesceStep) trans.getStepInterface( "coalesce step", 0 ) ).getInternPool( 0 );
+		Assert.assertEquals( 3, internPool.getLookups() );
+		Assert.assertEquals( 2, internPool.size() );
+		Assert.assertEquals( 1, internPool.getEvictions() );
+	}
+
+	@Test
+	public void testEncoding() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		File encodingFile = File.createTempFile( "coalesce", ".csv" );
+		encodingFile.deleteOnExit();
+		CoalesceMeta coalesceMeta = createCoalesceMeta( true, ValueMeta.TYPE_NONE );
+		coalesceMeta.setEncodingFiles( new String[] { encodingFile.getPath() } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 13 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( encodingFile ), "UTF-8" ) );
+		try {
+			String line;
+			while ( ( line = reader.readLine() ) != null ) {
+				lines.add( line );
+			}
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals( Arrays.asList( "code,value", "1,\"248-0532\"", "2,\"125-2044\"", "3,\"216-9620\"" ), lines );
+	}
+
+	@Test
+	public void testMetadataInjection() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		// extract the entries of a configured step and inject them into an empty one
+		List<StepInjectionMetaEntry> entries =
+			createCoalesceMeta( true, ValueMeta.TYPE_STRING ).getStepMetaInjectionInterface().extractStepMetadataEntries();
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.setDefault();
+		coalesceMeta.getStepMetaInjectionInterface().injectStepMetadataEntries( entries );
+
+		Assert.assertArrayEquals( new String[] { "out" }, coalesceMeta.getOutputFields() );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 1 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testProfile() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+		KettleEnvironment.init();
+
+		List<RowMetaAndData> inputList = createInputData();
+		List<Object[]> sample = new ArrayList<Object[]>();
+		for ( RowMetaAndData rowMetaAndData : inputList ) {
+			sample.add( rowMetaAndData.getData() );
+		}
+
+		CoalesceProfiler profiler = new CoalesceProfiler( createCoalesceMeta( true, ValueMeta.TYPE_STRING ), new TransMeta() );
+		profiler.profile( inputList.get( 0 ).getRowMeta(), sample );
+
+		// every sample row is either won by a candidate or has all candidates null
+		long decided = profiler.getAllNullCount( 0 );
+		for ( long[] count : profiler.getWinners( 0 ).values() ) {
+			decided += count[0];
+		}
+		Assert.assertEquals( sample.size(), decided );
+		Assert.assertTrue( profiler.getRows() >= sample.size() );
+		Assert.assertTrue( profiler.getConversions( 0 ).isEmpty() );
+	}
+
 	private List<RowMetaAndData> test( boolean remove, int valueType ) throws KettleException {
+		return test( createCoalesceMeta( remove, valueType ) );
+	}
+
+	@Test
+	public void testDefaultValueMetaOfFirstColumn() throws Exception {
+		processInputTestFile( "average_temperatures.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( false, ValueMeta.TYPE_NONE );
+		coalesceMeta.setInputFields( new String[][] { { fieldNames[0], "", "" } } );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 8 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+	}
+
+	@Test
+	public void testInferTypes() throws Exception {
+		processInputTestFile( "average_temperatures.txt" );
+
+		CoalesceMeta coalesceMeta = createCoalesceMeta( false, ValueMeta.TYPE_NONE );
+		coalesceMeta.setInferTypes( true );
+		coalesceMeta.setInferSampleSize( CoalesceMeta.DEFAULT_INFER_SAMPLE_SIZE );
+
+		List<RowMetaAndData> transformationResults = test( coalesceMeta );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 9 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+		Assert.assertEquals( ValueMeta.TYPE_NUMBER, transformationResults.get( 0 ).getRowMeta().getValueMeta( 3 ).getType() );
+	}
+
+	@Test
+	public void testChangingInputLayout() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		// every other row comes with the fields in reverse order
+		ValueMetaInterface[] reversedMeta = new ValueMetaInterface[valuesMeta.length];
+		for ( int i = 0; i < valuesMeta.length; i++ ) {
+			reversedMeta[i] = valuesMeta[valuesMeta.length - 1 - i];
+		}
+		RowMetaInterface reversedRowMeta = createRowMetaInterface( reversedMeta );
+		List<RowMetaAndData> inputList = createInputData();
+		for ( int i = 1; i < inputList.size(); i += 2 ) {
+			Object[] row = inputList.get( i ).getData();
+			Object[] reversedRow = new Object[row.length];
+			for ( int j = 0; j < row.length; j++ ) {
+				reversedRow[j] = row[row.length - 1 - j];
+			}
+			inputList.set( i, new RowMetaAndData( reversedRowMeta, reversedRow ) );
+		}
+
+		List<RowMetaAndData> transformationResults = test( createCoalesceMeta( true, ValueMeta.TYPE_STRING ), inputList );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 1 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+		CoalesceStep coalesceStep = (CoalesceStep) trans.getStepInterface( "coalesce step", 0 );
+		Assert.assertEquals( 1, coalesceStep.getPlanRecompilations() );
+	}
+
+	@Test
+	public void testPlanCompiledOnFirstRow() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		List<RowMetaAndData> inputList = createInputData();
+		List<RowMetaAndData> transformationResults =
+			test( createCoalesceMeta( true, ValueMeta.TYPE_STRING ), inputList, inputList.get( 0 ).getRowMeta() );
+		List<RowMetaAndData> expectedResults = createExpectedResults( 1 );
+
+		try {
+			TestUtilities.checkRows( transformationResults, expectedResults, 0 );
+		} catch ( TestFailedException tfe ) {
+			Assert.fail( tfe.getMessage() );
+		}
+		// init() only validated the announced layout, the first row looked up the plan of the rows' layout
+		// and all later rows took the fast path
+		CoalesceStep coalesceStep = (CoalesceStep) trans.getStepInterface( "coalesce step", 0 );
+		Assert.assertEquals( 1, coalesceStep.getPlanLookups() );
+		Assert.assertEquals( 0, coalesceStep.getPlanRecompilations() );
+	}
+
+	@Test
+	public void testInitReportsAllMissingFields() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 2 );
+		coalesceMeta.setOutputFields( new String[] { "out", "other" } );
+		coalesceMeta.setInputFields( new String[][] { { fieldNames[0], "missing_a", "" }, { "missing_b", "", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING, ValueMeta.TYPE_STRING } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { false, false } );
+		coalesceMeta.setGroupKeys( fieldNames[1] + ", missing_key" );
+
+		List<RowMetaAndData> inputList = createInputData();
+		try {
+			test( coalesceMeta, inputList, inputList.get( 0 ).getRowMeta() );
+			Assert.fail( "the step should fail to initialize" );
+		} catch ( KettleException e ) {
+			// the transformation can't start with the step failing init()
+		}
+
+		String logText = KettleLogStore.getAppender().getBuffer( trans.getLogChannelId(), false ).toString();
+		Assert.assertTrue( logText, logText.contains( "missing_a (output field out)" ) );
+		Assert.assertTrue( logText, logText.contains( "missing_b (output field other)" ) );
+		Assert.assertTrue( logText, logText.contains( "missing_key (group key)" ) );
+	}
+
+	@Test
+	public void testInitReportsMissingMergeKeys() throws Exception {
+		RowMetaInterface rowMeta = createRowMetaInterface( new ValueMetaInterface[] {
+			new ValueMeta( "id", ValueMeta.TYPE_INTEGER ), new ValueMeta( "phone", ValueMeta.TYPE_STRING ) } );
+		List<RowMetaAndData> rows = new ArrayList<RowMetaAndData>();
+		rows.add( new RowMetaAndData( rowMeta, new Object[] { 1L, "742-1122" } ) );
+
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 1 );
+		coalesceMeta.setOutputFields( new String[] { "out" } );
+		coalesceMeta.setInputFields( new String[][] { { "phone", "fax", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { true } );
+		coalesceMeta.setMergeKeys( "id, region" );
+		coalesceMeta.setMergeStep( CoalesceMeta.MERGE_PRIMARY, "primary step" );
+		coalesceMeta.setMergeStep( CoalesceMeta.MERGE_SECONDARY, "secondary step" );
+
+		try {
+			testMerge( coalesceMeta, rows, rows, rowMeta );
+			Assert.fail( "the step should fail to initialize" );
+		} catch ( KettleException e ) {
+			// the transformation can't start with the step failing init()
+		}
+
+		// both streams miss the key, the candidate missing in both is reported once
+		String logText = KettleLogStore.getAppender().getBuffer( trans.getLogChannelId(), false ).toString();
+		Assert.assertTrue( logText, logText.contains( "region (merge key of step primary step)" ) );
+		Assert.assertTrue( logText, logText.contains( "region (merge key of step secondary step)" ) );
+		Assert.assertTrue( logText, logText.contains( "[region (merge key of step primary step), fax (output field out), "
+			+ "region (merge key of step secondary step)]" ) );
+	}
+
+	@Test
+	public void testDuplicateDictionaryTargetsRejected() throws Exception {
+		processInputTestFile( "phone_numbers.txt" );
+
+		// both fields would write the same temporary file, init() fails before either is created
+		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 2 );
+		coalesceMeta.setOutputFields( new String[] { "out", "other" } );
+		coalesceMeta.setInputFields( new String[][] { { fieldNames[0], "", "" }, { fieldNames[1], "", "" } } );
+		coalesceMeta.setValueType( new int[] { ValueMeta.TYPE_STRING, ValueMeta.TYPE_STRING } );
+		coalesceMeta.setDoRemoveInputFields( new boolean[] { false, false } );
+		coalesceMeta.setDictionaryFiles( new String[] { "phones.cdic", "./phones.cdic" } );
+		coalesceMeta.setDictionaryKeyField( fieldNames[0] );
+		coalesceMeta.setBuildDictionaries( true );
+
+		try {
+			test( coalesceMeta );
+			Assert.fail( "the step should fail to initialize" );
+		} catch ( KettleException e ) {
+			// the transformation can't start with the step failing init()
+		}
+		String logText = KettleLogStore.getAppender().getBuffer( trans.getLogChannelId(), false ).toString();
+		Assert.assertTrue( logText, logText.contains( "not by both [out] and [other]" ) );
+		Assert.assertFalse( new File( "phones.cdic.tmp" ).exists() );
+	}
+
+	private List<RowMetaAndData> test( CoalesceMeta coalesceMeta ) throws KettleException {
+		return test( coalesceMeta, createInputData() );
+	}
+
+	private List<RowMetaAndData> test( CoalesceMeta coalesceMeta, List<RowMetaAndData> inputList ) throws KettleException {
+		return test( coalesceMeta, inputList, null );
+	}
+
+	/**
+	 * Runs the step on the rows of an injector that announces a layout, or none if announcedRowMeta is null.
+	 */
+	private List<RowMetaAndData> test( CoalesceMeta coalesceMeta, List<RowMetaAndData> inputList,
+		RowMetaInterface announcedRowMeta ) throws KettleException {
 
 		KettleEnvironment.init();
 
@@ -84,11 +737,15 @@ public class CoalesceStepTest {
 		// Create Injector
 		String injectorStepName = "injector step";
 		StepMeta injectorStep = TestUtilities.createInjectorStep( injectorStepName, registry );
+		if ( announcedRowMeta != null ) {
+			announceLayout( (InjectorMeta) injectorStep.getStepMetaInterface(), announcedRowMeta );
+		}
 		transMeta.addStep( injectorStep );
 
 		// Create a Coalesce step
 		String coalesceStepName = "coalesce step";
-		StepMeta coalesceStep = createCoalesceMeta( coalesceStepName, registry, remove, valueType );
+		String pluginId = registry.getPluginId( StepPluginType.class, coalesceMeta );
+		StepMeta coalesceStep = new StepMeta( pluginId, coalesceStepName, coalesceMeta );
 		transMeta.addStep( coalesceStep );
 
 		// TransHopMeta between injector step and CoalesceStep
@@ -105,7 +762,7 @@ public class CoalesceStepTest {
 		transMeta.addTransHop( coalesceToDummyHop );
 
 		// Execute the transformation
-		Trans trans = new Trans( transMeta );
+		trans = new Trans( transMeta );
 		trans.prepareExecution( null );
 
 		// Create a row collector and add it to the dummy step interface
@@ -118,7 +775,6 @@ public class CoalesceStepTest {
 		trans.startThreads();
 
 		// create the rows
-		List<RowMetaAndData> inputList = createInputData();
 		for ( RowMetaAndData rowMetaAndData : inputList ) {
 			rowProducer.putRow( rowMetaAndData.getRowMeta(), rowMetaAndData.getData() );
 		}
@@ -130,9 +786,95 @@ public class CoalesceStepTest {
 	}
 
 
-	private StepMeta createCoalesceMeta( String name, PluginRegistry registry, boolean removeInputFields, int valueType ) {
+	private void announceLayout( InjectorMeta injectorMeta, RowMetaInterface rowMeta ) {
+		int nrFields = rowMeta.size();
+		injectorMeta.allocate( nrFields );
+		String[] fieldNames = new String[nrFields];
+		int[] types = new int[nrFields];
+		int[] lengths = new int[nrFields];
+		int[] precisions = new int[nrFields];
+		for ( int i = 0; i < nrFields; i++ ) {
+			ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+			fieldNames[i] = valueMeta.getName();
+			types[i] = valueMeta.getType();
+			lengths[i] = valueMeta.getLength();
+			precisions[i] = valueMeta.getPrecision();
+		}
+		injectorMeta.setFieldname( fieldNames );
+		injectorMeta.setType( types );
+		injectorMeta.setLength( lengths );
+		injectorMeta.setPrecision( precisions );
+	}
+
+	private List<RowMetaAndData> testMerge( CoalesceMeta coalesceMeta, List<RowMetaAndData> primaryRows,
+		List<RowMetaAndData> secondaryRows ) throws KettleException {
+		return testMerge( coalesceMeta, primaryRows, secondaryRows, null );
+	}
+
+	/**
+	 * Runs the step on the rows of two injectors, the primary and the secondary stream of the merge, that both
+	 * announce a layout, or none if announcedRowMeta is null.
+	 */
+	private List<RowMetaAndData> testMerge( CoalesceMeta coalesceMeta, List<RowMetaAndData> primaryRows,
+		List<RowMetaAndData> secondaryRows, RowMetaInterface announcedRowMeta ) throws KettleException {
+
+		KettleEnvironment.init();
+
+		TransMeta transMeta = new TransMeta();
+		transMeta.setName( "testCoalesceMerge" );
+		PluginRegistry registry = PluginRegistry.getInstance();
+
+		String coalesceStepName = "coalesce step";
+		String pluginId = registry.getPluginId( StepPluginType.class, coalesceMeta );
+		StepMeta coalesceStep = new StepMeta( pluginId, coalesceStepName, coalesceMeta );
+		transMeta.addStep( coalesceStep );
+
+		// one injector per merged stream
+		String[] injectorStepNames = new String[CoalesceMeta.nrMergeStreams];
+		for ( int i = 0; i < CoalesceMeta.nrMergeStreams; i++ ) {
+			injectorStepNames[i] = coalesceMeta.getMergeStep( i );
+			StepMeta injectorStep = TestUtilities.createInjectorStep( injectorStepNames[i], registry );
+			if ( announcedRowMeta != null ) {
+				announceLayout( (InjectorMeta) injectorStep.getStepMetaInterface(), announcedRowMeta );
+			}
+			transMeta.addStep( injectorStep );
+			transMeta.addTransHop( new TransHopMeta( injectorStep, coalesceStep ) );
+		}
+
+		String dummyStepName = "dummy step";
+		StepMeta dummyStep = TestUtilities.createDummyStep( dummyStepName, registry );
+		transMeta.addStep( dummyStep );
+		transMeta.addTransHop( new TransHopMeta( coalesceStep, dummyStep ) );
+
+		trans = new Trans( transMeta );
+		trans.prepareExecution( null );
+
+		StepInterface si = trans.getStepInterface( dummyStepName, 0 );
+		RowStepCollector dummyRowCollector = new RowStepCollector();
+		si.addRowListener( dummyRowCollector );
+
+		RowProducer primaryProducer = trans.addRowProducer( injectorStepNames[CoalesceMeta.MERGE_PRIMARY], 0 );
+		RowProducer secondaryProducer = trans.addRowProducer( injectorStepNames[CoalesceMeta.MERGE_SECONDARY], 0 );
+		trans.startThreads();
+
+		for ( RowMetaAndData rowMetaAndData : primaryRows ) {
+			primaryProducer.putRow( rowMetaAndData.getRowMeta(), rowMetaAndData.getData() );
+		}
+		primaryProducer.finished();
+		for ( RowMetaAndData rowMetaAndData : secondaryRows ) {
+			secondaryProducer.putRow( rowMetaAndData.getRowMeta(), rowMetaAndData.getData() );
+		}
+		secondaryProducer.finished();
+
+		trans.waitUntilFinished();
+
+		return dummyRowCollector.getRowsWritten();
+	}
+
+	private CoalesceMeta createCoalesceMeta( boolean removeInputFields, int valueType ) {
 
 		CoalesceMeta coalesceMeta = new CoalesceMeta();
+		coalesceMeta.allocate( 1 );
 
 		coalesceMeta.setOutputFields( new String[] { "out" } );
 		coalesceMeta.setValueType( new int[] { valueType } );
@@ -144,9 +886,7 @@ public class CoalesceStepTest {
 		}
 		coalesceMeta.setInputFields( inputFields );
 
-		String pluginId = registry.getPluginId( StepPluginType.class, coalesceMeta );
-
-		return new StepMeta( pluginId, name, coalesceMeta );
+		return coalesceMeta;
 	}
 
 	private List<RowMetaAndData> createInputData() {
@@ -222,6 +962,114 @@ public class CoalesceStepTest {
 				resultRows[2] = new Object[] { null, null, 10.5d };
 				resultRows[3] = new Object[] { null, null, null };
 				break;
+
+			case 3:
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				resultRows[0] = new Object[] { "248-0532" };
+				resultRows[1] = new Object[] { "125-2044" };
+				resultRows[2] = new Object[] { "216-9620" };
+				resultRows[3] = new Object[] { "n/a" };
+				break;
+
+			case 4:
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				resultRows[0] = new Object[] { "735-1038" };
+				resultRows[1] = new Object[] { "125-2044" };
+				resultRows[2] = new Object[] { "216-9620" };
+				resultRows[3] = new Object[] { null };
+				break;
+
+			case 5:
+				valuesMeta.addAll( Arrays.asList( this.valuesMeta ) );
+				valuesMeta.add( new ValueMeta( "temperature", ValueMeta.TYPE_NUMBER ) );
+				resultRows[0] = new Object[] { 10.5d, "6", 8d, 10.5d };
+				resultRows[1] = new Object[] { null, "7.5", 9d, 9d };
+				resultRows[2] = new Object[] { null, null, 10.5d, 10.5d };
+				resultRows[3] = new Object[] { null, null, null, null };
+				break;
+
+			case 6:
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				resultRows[0] = new Object[] { "916-9140" };
+				resultRows[1] = new Object[] { "338-0895" };
+				resultRows[2] = new Object[] { "216-9620" };
+				resultRows[3] = new Object[] { null };
+				break;
+
+			case 7:
+				valuesMeta.addAll( Arrays.asList( this.valuesMeta ) );
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( "out2", ValueMeta.TYPE_STRING ) );
+				resultRows[0] = new Object[] { "248-0532", "735-1038", "916-9140", "248-0532", "735-1038" };
+				resultRows[1] = new Object[] { null, "125-2044", "338-0895", "125-2044", "125-2044" };
+				resultRows[2] = new Object[] { null, null, "216-9620", "216-9620", "216-9620" };
+				resultRows[3] = new Object[] { null, null, null, null, null };
+				break;
+
+			case 8:
+				valuesMeta.addAll( Arrays.asList( this.valuesMeta ) );
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_NUMBER ) );
+				resultRows[0] = new Object[] { 10.5d, "6", 8d, 10.5d };
+				resultRows[1] = new Object[] { null, "7.5", 9d, null };
+				resultRows[2] = new Object[] { null, null, 10.5d, null };
+				resultRows[3] = new Object[] { null, null, null, null };
+				break;
+
+			case 9:
+				valuesMeta.addAll( Arrays.asList( this.valuesMeta ) );
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_NUMBER ) );
+				resultRows[0] = new Object[] { 10.5d, "6", 8d, 10.5d };
+				resultRows[1] = new Object[] { null, "7.5", 9d, 7.5d };
+				resultRows[2] = new Object[] { null, null, 10.5d, 10.5d };
+				resultRows[3] = new Object[] { null, null, null, null };
+				break;
+
+			case 10:
+				valuesMeta.add( new ValueMeta( fieldNames[1], ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( fieldNames[2], ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				resultRows[0] = new Object[] { "735-1038", "916-9140", "248-0532" };
+				resultRows[1] = new Object[] { "125-2044", "338-0895", "555-125-2044" };
+				resultRows[2] = new Object[] { null, "216-9620", "n/a" };
+				resultRows[3] = new Object[] { null, null, "n/a" };
+				break;
+
+			case 11:
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( "winner", ValueMeta.TYPE_INTEGER ) );
+				valuesMeta.add( new ValueMeta( "non_null", ValueMeta.TYPE_INTEGER ) );
+				resultRows[0] = new Object[] { "248-0532", 0L, 7L };
+				resultRows[1] = new Object[] { "125-2044", 1L, 6L };
+				resultRows[2] = new Object[] { "216-9620", 2L, 4L };
+				resultRows[3] = new Object[] { null, null, 0L };
+				break;
+
+			case 12:
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( "conflict", ValueMeta.TYPE_BOOLEAN ) );
+				resultRows[0] = new Object[] { "248-0532", true };
+				resultRows[1] = new Object[] { "125-2044", true };
+				resultRows[2] = new Object[] { "216-9620", false };
+				resultRows[3] = new Object[] { null, false };
+				break;
+
+			case 13:
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_INTEGER ) );
+				resultRows[0] = new Object[] { 1L };
+				resultRows[1] = new Object[] { 2L };
+				resultRows[2] = new Object[] { 3L };
+				resultRows[3] = new Object[] { null };
+				break;
+
+			case 14:
+				valuesMeta.add( new ValueMeta( fieldNames[0], ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( fieldNames[1], ValueMeta.TYPE_STRING ) );
+				valuesMeta.add( new ValueMeta( "out", ValueMeta.TYPE_STRING ) );
+				resultRows[0] = new Object[] { "248-0532", "735-1038", "248-0532" };
+				resultRows[1] = new Object[] { null, "125-2044", "125-2044" };
+				resultRows[2] = new Object[] { null, null, "216-9620" };
+				resultRows[3] = new Object[] { null, null, null };
+				break;
 		}
 
 		RowMetaInterface rowMeta = createRowMetaInterface( valuesMeta.toArray( new ValueMetaInterface[valuesMeta.size()] ) );
@@ -0,0 +1,26 @@
+package com.graphiq.pdi.coalesce;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class CoalesceTypeInferenceTest {
+
+	@Test
+	public void testDatesMustBeWhole() throws Exception {
+		ValueMetaInterface valueMeta = new ValueMeta( "candidate", ValueMetaInterface.TYPE_STRING );
+		valueMeta.setConversionMask( "yyyy/MM/dd" );
+
+		CoalesceTypeInference typeInference = new CoalesceTypeInference( new boolean[] { true, true } );
+		typeInference.sample( 0, valueMeta, "2015/03/31" );
+		typeInference.sample( 0, valueMeta, "2016/12/01" );
+		// the date format reads the date at the start and ignores the rest
+		typeInference.sample( 1, valueMeta, "2015/03/31" );
+		typeInference.sample( 1, valueMeta, "2016/12/01 or later" );
+
+		int[] types = typeInference.getTypes();
+		Assert.assertEquals( ValueMetaInterface.TYPE_DATE, types[0] );
+		Assert.assertEquals( ValueMetaInterface.TYPE_STRING, types[1] );
+	}
+}